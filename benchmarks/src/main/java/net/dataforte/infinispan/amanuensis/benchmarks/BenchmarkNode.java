@@ -0,0 +1,81 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.benchmarks;
+
+import java.util.Properties;
+
+import net.dataforte.infinispan.amanuensis.AmanuensisManager;
+import net.dataforte.infinispan.amanuensis.backend.jgroups.MuxChannelLookup;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.util.Version;
+import org.infinispan.Cache;
+import org.infinispan.config.Configuration;
+import org.infinispan.config.GlobalConfiguration;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+
+/**
+ * A single clustered node running in the benchmark's JVM: an Infinispan cache
+ * manager whose JGroups channel only talks to the other channels of the same
+ * JVM, and the {@link AmanuensisManager} on top of it
+ * 
+ * @author Tristan Tarrant
+ */
+public class BenchmarkNode {
+	public static final String JGROUPS_CONFIGURATION = "jgroups-loopback.xml";
+	private final EmbeddedCacheManager cacheManager;
+	private final AmanuensisManager manager;
+
+	public BenchmarkNode(String clusterName) {
+		GlobalConfiguration global = GlobalConfiguration.getClusteredDefault();
+		global.setClusterName(clusterName);
+		Properties transport = new Properties();
+		transport.setProperty("channelLookup", MuxChannelLookup.class.getName());
+		transport.setProperty("configurationFile", JGROUPS_CONFIGURATION);
+		global.setTransportProperties(transport);
+		Configuration configuration = new Configuration();
+		configuration.setCacheMode(Configuration.CacheMode.REPL_SYNC);
+		cacheManager = new DefaultCacheManager(global, configuration);
+		// Starts the transport, which AmanuensisManager needs
+		cacheManager.getCache();
+		manager = new AmanuensisManager(cacheManager);
+		manager.setAnalyzer(new StandardAnalyzer(Version.LUCENE_30));
+	}
+
+	public EmbeddedCacheManager getCacheManager() {
+		return cacheManager;
+	}
+
+	public AmanuensisManager getManager() {
+		return manager;
+	}
+
+	public <K, V> Cache<K, V> getCache() {
+		return cacheManager.getCache();
+	}
+
+	public void stop() {
+		manager.close();
+		cacheManager.stop();
+	}
+}
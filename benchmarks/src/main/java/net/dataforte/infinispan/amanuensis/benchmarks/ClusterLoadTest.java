@@ -0,0 +1,648 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.benchmarks;
+
+import java.beans.BeanInfo;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.dataforte.infinispan.amanuensis.AmanuensisIndexReader;
+import net.dataforte.infinispan.amanuensis.AmanuensisIndexWriter;
+import net.dataforte.infinispan.amanuensis.AmanuensisManager;
+import net.dataforte.infinispan.amanuensis.ExecutorContext;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.infinispan.lucene.InfinispanDirectory;
+
+/**
+ * An end-to-end load test: several nodes are started in this JVM, connected by
+ * a JGroups loopback stack, and every slave adds, updates and deletes
+ * documents through its {@link AmanuensisIndexWriter}. The test reports the
+ * sustained throughput, the latency from submission to visibility in the
+ * slave's {@link AmanuensisIndexReader}, and the depth of the master's queue.
+ * <p>
+ * Every setting can be passed on the command line as <code>name=value</code>,
+ * e.g. <code>nodes=4 threadsPerNode=8 duration=60000 reportFile=load.json</code>.
+ * 
+ * @author Tristan Tarrant
+ */
+public class ClusterLoadTest {
+	private static final String VERSION_FIELD = "v";
+	private int nodes = 3;
+	private int threadsPerNode = 4;
+	private long warmup = 10000;
+	private long duration = 60000;
+	private long drainTimeout = 60000;
+	private double addRatio = 0.5;
+	private double updateRatio = 0.4;
+	private double deleteRatio = 0.1;
+	private int keySpace = 100000;
+	private int bodyWords = 100;
+	private int operationsPerBatch = 1;
+	private boolean autoBatching = false;
+	private int sampleInterval = 100;
+	private long targetRate = 0;
+	private boolean distributedOwnership = false;
+	private String indexName = "load";
+	private File reportFile;
+
+	private final List<BenchmarkNode> cluster = new ArrayList<BenchmarkNode>();
+	private final LatencyRecorder latencies = new LatencyRecorder();
+	private final AtomicLong adds = new AtomicLong();
+	private final AtomicLong updates = new AtomicLong();
+	private final AtomicLong deletes = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private volatile boolean running;
+	private volatile boolean measuring;
+
+	public int getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * Sets the number of nodes, including the master
+	 */
+	public void setNodes(int nodes) {
+		this.nodes = nodes;
+	}
+
+	public int getThreadsPerNode() {
+		return threadsPerNode;
+	}
+
+	/**
+	 * Sets the number of threads issuing operations on each slave
+	 */
+	public void setThreadsPerNode(int threadsPerNode) {
+		this.threadsPerNode = threadsPerNode;
+	}
+
+	public long getWarmup() {
+		return warmup;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) the load runs for before being measured
+	 */
+	public void setWarmup(long warmup) {
+		this.warmup = warmup;
+	}
+
+	public long getDuration() {
+		return duration;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) the load is measured for
+	 */
+	public void setDuration(long duration) {
+		this.duration = duration;
+	}
+
+	public long getDrainTimeout() {
+		return drainTimeout;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) to wait, after the load has stopped,
+	 * for the measured operations to become visible
+	 */
+	public void setDrainTimeout(long drainTimeout) {
+		this.drainTimeout = drainTimeout;
+	}
+
+	public double getAddRatio() {
+		return addRatio;
+	}
+
+	public void setAddRatio(double addRatio) {
+		this.addRatio = addRatio;
+	}
+
+	public double getUpdateRatio() {
+		return updateRatio;
+	}
+
+	public void setUpdateRatio(double updateRatio) {
+		this.updateRatio = updateRatio;
+	}
+
+	public double getDeleteRatio() {
+		return deleteRatio;
+	}
+
+	public void setDeleteRatio(double deleteRatio) {
+		this.deleteRatio = deleteRatio;
+	}
+
+	public int getKeySpace() {
+		return keySpace;
+	}
+
+	/**
+	 * Sets the number of distinct document keys, which bounds the size of the
+	 * index
+	 */
+	public void setKeySpace(int keySpace) {
+		this.keySpace = keySpace;
+	}
+
+	public int getBodyWords() {
+		return bodyWords;
+	}
+
+	public void setBodyWords(int bodyWords) {
+		this.bodyWords = bodyWords;
+	}
+
+	public int getOperationsPerBatch() {
+		return operationsPerBatch;
+	}
+
+	/**
+	 * Sets the number of operations each thread groups with
+	 * {@link AmanuensisIndexWriter#startBatch()}. 1 sends each operation on
+	 * its own.
+	 */
+	public void setOperationsPerBatch(int operationsPerBatch) {
+		this.operationsPerBatch = operationsPerBatch;
+	}
+
+	public boolean isAutoBatching() {
+		return autoBatching;
+	}
+
+	public void setAutoBatching(boolean autoBatching) {
+		this.autoBatching = autoBatching;
+	}
+
+	public int getSampleInterval() {
+		return sampleInterval;
+	}
+
+	/**
+	 * Sets how often the latency is measured: once every so many adds and
+	 * updates of each thread. The sampled operations are applied to keys of
+	 * their own, outside of the key space, so that they cannot be overwritten
+	 * or deleted before they are seen, and are never removed.
+	 */
+	public void setSampleInterval(int sampleInterval) {
+		this.sampleInterval = sampleInterval;
+	}
+
+	public long getTargetRate() {
+		return targetRate;
+	}
+
+	/**
+	 * Sets the number of operations per second issued by each thread. 0, the
+	 * default, issues them as fast as they are accepted.
+	 */
+	public void setTargetRate(long targetRate) {
+		this.targetRate = targetRate;
+	}
+
+	public boolean isDistributedOwnership() {
+		return distributedOwnership;
+	}
+
+	public void setDistributedOwnership(boolean distributedOwnership) {
+		this.distributedOwnership = distributedOwnership;
+	}
+
+	public String getIndexName() {
+		return indexName;
+	}
+
+	public void setIndexName(String indexName) {
+		this.indexName = indexName;
+	}
+
+	public File getReportFile() {
+		return reportFile;
+	}
+
+	/**
+	 * Sets the file the results are written to, as JSON
+	 */
+	public void setReportFile(File reportFile) {
+		this.reportFile = reportFile;
+	}
+
+	public void run() throws Exception {
+		try {
+			startCluster();
+			List<InfinispanDirectory> directories = new ArrayList<InfinispanDirectory>();
+			BenchmarkNode master = null;
+			for (BenchmarkNode node : cluster) {
+				InfinispanDirectory directory = new InfinispanDirectory(node.getCache(), indexName);
+				node.getManager().initialize(directory);
+				node.getManager().getIndexWriter(directory).setAutoBatching(autoBatching);
+				directories.add(directory);
+				if (node.getManager().isMaster(indexName)) {
+					master = node;
+				}
+			}
+			List<Thread> threads = new ArrayList<Thread>();
+			List<Tracker> trackers = new ArrayList<Tracker>();
+			running = true;
+			for (int n = 0; n < cluster.size(); n++) {
+				BenchmarkNode node = cluster.get(n);
+				if (node == master && cluster.size() > 1) {
+					continue;
+				}
+				Tracker tracker = new Tracker(node.getManager().getIndexReader(directories.get(n)));
+				trackers.add(tracker);
+				threads.add(start(tracker, "Tracker-" + n));
+				for (int t = 0; t < threadsPerNode; t++) {
+					threads.add(start(new Driver(node.getManager().getIndexWriter(directories.get(n)), tracker, n + "-" + t, 31L * n + t), "Driver-" + n + "-" + t));
+				}
+			}
+			QueueSampler sampler = new QueueSampler(master != null ? master.getManager() : null);
+			threads.add(start(sampler, "QueueSampler"));
+
+			Thread.sleep(warmup);
+			adds.set(0);
+			updates.set(0);
+			deletes.set(0);
+			errors.set(0);
+			latencies.reset();
+			sampler.reset();
+			long start = System.nanoTime();
+			measuring = true;
+			Thread.sleep(duration);
+			measuring = false;
+			long end = System.nanoTime();
+			long submitted = adds.get() + updates.get() + deletes.get();
+
+			// Wait for the measured operations to become visible
+			long drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeout);
+			long pending;
+			while ((pending = pendingSamples(trackers)) > 0 && System.nanoTime() < drainDeadline) {
+				Thread.sleep(10);
+			}
+			long drained = System.nanoTime();
+			running = false;
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			report(submitted, end - start, drained - start, pending, sampler);
+		} finally {
+			stopCluster();
+		}
+	}
+
+	private void startCluster() throws InterruptedException {
+		String clusterName = "amanuensis-load-" + System.nanoTime();
+		for (int i = 0; i < nodes; i++) {
+			BenchmarkNode node = new BenchmarkNode(clusterName);
+			node.getManager().setDistributedOwnership(distributedOwnership);
+			cluster.add(node);
+		}
+		for (BenchmarkNode node : cluster) {
+			while (node.getCacheManager().getMembers().size() < nodes) {
+				Thread.sleep(10);
+			}
+		}
+	}
+
+	private void stopCluster() {
+		// The master last, so that the others do not have to fail over
+		for (int i = cluster.size() - 1; i >= 0; i--) {
+			cluster.get(i).stop();
+		}
+		cluster.clear();
+	}
+
+	private static Thread start(Runnable runnable, String name) {
+		Thread thread = new Thread(runnable, "ClusterLoadTest-" + name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	private static long pendingSamples(List<Tracker> trackers) {
+		long pending = 0;
+		for (Tracker tracker : trackers) {
+			pending += tracker.measured.get();
+		}
+		return pending;
+	}
+
+	private void report(long submitted, long measuredNanos, long drainedNanos, long unseen, QueueSampler sampler) throws IOException {
+		double seconds = measuredNanos / 1e9;
+		long[] p = latencies.percentiles(50, 99, 99.9, 100);
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		field(json, "nodes", nodes);
+		field(json, "threadsPerNode", threadsPerNode);
+		field(json, "operationsPerBatch", operationsPerBatch);
+		field(json, "autoBatching", autoBatching);
+		field(json, "durationSeconds", seconds);
+		field(json, "adds", adds.get());
+		field(json, "updates", updates.get());
+		field(json, "deletes", deletes.get());
+		field(json, "errors", errors.get());
+		field(json, "submittedOpsPerSecond", submitted / seconds);
+		// Includes the time the master took to catch up
+		field(json, "sustainedOpsPerSecond", submitted / (drainedNanos / 1e9));
+		field(json, "latencySamples", latencies.getCount());
+		field(json, "latencyUnseenSamples", unseen);
+		field(json, "latencyP50Millis", p[0] / 1e6);
+		field(json, "latencyP99Millis", p[1] / 1e6);
+		field(json, "latencyP999Millis", p[2] / 1e6);
+		field(json, "latencyMaxMillis", p[3] / 1e6);
+		field(json, "queueDepthMean", sampler.getMeanDepth());
+		field(json, "queueDepthMax", sampler.maxDepth);
+		json.append("  \"queueBytesMax\": ").append(sampler.maxBytes).append("\n}\n");
+		System.out.print(json);
+		if (reportFile != null) {
+			PrintWriter out = new PrintWriter(new FileWriter(reportFile));
+			try {
+				out.print(json);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	private static void field(StringBuilder json, String name, Object value) {
+		json.append("  \"").append(name).append("\": ").append(value).append(",\n");
+	}
+
+	/**
+	 * Issues a random mix of operations from one thread of a slave
+	 */
+	private class Driver implements Runnable {
+		private final AmanuensisIndexWriter writer;
+		private final Tracker tracker;
+		private final String prefix;
+		private final Random random;
+		private final Documents documents;
+		private long sequence;
+
+		Driver(AmanuensisIndexWriter writer, Tracker tracker, String prefix, long seed) {
+			this.writer = writer;
+			this.tracker = tracker;
+			this.prefix = prefix;
+			this.random = new Random(seed);
+			this.documents = new Documents(seed, bodyWords);
+		}
+
+		@Override
+		public void run() {
+			long interval = targetRate > 0 ? TimeUnit.SECONDS.toNanos(1) / targetRate : 0;
+			long next = System.nanoTime();
+			double total = addRatio + updateRatio + deleteRatio;
+			while (running) {
+				try {
+					if (operationsPerBatch > 1) {
+						writer.startBatch();
+					}
+					for (int i = 0; i < operationsPerBatch; i++) {
+						issue(random.nextDouble() * total);
+					}
+					if (operationsPerBatch > 1) {
+						writer.endBatch();
+					}
+				} catch (Exception e) {
+					errors.incrementAndGet();
+					if (writer.isBatching()) {
+						writer.cancelBatch();
+					}
+				}
+				if (interval > 0) {
+					next += interval * operationsPerBatch;
+					long delay = next - System.nanoTime();
+					if (delay > 0) {
+						try {
+							TimeUnit.NANOSECONDS.sleep(delay);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			}
+		}
+
+		private void issue(double dice) throws Exception {
+			String key = Integer.toString(random.nextInt(keySpace));
+			if (dice < addRatio + updateRatio) {
+				String version = prefix + "-" + (sequence++);
+				boolean sampled = sequence % sampleInterval == 0;
+				if (sampled) {
+					key = "sample-" + version;
+				}
+				Document doc = documents.document(key);
+				doc.add(new Field(VERSION_FIELD, version, Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+				if (sampled) {
+					tracker.submitted(version, measuring);
+				}
+				if (dice < addRatio) {
+					writer.addDocument(doc);
+					count(adds);
+				} else {
+					writer.updateDocument(documents.key(key), doc);
+					count(updates);
+				}
+			} else {
+				writer.deleteDocuments(documents.key(key));
+				count(deletes);
+			}
+		}
+
+		private void count(AtomicLong counter) {
+			if (measuring) {
+				counter.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Polls the reader of a slave for the sampled documents, recording the
+	 * time they took to become visible
+	 */
+	private class Tracker implements Runnable {
+		private final AmanuensisIndexReader reader;
+		private final ConcurrentMap<String, Sample> pending = new ConcurrentHashMap<String, Sample>();
+		final AtomicLong measured = new AtomicLong();
+
+		Tracker(AmanuensisIndexReader reader) {
+			this.reader = reader;
+		}
+
+		void submitted(String version, boolean measuring) {
+			pending.put(version, new Sample(System.nanoTime(), measuring));
+			if (measuring) {
+				measured.incrementAndGet();
+			}
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					IndexReader r = reader.get();
+					try {
+						long now = System.nanoTime();
+						for (Iterator<Map.Entry<String, Sample>> it = pending.entrySet().iterator(); it.hasNext();) {
+							Map.Entry<String, Sample> entry = it.next();
+							if (r.docFreq(new Term(VERSION_FIELD, entry.getKey())) > 0) {
+								it.remove();
+								if (entry.getValue().measuring) {
+									latencies.record(now - entry.getValue().submitted);
+									measured.decrementAndGet();
+								}
+							}
+						}
+					} finally {
+						reader.release(r);
+					}
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					return;
+				} catch (Exception e) {
+					errors.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	private static class Sample {
+		final long submitted;
+		final boolean measuring;
+
+		Sample(long submitted, boolean measuring) {
+			this.submitted = submitted;
+			this.measuring = measuring;
+		}
+	}
+
+	/**
+	 * Samples the depth of the master's queue for the index
+	 */
+	private class QueueSampler implements Runnable {
+		private final AmanuensisManager master;
+		private long samples;
+		private long totalDepth;
+		volatile int maxDepth;
+		volatile long maxBytes;
+
+		QueueSampler(AmanuensisManager master) {
+			this.master = master;
+		}
+
+		synchronized void reset() {
+			samples = 0;
+			totalDepth = 0;
+			maxDepth = 0;
+			maxBytes = 0;
+		}
+
+		synchronized double getMeanDepth() {
+			return samples > 0 ? (double) totalDepth / samples : 0;
+		}
+
+		@Override
+		public void run() {
+			if (master == null) {
+				return;
+			}
+			while (running) {
+				try {
+					ExecutorContext context = master.getLocalOperationDispatcher().getExecutorContext(indexName);
+					int depth = context.getQueueSize();
+					synchronized (this) {
+						++samples;
+						totalDepth += depth;
+						maxDepth = Math.max(maxDepth, depth);
+						maxBytes = Math.max(maxBytes, context.getQueuedBytes());
+					}
+					Thread.sleep(10);
+				} catch (InterruptedException e) {
+					return;
+				} catch (Exception e) {
+					errors.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs the load test with the settings passed as <code>name=value</code>
+	 * arguments
+	 */
+	public static void main(String[] args) throws Exception {
+		ClusterLoadTest test = new ClusterLoadTest();
+		BeanInfo info = Introspector.getBeanInfo(ClusterLoadTest.class);
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0) {
+				throw new IllegalArgumentException("Expected name=value, got " + arg);
+			}
+			test.set(info, arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		test.run();
+		System.exit(0);
+	}
+
+	private void set(BeanInfo info, String name, String value) throws Exception {
+		for (PropertyDescriptor property : info.getPropertyDescriptors()) {
+			if (property.getName().equals(name) && property.getWriteMethod() != null) {
+				Class<?> type = property.getPropertyType();
+				Object converted;
+				if (type == int.class) {
+					converted = Integer.valueOf(value);
+				} else if (type == long.class) {
+					converted = Long.valueOf(value);
+				} else if (type == double.class) {
+					converted = Double.valueOf(value);
+				} else if (type == boolean.class) {
+					converted = Boolean.valueOf(value);
+				} else if (type == File.class) {
+					converted = new File(value);
+				} else {
+					converted = value;
+				}
+				property.getWriteMethod().invoke(this, converted);
+				return;
+			}
+		}
+		throw new IllegalArgumentException("Unknown setting " + name);
+	}
+}
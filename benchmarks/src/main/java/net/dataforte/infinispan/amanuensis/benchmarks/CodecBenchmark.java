@@ -0,0 +1,85 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import net.dataforte.infinispan.amanuensis.IndexOperations;
+import net.dataforte.infinispan.amanuensis.codec.IndexOperationsCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the encoding and decoding of {@link IndexOperations} messages, as
+ * sent from the slaves to the master
+ * 
+ * @author Tristan Tarrant
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+	@Param({ "1", "10", "100" })
+	public int operations;
+
+	@Param({ "adds", "updates" })
+	public String kind;
+
+	private IndexOperations ops;
+	private byte[] encoded;
+
+	@Setup
+	public void setup() throws IOException {
+		Documents documents = new Documents(42, 100);
+		ops = "adds".equals(kind) ? documents.adds("bench", 0, operations) : documents.updates("bench", operations, 1000);
+		encoded = IndexOperationsCodec.encode(ops);
+	}
+
+	@Benchmark
+	public byte[] encode() throws IOException {
+		return IndexOperationsCodec.encode(ops);
+	}
+
+	@Benchmark
+	public IndexOperations decode() throws IOException {
+		return IndexOperationsCodec.decode(encoded, 0, encoded.length);
+	}
+
+	@Benchmark
+	public int estimateSize() {
+		return IndexOperationsCodec.estimateSize(ops);
+	}
+}
@@ -0,0 +1,123 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.dataforte.infinispan.amanuensis.IndexOperation;
+import net.dataforte.infinispan.amanuensis.IndexOperations;
+import net.dataforte.infinispan.amanuensis.ops.AddDocumentOperation;
+import net.dataforte.infinispan.amanuensis.ops.DeleteDocumentsTermsOperation;
+import net.dataforte.infinispan.amanuensis.ops.UpdateDocumentOperation;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericField;
+import org.apache.lucene.index.Term;
+
+/**
+ * Generates the documents and operations used by the benchmarks. The data is
+ * random but reproducible, so that results can be compared across runs.
+ * 
+ * @author Tristan Tarrant
+ */
+public class Documents {
+	public static final String KEY_FIELD = "id";
+	private static final String[] WORDS = { "lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing", "elit", "sed", "do", "eiusmod", "tempor",
+			"incididunt", "ut", "labore", "et", "dolore", "magna", "aliqua", "enim", "ad", "minim", "veniam", "quis", "nostrud", "exercitation", "ullamco",
+			"laboris", "nisi", "aliquip", "ex", "ea", "commodo", "consequat" };
+	private final Random random;
+	private final int bodyWords;
+
+	/**
+	 * @param seed
+	 * @param bodyWords
+	 *            the number of words in the body of each document
+	 */
+	public Documents(long seed, int bodyWords) {
+		this.random = new Random(seed);
+		this.bodyWords = bodyWords;
+	}
+
+	public Document document(int id) {
+		return document(Integer.toString(id));
+	}
+
+	public Document document(String key) {
+		Document doc = new Document();
+		doc.add(new Field(KEY_FIELD, key, Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS));
+		doc.add(new Field("title", words(5), Field.Store.YES, Field.Index.ANALYZED));
+		doc.add(new Field("body", words(bodyWords), Field.Store.NO, Field.Index.ANALYZED));
+		doc.add(new NumericField("timestamp", Field.Store.YES, true).setLongValue(1300000000000L + random.nextInt(1000000000)));
+		return doc;
+	}
+
+	public Term key(int id) {
+		return key(Integer.toString(id));
+	}
+
+	public Term key(String key) {
+		return new Term(KEY_FIELD, key);
+	}
+
+	/**
+	 * Returns a message of adds
+	 */
+	public IndexOperations adds(String indexName, int firstId, int count) {
+		List<IndexOperation> ops = new ArrayList<IndexOperation>(count);
+		for (int i = 0; i < count; i++) {
+			ops.add(new AddDocumentOperation(document(firstId + i)));
+		}
+		return new IndexOperations(indexName, ops);
+	}
+
+	/**
+	 * Returns a message of updates, with one delete every ten operations, of
+	 * keys chosen among the specified number, so that the size of the index
+	 * remains bounded
+	 */
+	public IndexOperations updates(String indexName, int count, int keys) {
+		List<IndexOperation> ops = new ArrayList<IndexOperation>(count);
+		for (int i = 0; i < count; i++) {
+			int id = random.nextInt(keys);
+			if (i % 10 == 9) {
+				ops.add(new DeleteDocumentsTermsOperation(key(id)));
+			} else {
+				ops.add(new UpdateDocumentOperation(key(id), document(id)));
+			}
+		}
+		return new IndexOperations(indexName, ops);
+	}
+
+	private String words(int count) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				sb.append(' ');
+			}
+			sb.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import net.dataforte.infinispan.amanuensis.AmanuensisIndexReader;
+import net.dataforte.infinispan.amanuensis.IndexerException;
+import net.dataforte.infinispan.amanuensis.IndexOperations;
+import net.dataforte.infinispan.amanuensis.backend.lucene.LuceneOperationExecutorFactory;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.RAMDirectory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link AmanuensisIndexReader#get()} and
+ * {@link AmanuensisIndexReader#release(IndexReader)} when called by many
+ * threads at once, on an index which does not change and on one which is
+ * committed to continuously
+ * 
+ * @author Tristan Tarrant
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IndexReaderBenchmark {
+	@Param({ "false", "true" })
+	public boolean backgroundRefresh;
+
+	private BenchmarkNode node;
+	private IndexWriter writer;
+	private AmanuensisIndexReader reader;
+	private IndexOperations updates;
+	private final LuceneOperationExecutorFactory factory = new LuceneOperationExecutorFactory();
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException, IndexerException {
+		node = new BenchmarkNode("amanuensis-benchmark");
+		RAMDirectory directory = new RAMDirectory();
+		writer = new IndexWriter(directory, node.getManager().getAnalyzer(), IndexWriter.MaxFieldLength.UNLIMITED);
+		Documents documents = new Documents(42, 20);
+		factory.apply(writer, documents.adds("bench", 0, 10000).getOperations());
+		writer.commit();
+		updates = documents.updates("bench", 10, 10000);
+		reader = new AmanuensisIndexReader(node.getManager(), directory);
+		if (backgroundRefresh) {
+			reader.setBackgroundRefresh(true);
+			reader.setRefreshInterval(10);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		reader.close();
+		writer.close();
+		node.stop();
+	}
+
+	private int getAndRelease() throws IndexerException {
+		IndexReader r = reader.get();
+		try {
+			return r.maxDoc();
+		} finally {
+			reader.release(r);
+		}
+	}
+
+	@Benchmark
+	@Threads(8)
+	public int unchanged() throws IndexerException {
+		return getAndRelease();
+	}
+
+	@Benchmark
+	@Group("changing")
+	@GroupThreads(7)
+	public int changingRead() throws IndexerException {
+		return getAndRelease();
+	}
+
+	/**
+	 * Commits small batches of updates, so that the readers keep being
+	 * reopened
+	 */
+	@Benchmark
+	@Group("changing")
+	@GroupThreads(1)
+	public void changingWrite() throws IOException {
+		factory.apply(writer, updates.getOperations());
+		writer.commit();
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.benchmarks;
+
+import java.util.Arrays;
+
+/**
+ * Collects latency samples (in nanoseconds) from several threads and computes
+ * their percentiles
+ * 
+ * @author Tristan Tarrant
+ */
+public class LatencyRecorder {
+	private long[] samples = new long[1024];
+	private int count;
+
+	public synchronized void record(long nanos) {
+		if (count == samples.length) {
+			samples = Arrays.copyOf(samples, count << 1);
+		}
+		samples[count++] = nanos;
+	}
+
+	public synchronized int getCount() {
+		return count;
+	}
+
+	public synchronized void reset() {
+		count = 0;
+	}
+
+	/**
+	 * Returns the percentiles of the recorded samples
+	 * 
+	 * @param percentiles
+	 *            between 0 and 100
+	 * @return the corresponding latencies, in nanoseconds, or -1 if there
+	 *         are no samples
+	 */
+	public synchronized long[] percentiles(double... percentiles) {
+		long[] sorted = Arrays.copyOf(samples, count);
+		Arrays.sort(sorted);
+		long[] values = new long[percentiles.length];
+		for (int i = 0; i < percentiles.length; i++) {
+			if (count == 0) {
+				values[i] = -1;
+			} else {
+				int rank = (int) Math.ceil(percentiles[i] / 100 * count);
+				values[i] = sorted[Math.max(0, Math.min(count, rank) - 1)];
+			}
+		}
+		return values;
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.dataforte.infinispan.amanuensis.IndexOperation;
+import net.dataforte.infinispan.amanuensis.OperationType;
+import net.dataforte.infinispan.amanuensis.backend.lucene.LuceneOperationExecutorFactory;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures how {@link LuceneOperationExecutorFactory} hands operations to
+ * their executors: the lookup of the executor of each type and the
+ * application of runs of operations to an {@link IndexWriter} on a
+ * {@link RAMDirectory}, without commits
+ * 
+ * @author Tristan Tarrant
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OperationExecutorFactoryBenchmark {
+	@Param({ "adds", "updates" })
+	public String kind;
+
+	private final LuceneOperationExecutorFactory factory = new LuceneOperationExecutorFactory();
+	private final OperationType[] types = OperationType.values();
+	private List<IndexOperation> operations;
+	private IndexWriter writer;
+	private int nextId;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		writer = new IndexWriter(new RAMDirectory(), new StandardAnalyzer(Version.LUCENE_30), IndexWriter.MaxFieldLength.UNLIMITED);
+		Documents documents = new Documents(42, 100);
+		operations = ("adds".equals(kind) ? documents.adds("bench", 0, 100) : documents.updates("bench", 100, 1000)).getOperations();
+	}
+
+	@TearDown(Level.Iteration)
+	public void reset() throws IOException {
+		// Keeps the size of the index from skewing later iterations
+		writer.deleteAll();
+		writer.commit();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		writer.close();
+	}
+
+	@Benchmark
+	public void getExecutor(Blackhole blackhole) {
+		OperationType type = types[nextId++ % types.length];
+		blackhole.consume(factory.getExecutor(type));
+	}
+
+	/**
+	 * Applies a message of 100 operations
+	 */
+	@Benchmark
+	public void apply() throws IOException {
+		factory.apply(writer, operations);
+	}
+}
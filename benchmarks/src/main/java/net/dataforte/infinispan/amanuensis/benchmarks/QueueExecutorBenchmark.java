@@ -0,0 +1,118 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.dataforte.infinispan.amanuensis.ExecutorContext;
+import net.dataforte.infinispan.amanuensis.IndexOperations;
+import net.dataforte.infinispan.amanuensis.IndexerException;
+import net.dataforte.infinispan.amanuensis.backend.lucene.DirectoryOperationQueueExecutor;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.infinispan.lucene.InfinispanDirectory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput, in messages per second, of the master's apply and
+ * commit cycle: batches of messages are applied by a
+ * {@link DirectoryOperationQueueExecutor} and committed, to a
+ * {@link RAMDirectory} or to an {@link InfinispanDirectory} on a cache of the
+ * benchmark's own node
+ * 
+ * @author Tristan Tarrant
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueueExecutorBenchmark {
+	private static final int MESSAGES = 16;
+
+	@Param({ "ram", "infinispan" })
+	public String directory;
+
+	@Param({ "1", "16" })
+	public int batchSize;
+
+	@Param({ "10" })
+	public int operationsPerMessage;
+
+	private BenchmarkNode node;
+	private ExecutorContext context;
+	private final List<IndexOperations> messages = new ArrayList<IndexOperations>();
+
+	@Setup(Level.Trial)
+	public void setup() throws IndexerException {
+		node = new BenchmarkNode("amanuensis-benchmark");
+		Directory dir;
+		if ("infinispan".equals(directory)) {
+			dir = new InfinispanDirectory(node.getCache(), "bench");
+		} else {
+			dir = new RAMDirectory();
+		}
+		// Registers the index, so that commits are announced as usual
+		node.getManager().getIndexWriter(dir);
+		context = new ExecutorContext(node.getManager(), dir, node.getManager().getAnalyzer(), null);
+		context.setKeyField(Documents.KEY_FIELD);
+		Documents documents = new Documents(42, 100);
+		for (int i = 0; i < MESSAGES; i++) {
+			messages.add(documents.updates(context.getIndexName(), operationsPerMessage, 10000));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		context.close();
+		node.stop();
+	}
+
+	/**
+	 * Applies the messages in batches of {@link #batchSize}, one commit per
+	 * batch
+	 */
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public void applyAndCommit() throws Exception {
+		for (int i = 0; i < MESSAGES; i += batchSize) {
+			new DirectoryOperationQueueExecutor(context, messages.subList(i, Math.min(i + batchSize, MESSAGES))).call();
+		}
+	}
+}
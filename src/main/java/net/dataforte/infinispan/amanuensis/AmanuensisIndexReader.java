@@ -24,11 +24,16 @@ package net.dataforte.infinispan.amanuensis;
 import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import net.dataforte.commons.slf4j.LoggerFactory;
+import net.dataforte.infinispan.amanuensis.jmx.Meter;
 
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.store.Directory;
@@ -51,19 +56,210 @@ public class AmanuensisIndexReader {
 	protected final Map<IndexReader, ReaderUsagePair> allReaders = new ConcurrentHashMap<IndexReader, ReaderUsagePair>();
 	protected PerDirectoryLatestReader currentReader;
 
+	/**
+	 * Marks a {@link ReaderUsagePair} which was opened from the
+	 * {@link Directory} rather than from the {@link IndexWriter}
+	 */
+	private static final long DIRECTORY_READER = -1;
+
 	AmanuensisManager amanuensisManager;
+	private final String indexName;
+	private volatile boolean nearRealTime = false;
+	private volatile boolean backgroundRefresh = false;
+	private long refreshInterval = 0;
+	private ScheduledFuture<?> refreshTask;
+	private final AtomicLong lastCommitVersion = new AtomicLong(-1);
+	private volatile long versionCheckInterval = 10000;
+	private final AtomicLong lastVersionCheck = new AtomicLong(System.currentTimeMillis());
+	private volatile long replicationLag = -1;
+	private final Meter reopens = new Meter();
 
 	public AmanuensisIndexReader(AmanuensisManager amanuensisManager, Directory directory) throws IndexerException {
 		try {
 			this.amanuensisManager = amanuensisManager;
+			this.indexName = AmanuensisManager.getUniqueDirectoryIdentifier(directory);
 			this.currentReader = new PerDirectoryLatestReader(directory);
 		} catch (Exception e) {
 			throw new IndexerException("Could not create IndexReader", e);
 		}
 	}
 
+	public boolean isNearRealTime() {
+		return nearRealTime;
+	}
+
+	/**
+	 * Enables near-real-time readers. When enabled and the local node is the
+	 * master, readers are obtained from the live {@link IndexWriter} and
+	 * therefore see the operations which have been applied but not yet
+	 * committed. On the other nodes, readers are always reopened from the
+	 * {@link Directory}, and will only see committed changes.
+	 * 
+	 * @param nearRealTime
+	 */
+	public void setNearRealTime(boolean nearRealTime) {
+		this.nearRealTime = nearRealTime;
+	}
+
+	public boolean isBackgroundRefresh() {
+		return backgroundRefresh;
+	}
+
+	/**
+	 * Enables background refresh. When enabled, {@link #get()} never blocks nor
+	 * checks the index for changes: it just acquires the current reader, which
+	 * is replaced by {@link #refresh()}, invoked either periodically (see
+	 * {@link #setRefreshInterval(long)}) or by the application, for example
+	 * when notified of a commit.
+	 * 
+	 * @param backgroundRefresh
+	 */
+	public void setBackgroundRefresh(boolean backgroundRefresh) {
+		this.backgroundRefresh = backgroundRefresh;
+	}
+
+	public synchronized long getRefreshInterval() {
+		return refreshInterval;
+	}
+
+	/**
+	 * Sets the interval (in milliseconds) at which the reader is refreshed in
+	 * the background. A value of 0 (the default) disables the periodic
+	 * refresh.
+	 * 
+	 * @param refreshInterval
+	 */
+	public synchronized void setRefreshInterval(long refreshInterval) {
+		if (refreshInterval < 0) {
+			throw new IllegalArgumentException("refreshInterval cannot be negative");
+		}
+		if (refreshTask != null) {
+			refreshTask.cancel(false);
+			refreshTask = null;
+		}
+		this.refreshInterval = refreshInterval;
+		if (refreshInterval > 0) {
+			refreshTask = amanuensisManager.getScheduler().scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						refresh();
+					} catch (Throwable t) {
+						log.warn("Unable to refresh IndexReader for index " + indexName, t);
+					}
+				}
+			}, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public long getVersionCheckInterval() {
+		return versionCheckInterval;
+	}
+
+	/**
+	 * Sets the interval (in milliseconds) after which {@link #get()} checks
+	 * the index for changes even if no commit has been announced. It only
+	 * applies when commit notifications are enabled, and guards against
+	 * notifications which have been lost. Defaults to 10000; a value of 0
+	 * disables the check.
+	 * 
+	 * @param versionCheckInterval
+	 */
+	public void setVersionCheckInterval(long versionCheckInterval) {
+		if (versionCheckInterval < 0) {
+			throw new IllegalArgumentException("versionCheckInterval cannot be negative");
+		}
+		this.versionCheckInterval = versionCheckInterval;
+	}
+
+	/**
+	 * Returns a reader for the index, which must be returned with
+	 * {@link #release(IndexReader)} after use. Unless background refresh is
+	 * enabled, the reader is reopened if the index may have changed: when
+	 * commit notifications are enabled, this is only the case once a newer
+	 * version has been announced or the version check interval has elapsed.
+	 * 
+	 * @return
+	 * @throws IndexerException
+	 */
 	public IndexReader get() throws IndexerException {
-		return currentReader.refreshAndGet();
+		if (backgroundRefresh || !isReopenNeeded()) {
+			return currentReader.acquireCurrent();
+		} else {
+			return currentReader.refreshAndGet();
+		}
+	}
+
+	/**
+	 * Checks whether the current reader may be out of date
+	 */
+	private boolean isReopenNeeded() throws IndexerException {
+		if (!amanuensisManager.isCommitNotification() || nearRealTimeContext() != null) {
+			// Near-real-time readers only reopen when the writer has changed
+			return true;
+		}
+		ReaderUsagePair current = currentReader.current;
+		// A near-real-time reader must be replaced by one opened from the
+		// directory once this node is no longer the master
+		if (current.changeCount != DIRECTORY_READER || current.reader.getVersion() < lastCommitVersion.get()) {
+			return true;
+		}
+		return isVersionCheckDue();
+	}
+
+	/**
+	 * Returns true to a single caller once the version check interval has
+	 * elapsed since the previous check
+	 */
+	private boolean isVersionCheckDue() {
+		long interval = versionCheckInterval;
+		if (interval == 0) {
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		long last = lastVersionCheck.get();
+		return now - last >= interval && lastVersionCheck.compareAndSet(last, now);
+	}
+
+	/**
+	 * Records the version of the last commit of the index, so that commits
+	 * which have not been announced to this reader are picked up by the next
+	 * {@link #get()}. Invoked once the reader has been registered for commit
+	 * notifications.
+	 * 
+	 * @throws IndexerException
+	 */
+	void checkCurrentVersion() throws IndexerException {
+		try {
+			announceVersion(IndexReader.getCurrentVersion(currentReader.directory));
+		} catch (IOException e) {
+			throw new IndexerException("Could not read the version of index " + indexName, e);
+		}
+	}
+
+	/**
+	 * Records a newly announced version
+	 * 
+	 * @return true if the version is newer than the ones already announced
+	 */
+	private boolean announceVersion(long version) {
+		long last;
+		do {
+			last = lastCommitVersion.get();
+			if (version <= last) {
+				return false;
+			}
+		} while (!lastCommitVersion.compareAndSet(last, version));
+		return true;
+	}
+
+	/**
+	 * Replaces the current reader with a reopened one if the index has changed
+	 * 
+	 * @throws IndexerException
+	 */
+	public void refresh() throws IndexerException {
+		currentReader.refresh();
 	}
 
 	public void release(IndexReader r) {
@@ -73,9 +269,108 @@ public class AmanuensisIndexReader {
 	}
 
 	public void close() {
+		synchronized (this) {
+			if (refreshTask != null) {
+				refreshTask.cancel(false);
+				refreshTask = null;
+			}
+		}
 		currentReader.current.close();
 	}
 
+	/**
+	 * Returns the {@link ExecutorContext} from which near-real-time readers
+	 * should be opened, or null if readers must be opened from the directory
+	 */
+	protected ExecutorContext nearRealTimeContext() throws IndexerException {
+		if (nearRealTime && amanuensisManager.isMaster(indexName)) {
+			return amanuensisManager.getLocalOperationDispatcher().getExecutorContext(indexName);
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the most recent index version announced by the master, or -1
+	 * if no {@link CommitNotification} has been received
+	 * 
+	 * @return
+	 */
+	public long getLastCommitVersion() {
+		return lastCommitVersion.get();
+	}
+
+	/**
+	 * Returns the time (in milliseconds) between the most recent commit on the
+	 * master and the moment it became visible to this reader, or -1 if
+	 * unknown. The measure relies on the clocks of the nodes being in sync.
+	 * 
+	 * @return
+	 */
+	public long getReplicationLag() {
+		return replicationLag;
+	}
+
+	/**
+	 * Returns the number and rate of the times a new reader has replaced the
+	 * current one
+	 */
+	public Meter getReopens() {
+		return reopens;
+	}
+
+	/**
+	 * Returns the number of readers which are still open: the current one and
+	 * the older ones which are still in use
+	 */
+	public int getOpenReaderCount() {
+		return allReaders.size();
+	}
+
+	/**
+	 * Returns the number of readers which have been acquired and not yet
+	 * released
+	 */
+	public int getReferenceCount() {
+		int count = 0;
+		for (ReaderUsagePair pair : allReaders.values()) {
+			count += pair.usageCounter.get();
+		}
+		// Ignore the token which marks the current reader
+		return Math.max(0, count - 1);
+	}
+
+	/**
+	 * Invoked when the master has committed changes to this index. The reader
+	 * is refreshed in the background, unless it already has the announced
+	 * version.
+	 * 
+	 * @param notification
+	 */
+	public void commitNotified(final CommitNotification notification) {
+		if (!announceVersion(notification.getVersion())) {
+			return;
+		}
+		if (currentReader.current.reader.getVersion() >= notification.getVersion()) {
+			return;
+		}
+		try {
+			amanuensisManager.getScheduler().execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						refresh();
+						replicationLag = System.currentTimeMillis() - notification.getTimestamp();
+					} catch (Throwable t) {
+						log.warn("Unable to refresh IndexReader for index " + indexName, t);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			log.debug("Ignoring {}, manager is closed", notification);
+		}
+	}
+
 	// overridable method for testability:
 	protected IndexReader readerFactory(final Directory directory) throws IOException {
 		return IndexReader.open(directory, true);
@@ -94,9 +389,36 @@ public class AmanuensisIndexReader {
 		 * when creating it will be used (+1)
 		 */
 		protected final AtomicInteger usageCounter = new AtomicInteger(2);
+		/**
+		 * The {@link ExecutorContext#getChangeCount()} at which a
+		 * near-real-time reader was opened, or {@link #DIRECTORY_READER}
+		 */
+		protected final long changeCount;
 
 		ReaderUsagePair(IndexReader r) {
+			this(r, DIRECTORY_READER);
+		}
+
+		ReaderUsagePair(IndexReader r, long changeCount) {
 			reader = r;
+			this.changeCount = changeCount;
+		}
+
+		/**
+		 * Acquires a usage token unless the reader has already been closed
+		 * 
+		 * @return true if the token was acquired
+		 */
+		boolean tryAcquire() {
+			for (;;) {
+				int count = usageCounter.get();
+				if (count <= 0) {
+					return false;
+				}
+				if (usageCounter.compareAndSet(count, count + 1)) {
+					return true;
+				}
+			}
 		}
 
 		/**
@@ -139,9 +461,10 @@ public class AmanuensisIndexReader {
 
 		/**
 		 * Reference to the most current IndexReader for a DirectoryProvider;
-		 * guarded by lockOnReplaceCurrent;
+		 * replaced only while holding lockOnReplaceCurrent, but may be read
+		 * without it;
 		 */
-		public ReaderUsagePair current; // guarded by lockOnReplaceCurrent
+		public volatile ReaderUsagePair current; // written under lockOnReplaceCurrent
 		private final Lock lockOnReplaceCurrent = new ReentrantLock();
 		private Directory directory;
 
@@ -175,30 +498,85 @@ public class AmanuensisIndexReader {
 		 * @throws IndexerException
 		 */
 		public IndexReader refreshAndGet() throws IndexerException {
+			return reopen(true);
+		}
+
+		/**
+		 * Replaces the current IndexReader with an updated one, if necessary,
+		 * without acquiring it.
+		 * 
+		 * @throws IndexerException
+		 */
+		public void refresh() throws IndexerException {
+			reopen(false);
+		}
+
+		/**
+		 * Acquires the current IndexReader without checking the index status
+		 * and without blocking.
+		 * 
+		 * @return
+		 */
+		public IndexReader acquireCurrent() {
+			for (;;) {
+				ReaderUsagePair pair = current;
+				if (pair.tryAcquire()) {
+					return pair.reader;
+				}
+				// the pair was replaced and closed in the meantime, try the
+				// new one
+			}
+		}
+
+		private IndexReader reopen(boolean acquire) throws IndexerException {
 			ReaderUsagePair previousCurrent;
 			IndexReader updatedReader;
+			long updatedChangeCount = DIRECTORY_READER;
 			lockOnReplaceCurrent.lock();
 			try {
 				IndexReader beforeUpdateReader = current.reader;
 				try {
-					updatedReader = beforeUpdateReader.reopen();
-				} catch (IOException e) {
+					ExecutorContext context = nearRealTimeContext();
+					if (context != null) {
+						// Read the counter before opening, so that changes
+						// applied in the meantime trigger another reopen
+						updatedChangeCount = context.getChangeCount();
+						if (updatedChangeCount == current.changeCount) {
+							updatedReader = beforeUpdateReader;
+						} else {
+							updatedReader = context.openNearRealTimeReader();
+						}
+					} else if (current.changeCount != DIRECTORY_READER) {
+						// No longer the master: the writer may be gone, so
+						// start again from the directory
+						updatedReader = readerFactory(directory);
+					} else {
+						updatedReader = beforeUpdateReader.reopen();
+					}
+				} catch (Exception e) {
 					// FIXME: see if there are better options
 					log.warn("Unable to reopen IndexReader for index "+AmanuensisManager.getUniqueDirectoryIdentifier(directory)+", using old one", e);
 					updatedReader = beforeUpdateReader;
 				}
 				if (beforeUpdateReader == updatedReader) {
 					previousCurrent = null;
-					current.usageCounter.incrementAndGet();
+					if (acquire) {
+						current.usageCounter.incrementAndGet();
+					}
 				} else {
-					ReaderUsagePair newPair = new ReaderUsagePair(updatedReader);
+					ReaderUsagePair newPair = new ReaderUsagePair(updatedReader, updatedChangeCount);
 					// no need to increment usageCounter in newPair, as it is
 					// constructed with correct number 2.
 					assert newPair.usageCounter.get() == 2;
+					if (!acquire) {
+						newPair.usageCounter.set(1);
+					}
+					// register the pair before publishing it, as a lock-free
+					// acquireCurrent() may release it right away
+					allReaders.put(updatedReader, newPair);
 					previousCurrent = current;
 					current = newPair;
-					allReaders.put(updatedReader, newPair);// unfortunately
-															// still needs lock
+					reopens.mark();
 				}
 			} finally {
 				lockOnReplaceCurrent.unlock();
@@ -21,19 +21,47 @@
 
 package net.dataforte.infinispan.amanuensis;
 
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
 import net.dataforte.commons.slf4j.LoggerFactory;
+import net.dataforte.infinispan.amanuensis.analysis.DocumentAnalyzer;
+import net.dataforte.infinispan.amanuensis.codec.IndexOperationsCodec;
 import net.dataforte.infinispan.amanuensis.ops.AddDocumentOperation;
+import net.dataforte.infinispan.amanuensis.ops.AddIndexesOperation;
+import net.dataforte.infinispan.amanuensis.ops.CommitOperation;
 import net.dataforte.infinispan.amanuensis.ops.DeleteDocumentsQueriesOperation;
 import net.dataforte.infinispan.amanuensis.ops.DeleteDocumentsTermsOperation;
+import net.dataforte.infinispan.amanuensis.ops.SegmentChunkOperation;
+import net.dataforte.infinispan.amanuensis.ops.UpdateDocumentOperation;
 
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.RAMDirectory;
 import org.slf4j.Logger;
 
 public class AmanuensisIndexWriter {
 	private static final Logger log = LoggerFactory.make();
+	private static final SecureRandom TRANSFER_IDS = new SecureRandom();
+	private static final IndexWriter.MaxFieldLength MAX_FIELD_LENGTH = new IndexWriter.MaxFieldLength(IndexWriter.DEFAULT_MAX_FIELD_LENGTH);
 
 	private AmanuensisManager manager;
 	private String directoryId;
@@ -41,6 +69,23 @@ public class AmanuensisIndexWriter {
 
 	private Directory directory;
 
+	private volatile boolean preAnalysis = false;
+	private int segmentChunkSize = 512 * 1024;
+	private volatile boolean autoBatching = false;
+	private int autoBatchMaxOperations = 1000;
+	private int autoBatchMaxBytes = 1024 * 1024;
+	private long autoBatchLinger = 10;
+	private final Object autoBatchLock = new Object();
+	private IndexOperations autoBatch; // guarded by autoBatchLock
+	private int autoBatchBytes; // guarded by autoBatchLock
+	private final LinkedList<IndexOperations> unsent = new LinkedList<IndexOperations>(); // guarded by autoBatchLock
+	private final List<DispatchFuture> outstanding = new LinkedList<DispatchFuture>(); // guarded by autoBatchLock
+	private Throwable autoBatchFailure; // guarded by autoBatchLock
+	private final Lock sendLock = new ReentrantLock();
+	// Sends the lingering auto-batches, as sending may block and the
+	// scheduler must not. Its thread ends when idle.
+	private final ThreadPoolExecutor autoBatchSender = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ExecutorContext.ExecutorThreadFactory("AutoBatchSender"));
+
 	public AmanuensisIndexWriter(AmanuensisManager manager, Directory directory) throws IndexerException {
 		this.manager = manager;
 		this.directoryId = AmanuensisManager.getUniqueDirectoryIdentifier(directory);
@@ -56,6 +101,141 @@ public class AmanuensisIndexWriter {
 		return directory;
 	}
 
+	public boolean isPreAnalysis() {
+		return preAnalysis;
+	}
+
+	/**
+	 * Enables or disables pre-analysis: when enabled, the tokenized fields of
+	 * the documents added on a slave are analyzed locally with the manager's
+	 * {@link org.apache.lucene.analysis.Analyzer} and their tokens are sent to
+	 * the master in place of the raw text, so that the master only needs to
+	 * invert them. The slave's analyzer must therefore be configured exactly
+	 * like the master's. Documents added on the master are not affected.
+	 * 
+	 * @param preAnalysis
+	 */
+	public void setPreAnalysis(boolean preAnalysis) {
+		this.preAnalysis = preAnalysis;
+	}
+
+	public int getSegmentChunkSize() {
+		return segmentChunkSize;
+	}
+
+	/**
+	 * Sets the size (in bytes) of the chunks in which index files are shipped
+	 * to the master by {@link #addIndexes(Directory...)}
+	 * 
+	 * @param segmentChunkSize
+	 */
+	public void setSegmentChunkSize(int segmentChunkSize) {
+		if (segmentChunkSize < 1) {
+			throw new IllegalArgumentException("segmentChunkSize must be at least 1");
+		}
+		this.segmentChunkSize = segmentChunkSize;
+	}
+
+	public boolean isAutoBatching() {
+		return autoBatching;
+	}
+
+	/**
+	 * Enables or disables auto-batching: operations which are not part of an
+	 * explicit batch (see {@link #startBatch()}) are accumulated across all
+	 * threads and sent as a single message when
+	 * {@link #getAutoBatchMaxOperations()} operations or
+	 * {@link #getAutoBatchMaxBytes()} bytes have been collected, or when
+	 * {@link #getAutoBatchLinger()} milliseconds have passed since the first
+	 * operation was added, whichever comes first. Disabling auto-batching
+	 * sends any pending operations.
+	 * 
+	 * @param autoBatching
+	 * @throws IndexerException
+	 * @see #flush()
+	 */
+	public void setAutoBatching(boolean autoBatching) throws IndexerException {
+		this.autoBatching = autoBatching;
+		if (!autoBatching) {
+			synchronized (autoBatchLock) {
+				closeAutoBatch();
+			}
+			sendAutoBatches(true);
+		}
+	}
+
+	public int getAutoBatchMaxOperations() {
+		return autoBatchMaxOperations;
+	}
+
+	public void setAutoBatchMaxOperations(int autoBatchMaxOperations) {
+		if (autoBatchMaxOperations < 1) {
+			throw new IllegalArgumentException("autoBatchMaxOperations must be at least 1");
+		}
+		this.autoBatchMaxOperations = autoBatchMaxOperations;
+	}
+
+	public int getAutoBatchMaxBytes() {
+		return autoBatchMaxBytes;
+	}
+
+	/**
+	 * Sets the estimated encoded size, in bytes, at which an auto-batch is sent
+	 * 
+	 * @param autoBatchMaxBytes
+	 */
+	public void setAutoBatchMaxBytes(int autoBatchMaxBytes) {
+		if (autoBatchMaxBytes < 1) {
+			throw new IllegalArgumentException("autoBatchMaxBytes must be at least 1");
+		}
+		this.autoBatchMaxBytes = autoBatchMaxBytes;
+	}
+
+	public long getAutoBatchLinger() {
+		return autoBatchLinger;
+	}
+
+	/**
+	 * Sets the maximum time (in milliseconds) an operation may wait in an
+	 * auto-batch before it is sent. A value of 0 disables the timer, so that
+	 * batches are only sent when full or when {@link #flush()} is invoked.
+	 * 
+	 * @param autoBatchLinger
+	 */
+	public void setAutoBatchLinger(long autoBatchLinger) {
+		if (autoBatchLinger < 0) {
+			throw new IllegalArgumentException("autoBatchLinger cannot be negative");
+		}
+		this.autoBatchLinger = autoBatchLinger;
+	}
+
+	/**
+	 * Sends any operations which are waiting in the auto-batch and waits until
+	 * the master has accepted all of the auto-batched operations which were
+	 * issued before this call.
+	 * 
+	 * @throws IndexerException
+	 *             if any of the operations could not be delivered
+	 */
+	public void flush() throws IndexerException {
+		synchronized (autoBatchLock) {
+			closeAutoBatch();
+		}
+		sendAutoBatches(true);
+		List<DispatchFuture> pending;
+		Throwable failure;
+		synchronized (autoBatchLock) {
+			pending = new ArrayList<DispatchFuture>(outstanding);
+			outstanding.clear();
+			failure = autoBatchFailure;
+			autoBatchFailure = null;
+		}
+		if (failure != null) {
+			throw new IndexerException("Could not flush index " + directoryId, failure);
+		}
+		await(pending, "flush");
+	}
+
 	// IndexWriter methods
 
 	public boolean isBatching() {
@@ -97,7 +277,9 @@ public class AmanuensisIndexWriter {
 		if (!isBatching()) {
 			throw new IllegalStateException("Not in batching mode");
 		} else {
-			manager.dispatchOperations(batchOps.get());
+			IndexOperations ops = batchOps.get();
+			sendPendingAutoBatches();
+			manager.dispatchOperations(new IndexOperations(this.directoryId, OperationCoalescer.coalesceOperations(ops.getOperations())));
 			batchOps.remove();
 			if (log.isDebugEnabled()) {
 				log.debug("Batching finished for index " + directoryId);
@@ -130,7 +312,7 @@ public class AmanuensisIndexWriter {
 	 * @throws IndexerException
 	 */
 	public void addDocument(Document doc) throws IndexerException {
-		dispatch(new AddDocumentOperation(doc));
+		dispatch(new AddDocumentOperation(analyze(doc)));
 	}
 
 	/**
@@ -145,11 +327,25 @@ public class AmanuensisIndexWriter {
 		}
 		IndexOperation ops[] = new IndexOperation[docs.length];
 		for (int i = 0; i < ops.length; i++) {
-			ops[i] = new AddDocumentOperation(docs[i]);
+			ops[i] = new AddDocumentOperation(analyze(docs[i]));
 		}
 		dispatch(ops);
 	}
 
+	/**
+	 * Updates a document by first deleting the document(s) containing the
+	 * specified {@link Term} and then adding the new document. Within a batch,
+	 * repeated updates of the same term are collapsed so that only the last
+	 * version of the document is sent and indexed.
+	 * 
+	 * @param term
+	 * @param doc
+	 * @throws IndexerException
+	 */
+	public void updateDocument(Term term, Document doc) throws IndexerException {
+		dispatch(new UpdateDocumentOperation(term, analyze(doc)));
+	}
+
 	/**
 	 * Deletes all documents from the index which match the given array of
 	 * {@link Query}
@@ -186,13 +382,284 @@ public class AmanuensisIndexWriter {
 		dispatch(ops);
 	}
 
+	/**
+	 * Requests a commit of the index as soon as the operations issued before
+	 * this call have been applied, whatever the
+	 * {@link net.dataforte.infinispan.amanuensis.CommitPolicy} of the index.
+	 * Like the other operations, it is part of the current batch, if any, and
+	 * is applied asynchronously.
+	 * 
+	 * @throws IndexerException
+	 */
+	public void commit() throws IndexerException {
+		dispatch(new CommitOperation());
+	}
+
+	/**
+	 * Adds many documents at once: the documents are indexed locally, in
+	 * memory, and the resulting segments are merged into the index by the
+	 * master with {@link #addIndexes(Directory...)}, so that the analysis and
+	 * inversion of the documents do not weigh on the master. The documents are
+	 * not part of the current batch, if any. This method returns once the
+	 * master has accepted the segments.
+	 * 
+	 * @param docs
+	 * @throws IndexerException
+	 */
+	public void addDocumentsInBulk(Collection<Document> docs) throws IndexerException {
+		if (docs.isEmpty()) {
+			return;
+		}
+		RAMDirectory local = new RAMDirectory();
+		try {
+			try {
+				IndexWriter w = new IndexWriter(local, manager.getAnalyzer(), true, MAX_FIELD_LENGTH);
+				try {
+					manager.getWriterConfigurator().configure(w);
+					for (Document doc : docs) {
+						w.addDocument(doc);
+					}
+				} finally {
+					w.close();
+				}
+			} catch (IOException e) {
+				throw new IndexerException("Could not index documents locally for index " + directoryId, e);
+			}
+			addIndexes(local);
+		} finally {
+			local.close();
+		}
+	}
+
+	/**
+	 * Merges the latest commit of each of the specified indexes, which may
+	 * have been built in a local {@link RAMDirectory} or
+	 * {@link org.apache.lucene.store.FSDirectory}, into the index. The index
+	 * files are shipped to the master in chunks of
+	 * {@link #getSegmentChunkSize()} bytes and are added with
+	 * {@link IndexWriter#addIndexesNoOptimize(Directory...)} once they have
+	 * all been received. The indexes must not be modified until this method
+	 * returns, which happens once the master has accepted the request to add
+	 * them. The operations are not part of the current batch, if any.
+	 * 
+	 * @param dirs
+	 * @throws IndexerException
+	 */
+	public void addIndexes(Directory... dirs) throws IndexerException {
+		sendPendingAutoBatches();
+		for (Directory dir : dirs) {
+			long transferId = TRANSFER_IDS.nextLong();
+			List<DispatchFuture> chunks = new ArrayList<DispatchFuture>();
+			String[] fileNames;
+			long[] fileLengths;
+			try {
+				IndexCommit commit = null;
+				for (IndexCommit c : IndexReader.listCommits(dir)) {
+					if (commit == null || c.getGeneration() > commit.getGeneration()) {
+						commit = c;
+					}
+				}
+				if (commit == null) {
+					throw new IndexerException("Directory " + dir + " has no commit to add to index " + directoryId);
+				}
+				fileNames = commit.getFileNames().toArray(new String[0]);
+				fileLengths = new long[fileNames.length];
+				for (int i = 0; i < fileNames.length; i++) {
+					fileLengths[i] = shipFile(dir, transferId, fileNames[i], chunks);
+				}
+			} catch (IOException e) {
+				throw new IndexerException("Could not read segments to add to index " + directoryId, e);
+			}
+			// All the chunks must have been accepted before the master is
+			// asked to add them
+			await(chunks, "ship segments to");
+			DispatchFuture added = manager.dispatchOperations(new IndexOperations(this.directoryId, new AddIndexesOperation(transferId, fileNames, fileLengths)));
+			await(Collections.singletonList(added), "add segments to");
+			if (log.isDebugEnabled()) {
+				log.debug("Shipped {} files to add to index {}", fileNames.length, directoryId);
+			}
+		}
+	}
+
 	// INTERNAL METHODS
+	private long shipFile(Directory dir, long transferId, String fileName, List<DispatchFuture> futures) throws IOException, IndexerException {
+		IndexInput in = dir.openInput(fileName);
+		try {
+			long length = in.length();
+			long offset = 0;
+			do {
+				byte[] data = new byte[(int) Math.min(segmentChunkSize, length - offset)];
+				in.readBytes(data, 0, data.length);
+				futures.add(manager.dispatchOperations(new IndexOperations(this.directoryId, new SegmentChunkOperation(transferId, fileName, offset, data))));
+				offset += data.length;
+			} while (offset < length);
+			return length;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void await(List<DispatchFuture> futures, String what) throws IndexerException {
+		for (DispatchFuture future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IndexerException("Interrupted while waiting to " + what + " index " + directoryId, e);
+			} catch (ExecutionException e) {
+				throw new IndexerException("Could not " + what + " index " + directoryId, e.getCause());
+			}
+		}
+	}
+
+	private Document analyze(Document doc) throws IndexerException {
+		if (!preAnalysis || manager.isMaster(directoryId)) {
+			return doc;
+		}
+		try {
+			return new DocumentAnalyzer(manager.getAnalyzer()).analyze(doc);
+		} catch (IOException e) {
+			throw new IndexerException("Could not analyze document for index " + directoryId, e);
+		}
+	}
+
 	private void dispatch(IndexOperation... ops) throws IndexerException {
 		if (isBatching()) {
 			batchOps.get().addOperations(ops);
+		} else if (autoBatching) {
+			autoBatch(ops);
 		} else {
+			// Auto-batching may just have been disabled by another thread
+			sendPendingAutoBatches();
 			manager.dispatchOperations(new IndexOperations(this.directoryId, ops));
 		}
 	}
 
+	/**
+	 * Closes and sends the pending auto-batch, waiting for any send which is
+	 * in progress, so that the operations which are dispatched next, outside
+	 * of it, cannot overtake the auto-batched ones
+	 */
+	private void sendPendingAutoBatches() {
+		synchronized (autoBatchLock) {
+			closeAutoBatch();
+		}
+		sendAutoBatches(true);
+	}
+
+	private void autoBatch(IndexOperation... ops) throws IndexerException {
+		boolean full;
+		synchronized (autoBatchLock) {
+			if (autoBatch == null) {
+				autoBatch = new IndexOperations(this.directoryId);
+				autoBatchBytes = 0;
+				scheduleLinger(autoBatch);
+			}
+			autoBatch.addOperations(ops);
+			for (IndexOperation op : ops) {
+				autoBatchBytes += IndexOperationsCodec.estimateSize(op);
+			}
+			full = autoBatch.getOperations().size() >= autoBatchMaxOperations || autoBatchBytes >= autoBatchMaxBytes;
+			if (full) {
+				closeAutoBatch();
+			}
+		}
+		if (full) {
+			sendAutoBatches(false);
+		}
+	}
+
+	// guarded by autoBatchLock
+	private void closeAutoBatch() {
+		IndexOperations ops = autoBatch;
+		if (ops == null) {
+			return;
+		}
+		autoBatch = null;
+		unsent.add(new IndexOperations(this.directoryId, OperationCoalescer.coalesceOperations(ops.getOperations())));
+	}
+
+	/**
+	 * Sends the closed auto-batches in order, outside of the auto-batch lock
+	 * so that other threads may keep adding operations meanwhile. Unless
+	 * wait is true, it returns immediately if another thread is already
+	 * sending, as that thread will also send the batches closed by this one.
+	 */
+	private void sendAutoBatches(boolean wait) {
+		do {
+			if (wait) {
+				sendLock.lock();
+				wait = false;
+			} else if (!sendLock.tryLock()) {
+				return;
+			}
+			try {
+				while (true) {
+					IndexOperations ops;
+					synchronized (autoBatchLock) {
+						ops = unsent.poll();
+					}
+					if (ops == null) {
+						break;
+					}
+					DispatchFuture future;
+					try {
+						future = manager.dispatchOperations(ops);
+						if (log.isTraceEnabled()) {
+							log.trace("Sent auto-batch of {} operations for index {}", ops.getOperations().size(), directoryId);
+						}
+					} catch (IndexerException e) {
+						log.error("Could not send auto-batch for index " + directoryId, e);
+						future = DispatchFuture.failed(e);
+					}
+					synchronized (autoBatchLock) {
+						for (Iterator<DispatchFuture> it = outstanding.iterator(); it.hasNext();) {
+							DispatchFuture done = it.next();
+							if (done.isDone()) {
+								// Failures are kept until the next flush()
+								if (!done.isSuccess() && autoBatchFailure == null) {
+									autoBatchFailure = done.getFailure();
+								}
+								it.remove();
+							}
+						}
+						outstanding.add(future);
+					}
+				}
+			} finally {
+				sendLock.unlock();
+			}
+		} while (hasUnsentAutoBatches());
+	}
+
+	private boolean hasUnsentAutoBatches() {
+		synchronized (autoBatchLock) {
+			return !unsent.isEmpty();
+		}
+	}
+
+	private void scheduleLinger(final IndexOperations batch) {
+		if (autoBatchLinger <= 0) {
+			return;
+		}
+		// Only closes the batch on the scheduler, which must never block
+		manager.getScheduler().schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (autoBatchLock) {
+					if (autoBatch != batch) {
+						return;
+					}
+					closeAutoBatch();
+				}
+				autoBatchSender.execute(new Runnable() {
+					@Override
+					public void run() {
+						sendAutoBatches(false);
+					}
+				});
+			}
+		}, autoBatchLinger, TimeUnit.MILLISECONDS);
+	}
+
 }
@@ -21,9 +21,19 @@
 
 package net.dataforte.infinispan.amanuensis;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import net.dataforte.commons.collections.Computable;
 import net.dataforte.commons.collections.Memoizer;
@@ -31,15 +41,23 @@ import net.dataforte.commons.slf4j.LoggerFactory;
 import net.dataforte.infinispan.amanuensis.backend.jgroups.JGroupsOperationDispatcher;
 import net.dataforte.infinispan.amanuensis.backend.jgroups.JGroupsOperationReceiver;
 import net.dataforte.infinispan.amanuensis.backend.lucene.LuceneOperationDispatcher;
+import net.dataforte.infinispan.amanuensis.jmx.IndexStatistics;
+import net.dataforte.infinispan.amanuensis.jmx.MBeanRegistry;
+import net.dataforte.infinispan.amanuensis.jmx.ManagerStatistics;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.SimpleAnalyzer;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.RAMDirectory;
 import org.infinispan.lifecycle.ComponentStatus;
 import org.infinispan.lucene.InfinispanDirectory;
 import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachemanagerlistener.annotation.ViewChanged;
+import org.infinispan.notifications.cachemanagerlistener.event.ViewChangedEvent;
 import org.infinispan.remoting.transport.Address;
 import org.slf4j.Logger;
 
@@ -60,11 +78,18 @@ public class AmanuensisManager {
 	private ConcurrentMap<String, Directory> directoryMap = new ConcurrentHashMap<String, Directory>();
 	private Memoizer<String, AmanuensisIndexWriter> writerMap;
 	private Memoizer<String, AmanuensisIndexReader> readerMap;
+	private ConcurrentMap<String, AmanuensisIndexReader> openReaders = new ConcurrentHashMap<String, AmanuensisIndexReader>();
 	private JGroupsOperationReceiver remoteOperationProcessor;
 	private OperationDispatcher remoteOperationDispatcher;
 	private LuceneOperationDispatcher localOperationDispatcher;
 	private WriterConfigurator writerConfigurator = new DefaultWriterConfigurator();
 	private Analyzer analyzer = SIMPLE_ANALYZER;
+	private final ScheduledExecutorService scheduler;
+	private boolean commitNotification = true;
+	private final IndexOwnership ownership = new IndexOwnership();
+	private long handoffTimeout = 10000;
+	private String jmxDomain = "net.dataforte.infinispan.amanuensis";
+	private final MBeanRegistry mbeans = new MBeanRegistry();
 
 	/**
 	 * Constructs an {@link AmanuensisManager} using the specified
@@ -85,6 +110,8 @@ public class AmanuensisManager {
 		this.remoteOperationProcessor = new JGroupsOperationReceiver(this, INFINISPAN_INDEX_WRITER_SCOPE_ID);
 		this.remoteOperationDispatcher = new JGroupsOperationDispatcher(this, this.remoteOperationProcessor.getDispatcher());
 		this.localOperationDispatcher = new LuceneOperationDispatcher(this);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ExecutorContext.ExecutorThreadFactory("Scheduler"));
+		this.cacheManager.addListener(new ViewListener());
 	}
 	
 	/**
@@ -97,9 +124,25 @@ public class AmanuensisManager {
 		for(Directory directory : directories) {
 			getIndexWriter(directory);
 			getIndexReader(directory);
+			String indexName = getUniqueDirectoryIdentifier(directory);
+			if (isMaster(indexName)) {
+				List<Address> members = cacheManager.getMembers();
+				if (isDistributedOwnership() && members != null && members.size() > 1) {
+					// Joining a cluster: the index was owned by another member
+					List<Address> others = new ArrayList<Address>(members);
+					others.remove(getLocalAddress());
+					ownership.handedOver(indexName, ownership.ownerOf(indexName, others));
+				}
+				// replays any operations left in the index's write-ahead log
+				localOperationDispatcher.getExecutorContext(indexName);
+			}
 		}
 	}
 
+	public EmbeddedCacheManager getCacheManager() {
+		return cacheManager;
+	}
+
 	public OperationDispatcher getRemoteOperationDispatcher() {
 		return remoteOperationDispatcher;
 	}
@@ -124,6 +167,93 @@ public class AmanuensisManager {
 		this.writerConfigurator = writerConfigurator;
 	}
 
+	/**
+	 * Returns the scheduler used for the periodic and delayed housekeeping
+	 * tasks of this manager and of its writers and readers. Tasks must be
+	 * short-lived.
+	 * 
+	 * @return
+	 */
+	public ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+
+	public boolean isCommitNotification() {
+		return commitNotification;
+	}
+
+	/**
+	 * Sets whether the master broadcasts a {@link CommitNotification} to all
+	 * the nodes after each commit, so that their readers are refreshed as soon
+	 * as new changes are visible. Enabled by default. While enabled, readers
+	 * only check the index for changes once a commit has been announced, or
+	 * periodically in case a notification has been lost (see
+	 * {@link AmanuensisIndexReader#setVersionCheckInterval(long)}), so it must
+	 * be set in the same way on all the nodes.
+	 * 
+	 * @param commitNotification
+	 */
+	public void setCommitNotification(boolean commitNotification) {
+		this.commitNotification = commitNotification;
+	}
+
+	public boolean isDistributedOwnership() {
+		return ownership.isDistributed();
+	}
+
+	/**
+	 * Sets whether the mastership of the indexes is spread across the members
+	 * of the cluster by consistent hashing, so that each index is written by
+	 * its own owner, instead of all the indexes being written by the
+	 * coordinator. All the nodes must use the same setting. Disabled by
+	 * default.
+	 * 
+	 * @param distributedOwnership
+	 * @see IndexOwnership
+	 */
+	public void setDistributedOwnership(boolean distributedOwnership) {
+		ownership.setDistributed(distributedOwnership);
+	}
+
+	public long getHandoffTimeout() {
+		return handoffTimeout;
+	}
+
+	/**
+	 * Sets how long (in milliseconds) the new master of an index waits for
+	 * the previous one, which is still a member, to release the index lock
+	 * before giving up for the time being: the queued operations are kept and
+	 * applied later. The lock is only forced once the previous master has
+	 * left the cluster.
+	 * 
+	 * @param handoffTimeout
+	 */
+	public void setHandoffTimeout(long handoffTimeout) {
+		this.handoffTimeout = handoffTimeout;
+	}
+
+	/**
+	 * Returns whether the local node has taken over the index from a master
+	 * which is still a member, and which may therefore still hold the index
+	 * lock
+	 * 
+	 * @param indexName
+	 * @return
+	 */
+	public boolean isHandoffPending(String indexName) {
+		return ownership.isHandoffPending(indexName, cacheManager.getMembers());
+	}
+
+	/**
+	 * Invoked when the local node has obtained the lock of an index it has
+	 * taken over
+	 * 
+	 * @param indexName
+	 */
+	public void handoffCompleted(String indexName) {
+		ownership.handoffCompleted(indexName);
+	}
+
 	public Analyzer getAnalyzer() {
 		return analyzer;
 	}
@@ -140,12 +270,90 @@ public class AmanuensisManager {
 		this.analyzer = analyzer;
 	}
 
+	public String getJmxDomain() {
+		return jmxDomain;
+	}
+
+	/**
+	 * Sets the JMX domain under which the MBeans are registered. Must be set
+	 * before {@link #setMBeanServer(MBeanServer)}.
+	 * 
+	 * @param jmxDomain
+	 */
+	public void setJmxDomain(String jmxDomain) {
+		this.jmxDomain = jmxDomain;
+	}
+
+	public MBeanServer getMBeanServer() {
+		return mbeans.getServer();
+	}
+
+	/**
+	 * Registers the statistics of this manager and of each of its indexes as
+	 * MBeans with the specified server, e.g.
+	 * {@link java.lang.management.ManagementFactory#getPlatformMBeanServer()}.
+	 * Indexes which are added later are registered as they are added. Passing
+	 * null unregisters them.
+	 * 
+	 * @param mbeanServer
+	 * @throws IndexerException
+	 */
+	public synchronized void setMBeanServer(MBeanServer mbeanServer) throws IndexerException {
+		mbeans.setServer(mbeanServer);
+		if (mbeanServer != null) {
+			registerMBean(new ManagerStatistics(this), "type=Manager,name=" + ObjectName.quote(getManagerName()));
+			for (String indexName : directoryMap.keySet()) {
+				registerIndexMBean(indexName);
+			}
+		}
+	}
+
+	private String getManagerName() {
+		Address address = getLocalAddress();
+		return address != null ? address.toString() : "local";
+	}
+
+	/**
+	 * Registers the MBean of an index, unless there is no server or it has
+	 * already been registered, since both {@link #setMBeanServer(MBeanServer)}
+	 * and the first use of a directory may attempt it
+	 */
+	private void registerIndexMBean(String indexName) throws IndexerException {
+		registerMBean(new IndexStatistics(this, indexName), "type=Index,manager=" + ObjectName.quote(getManagerName()) + ",name=" + ObjectName.quote(indexName));
+	}
+
+	private void registerMBean(Object mbean, String properties) throws IndexerException {
+		try {
+			mbeans.register(mbean, new ObjectName(jmxDomain + ":" + properties));
+		} catch (JMException e) {
+			throw new IndexerException("Could not register MBean " + properties, e);
+		}
+	}
+
+	/**
+	 * Adds a directory, registering the MBean of its index the first time
+	 */
+	private void addDirectory(String directoryId, Directory directory) {
+		if (directoryMap.putIfAbsent(directoryId, directory) == null) {
+			try {
+				registerIndexMBean(directoryId);
+			} catch (IndexerException e) {
+				// The index is usable all the same
+				log.warn("Could not register the statistics of index " + directoryId, e);
+			}
+		}
+	}
+
 	/**
 	 * Stops this instance from receiving/sending indexing jobs to other nodes.
 	 * Should only be invoked just before stopping the underlying {@link EmbeddedCacheManager}
 	 */
 	public void close() {
+		mbeans.setServer(null);
 		this.remoteOperationProcessor.close();
+		this.remoteOperationDispatcher.close();
+		this.localOperationDispatcher.close();
+		this.scheduler.shutdown();
 	}
 
 	/**
@@ -161,7 +369,7 @@ public class AmanuensisManager {
 		}
 		String directoryId = getUniqueDirectoryIdentifier(directory);
 		try {			
-			directoryMap.putIfAbsent(directoryId, directory);
+			addDirectory(directoryId, directory);
 			return writerMap.compute(directoryId);
 		} catch (Exception e) {
 			log.error("Could not obtain an IndexWriter");
@@ -199,7 +407,7 @@ public class AmanuensisManager {
 		}
 		String directoryId = getUniqueDirectoryIdentifier(directory);
 		try {
-			directoryMap.putIfAbsent(directoryId, directory);
+			addDirectory(directoryId, directory);
 			return readerMap.compute(directoryId);
 		} catch (Exception e) {
 			log.error("Could not obtain an IndexReader");
@@ -227,6 +435,9 @@ public class AmanuensisManager {
 			return ((FSDirectory)directory).getFile().getAbsolutePath();
 		} else if (directory instanceof InfinispanDirectory) {
 			return ((InfinispanDirectory)directory).getIndexName();
+		} else if (directory instanceof RAMDirectory) {
+			// Only meaningful within this JVM: for tests and benchmarks
+			return directory.getLockID();
 		} else {
 			throw new RuntimeException("Unknown Directory implementation = "+directory.getClass().getName());
 		}
@@ -244,13 +455,46 @@ public class AmanuensisManager {
 	}
 
 	/**
-	 * Returns the cluster's {@link Address} of the master
+	 * Returns the names of the indexes known to this manager
+	 * 
+	 * @return
+	 */
+	public Set<String> getIndexNames() {
+		return directoryMap.keySet();
+	}
+
+	/**
+	 * Returns the reader of the specified index, or null if none has been
+	 * opened on this node
+	 * 
+	 * @param indexName
+	 * @return
+	 */
+	public AmanuensisIndexReader findIndexReader(String indexName) {
+		return openReaders.get(indexName);
+	}
+
+	/**
+	 * Returns the cluster's {@link Address} of the coordinator, which is the
+	 * master of all the indexes unless ownership is distributed
 	 * @return
 	 */
 	public Address getMasterAddress() {
 		return cacheManager.getCoordinator();
 	}
 
+	/**
+	 * Returns the cluster's {@link Address} of the master of the specified
+	 * index
+	 * 
+	 * @param indexName
+	 * @return
+	 */
+	public Address getMasterAddress(String indexName) {
+		Address owner = ownership.ownerOf(indexName, cacheManager.getMembers());
+		return owner != null ? owner : cacheManager.getCoordinator();
+	}
+
 	/**
 	 * Returns the cluster's {@link Address} of the local node
 	 * 
@@ -260,29 +504,175 @@ public class AmanuensisManager {
 		return cacheManager.getAddress();
 	}
 	
+	/**
+	 * Returns whether the local node is the coordinator
+	 * 
+	 * @return
+	 */
+	public boolean isMaster() {
+		return cacheManager.isCoordinator();
+	}
+
+	/**
+	 * Returns whether the local node is the master of the specified index, i.e.
+	 * the node which applies the operations to it
+	 * 
+	 * @param indexName
+	 * @return
+	 */
+	public boolean isMaster(String indexName) {
+		return getMasterAddress(indexName).equals(cacheManager.getAddress());
+	}
+	
 	public void checkIndex(String indexName, boolean fix) throws IndexerException {
-		if(cacheManager.isCoordinator()) {
+		if(isMaster(indexName)) {
 			this.localOperationDispatcher.checkIndex(indexName, fix);
 		} else {
-			throw new IndexerException("checkIndex can only be run by the coordinator");
+			throw new IndexerException("checkIndex can only be run by the master of index " + indexName);
 		}
 		
 	}
 
 	/**
-	 * Dispatches the message to the appropriate destination depending on the
-	 * role of this node.
+	 * Takes an online snapshot of the index into the archive directory:
+	 * indexing continues while the files of the last commit point are copied.
+	 * Only the files which have changed since the previous snapshot into the
+	 * same archive are copied.
+	 * 
+	 * @param indexName
+	 * @param archiveDirectory
+	 * @throws IndexerException
+	 */
+	public void snapshotIndex(String indexName, File archiveDirectory) throws IndexerException {
+		if(isMaster(indexName)) {
+			this.localOperationDispatcher.snapshotIndex(indexName, archiveDirectory);
+		} else {
+			throw new IndexerException("snapshotIndex can only be run by the master of index " + indexName);
+		}
+	}
+
+	/**
+	 * Replaces the contents of the index with the snapshot held in the archive
+	 * directory
+	 * 
+	 * @param indexName
+	 * @param archiveDirectory
+	 * @throws IndexerException
+	 */
+	public void restoreIndex(String indexName, File archiveDirectory) throws IndexerException {
+		if(isMaster(indexName)) {
+			this.localOperationDispatcher.restoreIndex(indexName, archiveDirectory);
+		} else {
+			throw new IndexerException("restoreIndex can only be run by the master of index " + indexName);
+		}
+	}
+
+	/**
+	 * Invoked by the master after it has committed changes to an index
+	 * 
+	 * @param indexName
+	 */
+	public void notifyCommit(String indexName) {
+		if (!commitNotification) {
+			return;
+		}
+		try {
+			long version = IndexReader.getCurrentVersion(directoryMap.get(indexName));
+			CommitNotification notification = new CommitNotification(indexName, version, System.currentTimeMillis());
+			// The local readers only reopen once they know of the commit
+			commitNotified(notification);
+			remoteOperationProcessor.broadcastCommit(notification);
+		} catch (Exception e) {
+			log.warn("Could not notify commit of index " + indexName, e);
+		}
+	}
+
+	/**
+	 * Invoked when a {@link CommitNotification} is received from the master.
+	 * Only the readers which have already been opened are notified.
+	 * 
+	 * @param notification
+	 */
+	public void commitNotified(CommitNotification notification) {
+		AmanuensisIndexReader reader = openReaders.get(notification.getIndexName());
+		if (reader != null) {
+			reader.commitNotified(notification);
+		}
+	}
+
+	/**
+	 * Dispatches the message to the appropriate destination depending on
+	 * whether this node is the master of the index.
 	 * 
 	 * @param indexOperations
+	 * @return a future which completes when the operations have been accepted
+	 *         by the master
 	 * @throws IndexerException
 	 */
-	public void dispatchOperations(IndexOperations indexOperations) throws IndexerException {
-		if (cacheManager.isCoordinator()) {
+	public DispatchFuture dispatchOperations(IndexOperations indexOperations) throws IndexerException {
+		if (isMaster(indexOperations.getIndexName())) {
 			// process the messages locally
-			this.localOperationDispatcher.dispatch(indexOperations);
+			return this.localOperationDispatcher.dispatch(indexOperations);
 		} else {
 			// send them to the remote
-			this.remoteOperationDispatcher.dispatch(indexOperations);
+			return this.remoteOperationDispatcher.dispatch(indexOperations);
+		}
+	}
+
+	/**
+	 * Hands the indexes over when the view changes: the indexes which this node
+	 * no longer owns are drained and their writers closed, so that the new
+	 * owners may open theirs, while the write-ahead logs of the indexes it
+	 * has gained are replayed. Operations which arrive at a former owner in
+	 * the meantime are refused with an {@link IndexBusyException}, so that their
+	 * senders retry against the new one.
+	 */
+	@Listener
+	public class ViewListener {
+		@ViewChanged
+		public void viewChanged(ViewChangedEvent event) {
+			Address local = event.getLocalAddress();
+			List<Address> oldMembers = event.getOldMembers();
+			List<Address> newMembers = event.getNewMembers();
+			for (final String indexName : directoryMap.keySet()) {
+				boolean owned = local.equals(ownership.ownerOf(indexName, oldMembers));
+				boolean owns = local.equals(ownership.ownerOf(indexName, newMembers));
+				if (owned && !owns) {
+					log.info("Handing over index {}", indexName);
+					ownership.handoffCompleted(indexName);
+					localOperationDispatcher.releaseIndex(indexName);
+				} else if (owns && !owned) {
+					log.info("Taking over index {}", indexName);
+					Address previousOwner = ownership.ownerOf(indexName, oldMembers);
+					if (previousOwner != null) {
+						// It may still be applying its queued operations
+						ownership.handedOver(indexName, previousOwner);
+					}
+					try {
+						localOperationDispatcher.getExecutorContext(indexName);
+					} catch (IndexerException e) {
+						log.error("Could not take over index " + indexName, e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Dispatches a message received from another node: like
+	 * {@link #dispatchOperations(IndexOperations)}, except that if this node
+	 * is the master of the index and its queues are full the message is
+	 * refused with an {@link IndexBusyException} rather than waiting.
+	 * 
+	 * @param indexOperations
+	 * @return
+	 * @throws IndexerException
+	 */
+	public DispatchFuture offerOperations(IndexOperations indexOperations) throws IndexerException {
+		if (isMaster(indexOperations.getIndexName())) {
+			return this.localOperationDispatcher.offer(indexOperations);
+		} else {
+			return this.remoteOperationDispatcher.dispatch(indexOperations);
 		}
 	}
 
@@ -302,7 +692,17 @@ public class AmanuensisManager {
 		@Override
 		public AmanuensisIndexReader compute(String indexName) throws InterruptedException, ExecutionException {
 			try {
-				return new AmanuensisIndexReader(AmanuensisManager.this, AmanuensisManager.this.directoryMap.get(indexName));
+				AmanuensisIndexReader reader = new AmanuensisIndexReader(AmanuensisManager.this, AmanuensisManager.this.directoryMap.get(indexName));
+				openReaders.put(indexName, reader);
+				try {
+					// Commits notified before the registration would be missed
+					reader.checkCurrentVersion();
+				} catch (IndexerException e) {
+					openReaders.remove(indexName, reader);
+					reader.close();
+					throw e;
+				}
+				return reader;
 			} catch (IndexerException e) {
 				throw new ExecutionException(e);
 			}
@@ -0,0 +1,68 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis;
+
+/**
+ * This class implements the message that is broadcast by the master to all
+ * the nodes after it has committed changes to an index. It carries the version
+ * of the index after the commit, so that the readers only need to be reopened
+ * when they are actually stale, and the master's time of the commit, so that
+ * the replication lag can be measured.
+ * 
+ * @author Tristan Tarrant
+ */
+public class CommitNotification {
+	private final String indexName;
+	private final long version;
+	private final long timestamp;
+
+	public CommitNotification(String indexName, long version, long timestamp) {
+		this.indexName = indexName;
+		this.version = version;
+		this.timestamp = timestamp;
+	}
+
+	public String getIndexName() {
+		return indexName;
+	}
+
+	/**
+	 * Returns the index version after the commit, as returned by
+	 * {@link org.apache.lucene.index.IndexReader#getCurrentVersion(org.apache.lucene.store.Directory)}
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the time of the commit, in milliseconds, according to the
+	 * master's clock
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	@Override
+	public String toString() {
+		return "CommitNotification [indexName=" + indexName + ", version=" + version + "]";
+	}
+}
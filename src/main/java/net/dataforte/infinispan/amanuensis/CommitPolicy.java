@@ -0,0 +1,46 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis;
+
+/**
+ * Decides when the operations which have been applied to an index are
+ * committed, independently of how they were grouped into messages. A commit
+ * is always performed when a {@link net.dataforte.infinispan.amanuensis.ops.CommitOperation}
+ * is applied or the writer is closed. Implementations may be shared by
+ * several indexes and must be thread-safe.
+ * 
+ * @author Tristan Tarrant
+ */
+public interface CommitPolicy {
+	/**
+	 * Checks whether the index must be committed. Invoked after each batch of
+	 * operations has been applied and periodically while there are
+	 * uncommitted operations.
+	 * 
+	 * @param context
+	 *            the index, which has uncommitted operations
+	 * @param now
+	 *            the current time
+	 * @return true if the index must be committed now
+	 */
+	boolean isCommitDue(ExecutorContext context, long now);
+}
@@ -0,0 +1,44 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis;
+
+/**
+ * Receives the operations which could not be applied to an index because they
+ * are themselves faulty (for example a document which the analyzer cannot
+ * process), so that they do not prevent the other operations from being
+ * committed. Implementations must be thread-safe.
+ * 
+ * @author Tristan Tarrant
+ */
+public interface DeadLetterStore {
+	/**
+	 * Stores a rejected operation
+	 * 
+	 * @param indexName
+	 *            the index the operation was meant for
+	 * @param operation
+	 *            the operation
+	 * @param cause
+	 *            the error raised while applying it
+	 */
+	void store(String indexName, IndexOperation operation, Throwable cause);
+}
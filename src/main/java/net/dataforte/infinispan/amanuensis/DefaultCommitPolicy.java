@@ -0,0 +1,121 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis;
+
+/**
+ * A {@link CommitPolicy} which commits once any of its limits has been
+ * reached: the time since the last commit, the number of uncommitted
+ * operations or the size of the writer's RAM buffer. With no limits, the
+ * default, every batch is committed as soon as it has been applied.
+ * 
+ * @author Tristan Tarrant
+ */
+public class DefaultCommitPolicy implements CommitPolicy {
+	private volatile long maxCommitInterval = 0;
+	private volatile int maxUncommittedOperations = 0;
+	private volatile double maxRamBufferSizeMB = 0;
+
+	public DefaultCommitPolicy() {
+	}
+
+	public DefaultCommitPolicy(long maxCommitInterval, int maxUncommittedOperations, double maxRamBufferSizeMB) {
+		setMaxCommitInterval(maxCommitInterval);
+		setMaxUncommittedOperations(maxUncommittedOperations);
+		setMaxRamBufferSizeMB(maxRamBufferSizeMB);
+	}
+
+	public long getMaxCommitInterval() {
+		return maxCommitInterval;
+	}
+
+	/**
+	 * Sets the maximum time (in milliseconds) operations remain uncommitted. 0
+	 * disables the limit.
+	 * 
+	 * @param maxCommitInterval
+	 */
+	public void setMaxCommitInterval(long maxCommitInterval) {
+		if (maxCommitInterval < 0) {
+			throw new IllegalArgumentException("maxCommitInterval cannot be negative");
+		}
+		this.maxCommitInterval = maxCommitInterval;
+	}
+
+	public int getMaxUncommittedOperations() {
+		return maxUncommittedOperations;
+	}
+
+	/**
+	 * Sets the number of uncommitted operations which triggers a commit. 0
+	 * disables the limit.
+	 * 
+	 * @param maxUncommittedOperations
+	 */
+	public void setMaxUncommittedOperations(int maxUncommittedOperations) {
+		if (maxUncommittedOperations < 0) {
+			throw new IllegalArgumentException("maxUncommittedOperations cannot be negative");
+		}
+		this.maxUncommittedOperations = maxUncommittedOperations;
+	}
+
+	public double getMaxRamBufferSizeMB() {
+		return maxRamBufferSizeMB;
+	}
+
+	/**
+	 * Sets the size (in megabytes) of the writer's buffer of added documents
+	 * and deletions which triggers a commit. 0 disables the limit. Note that
+	 * the writer flushes the buffer to a new segment, without committing it,
+	 * once it reaches its own RAM buffer size.
+	 * 
+	 * @param maxRamBufferSizeMB
+	 */
+	public void setMaxRamBufferSizeMB(double maxRamBufferSizeMB) {
+		if (maxRamBufferSizeMB < 0) {
+			throw new IllegalArgumentException("maxRamBufferSizeMB cannot be negative");
+		}
+		this.maxRamBufferSizeMB = maxRamBufferSizeMB;
+	}
+
+	@Override
+	public boolean isCommitDue(ExecutorContext context, long now) {
+		long maxCommitInterval = this.maxCommitInterval;
+		int maxUncommittedOperations = this.maxUncommittedOperations;
+		double maxRamBufferSizeMB = this.maxRamBufferSizeMB;
+		if (maxCommitInterval == 0 && maxUncommittedOperations == 0 && maxRamBufferSizeMB == 0) {
+			return true;
+		}
+		if (maxCommitInterval > 0 && now - context.getLastCommitTime() >= maxCommitInterval) {
+			return true;
+		}
+		if (maxUncommittedOperations > 0 && context.getUncommittedOperationCount() >= maxUncommittedOperations) {
+			return true;
+		}
+		return maxRamBufferSizeMB > 0 && context.getRamSizeInBytes() >= maxRamBufferSizeMB * 1024 * 1024;
+	}
+
+	@Override
+	public String toString() {
+		return "DefaultCommitPolicy [maxCommitInterval=" + maxCommitInterval + ", maxUncommittedOperations=" + maxUncommittedOperations + ", maxRamBufferSizeMB="
+				+ maxRamBufferSizeMB + "]";
+	}
+}
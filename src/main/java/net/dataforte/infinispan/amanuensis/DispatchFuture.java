@@ -0,0 +1,168 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.dataforte.commons.slf4j.LoggerFactory;
+
+import org.slf4j.Logger;
+
+/**
+ * A {@link Future} which completes when an {@link IndexOperations} message has
+ * been accepted by the node which will apply it to the index. Listeners may be
+ * registered to be notified of completion without blocking.
+ * 
+ * @author Tristan Tarrant
+ */
+public class DispatchFuture implements Future<Void> {
+	private static final Logger log = LoggerFactory.make();
+	private final CountDownLatch latch = new CountDownLatch(1);
+	private List<DispatchListener> listeners = new ArrayList<DispatchListener>(1);
+	private volatile Throwable failure;
+
+	/**
+	 * Returns a future which has already completed successfully
+	 */
+	public static DispatchFuture completed() {
+		DispatchFuture future = new DispatchFuture();
+		future.done();
+		return future;
+	}
+
+	/**
+	 * Returns a future which has already failed with the specified cause
+	 */
+	public static DispatchFuture failed(Throwable t) {
+		DispatchFuture future = new DispatchFuture();
+		future.fail(t);
+		return future;
+	}
+
+	/**
+	 * Marks this future as successfully completed
+	 */
+	public void done() {
+		complete(null);
+	}
+
+	/**
+	 * Marks this future as failed
+	 * 
+	 * @param t
+	 *            the cause of the failure
+	 */
+	public void fail(Throwable t) {
+		complete(t);
+	}
+
+	private void complete(Throwable t) {
+		List<DispatchListener> toNotify;
+		synchronized (this) {
+			if (isDone()) {
+				return;
+			}
+			failure = t;
+			latch.countDown();
+			toNotify = listeners;
+			listeners = null;
+		}
+		for (DispatchListener listener : toNotify) {
+			notify(listener);
+		}
+	}
+
+	/**
+	 * Registers a listener which will be notified when this future completes.
+	 * If it has already completed, the listener is notified immediately on the
+	 * calling thread.
+	 * 
+	 * @param listener
+	 */
+	public void addListener(DispatchListener listener) {
+		synchronized (this) {
+			if (!isDone()) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		notify(listener);
+	}
+
+	private void notify(DispatchListener listener) {
+		try {
+			listener.dispatchComplete(this);
+		} catch (Throwable t) {
+			log.warn("Error while notifying dispatch listener", t);
+		}
+	}
+
+	public boolean isSuccess() {
+		return isDone() && failure == null;
+	}
+
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public boolean isDone() {
+		return latch.getCount() == 0;
+	}
+
+	@Override
+	public Void get() throws InterruptedException, ExecutionException {
+		latch.await();
+		return result();
+	}
+
+	@Override
+	public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!latch.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return result();
+	}
+
+	private Void result() throws ExecutionException {
+		if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return null;
+	}
+}
@@ -22,21 +22,36 @@
 package net.dataforte.infinispan.amanuensis;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.dataforte.commons.slf4j.LoggerFactory;
 import net.dataforte.infinispan.amanuensis.backend.lucene.LuceneOperationExecutorFactory;
+import net.dataforte.infinispan.amanuensis.backend.lucene.SpillQueue;
+import net.dataforte.infinispan.amanuensis.backend.lucene.WriteAheadLog;
+import net.dataforte.infinispan.amanuensis.codec.IndexOperationsCodec;
+import net.dataforte.infinispan.amanuensis.jmx.IndexMetrics;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.index.CheckIndex;
 import org.apache.lucene.index.CheckIndex.Status;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.KeepOnlyLastCommitDeletionPolicy;
+import org.apache.lucene.index.SnapshotDeletionPolicy;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.Directory;
 import org.slf4j.Logger;
 
@@ -49,19 +64,75 @@ import org.slf4j.Logger;
 public class ExecutorContext {
 	private static final Logger log = LoggerFactory.make();
 	private static final String THREAD_GROUP_PREFIX = "Amanuensis: ";
-	private static final int QUEUE_MAX_LENGTH = 10000;
+	public static final long DEFAULT_MAX_QUEUED_BYTES = 64L * 1024 * 1024;
+	// Accounts for the objects of a message beyond its encoded size
+	private static final int QUEUE_ENTRY_OVERHEAD = 128;
+	/**
+	 * The commit user data which identifies the {@link WriteAheadLog} of the
+	 * master which made the commit, empty if it had none
+	 */
+	public static final String COMMIT_LOG_ID = "amanuensis.log";
 	private static final IndexWriter.MaxFieldLength MAX_FIELD_LENGTH = new IndexWriter.MaxFieldLength(IndexWriter.DEFAULT_MAX_FIELD_LENGTH);
 	private final ExecutorService executor;
+	private final BlockingQueue<IndexOperations> queue;
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	private final AtomicBoolean batchWaiting = new AtomicBoolean(false);
+	private final AtomicLong changeCount = new AtomicLong();
+	private volatile long lastEnqueueTime = System.currentTimeMillis();
+	private final LinkedList<IndexOperations> recovered = new LinkedList<IndexOperations>(); // only accessed by the drainer
+	private final Object logLock = new Object();
+	private WriteAheadLog writeAheadLog;
+	private SpillQueue spillQueue;
+	private final Object spillLock = new Object();
+	private volatile IndexerException failure;
+	private final MemoryBudget queueBudget = new MemoryBudget(DEFAULT_MAX_QUEUED_BYTES);
+	private MemoryBudget globalBudget;
+	private DeadLetterStore deadLetterStore = new MemoryDeadLetterStore();
+	private String keyField;
+	private int applyParallelism = 1;
+	private ExecutorService applierExecutor;
+	private ExecutorService mergeWaiterExecutor;
+	private final AtomicBoolean mergesRunning = new AtomicBoolean(false);
+	private volatile boolean mergesCompleted;
+	private long appliedSequence; // only accessed by the drainer
+	private volatile long committedVersion = WriteAheadLog.UNKNOWN_VERSION;
+	private volatile CommitPolicy commitPolicy = new DefaultCommitPolicy();
+	private final List<IndexOperation> uncommitted = new ArrayList<IndexOperation>(); // only accessed by the drainer
+	private boolean uncommittedLost; // only accessed by the drainer
+	private volatile int uncommittedCount;
+	private volatile long lastCommitTime = System.currentTimeMillis();
+	private final IndexMetrics metrics = new IndexMetrics();
 	private LuceneOperationExecutorFactory operationExecutorFactory;
 	private final Directory directory;
-	private IndexWriter writer;
+	private final String indexName;
+	private int maxBatchSize = 1;
+	private long maxCommitDelay = 0;
+	private volatile IndexWriter writer; // written under this
+	private SnapshotDeletionPolicy deletionPolicy;
+	private boolean snapshotTaken; // guarded by this
 	private Analyzer analyzer;
 	private AmanuensisManager manager;
 
-	public ExecutorContext(AmanuensisManager manager, Directory directory, Analyzer analyzer) {
+	/**
+	 * Constructs an ExecutorContext for the specified {@link Directory}.
+	 * 
+	 * @param manager
+	 *            the manager, or null for a standalone context, which uses a
+	 *            {@link DefaultWriterConfigurator} and does not take part in
+	 *            master handoffs or commit notifications
+	 * @param directory
+	 * @param analyzer
+	 * @param executor
+	 *            the executor on which the operations for this index will be
+	 *            applied. It may be shared with other indexes, since a context
+	 *            only ever has one task scheduled on it at any one time
+	 */
+	public ExecutorContext(AmanuensisManager manager, Directory directory, Analyzer analyzer, ExecutorService executor) {
 		this.manager = manager;
-		this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(QUEUE_MAX_LENGTH), new ExecutorThreadFactory("IndexWriter"), new BlockingPolicy());		
+		this.executor = executor;
+		this.queue = new LinkedBlockingQueue<IndexOperations>();
 		this.directory = directory;
+		this.indexName = AmanuensisManager.getUniqueDirectoryIdentifier(directory);
 		this.analyzer = analyzer;
 		this.operationExecutorFactory = new LuceneOperationExecutorFactory();
 	}
@@ -70,6 +141,14 @@ public class ExecutorContext {
 		return executor;
 	}
 
+	/**
+	 * Returns the counters of the operations applied and committed by this
+	 * context
+	 */
+	public IndexMetrics getMetrics() {
+		return metrics;
+	}
+
 	public LuceneOperationExecutorFactory getOperationExecutorFactory() {
 		return operationExecutorFactory;
 	}
@@ -82,27 +161,905 @@ public class ExecutorContext {
 		return directory;
 	}
 
+	public String getIndexName() {
+		return indexName;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	/**
+	 * Sets the maximum number of {@link IndexOperations} messages which will be
+	 * applied to the {@link IndexWriter} before a commit. The default of 1
+	 * commits after every message, higher values enable group commit.
+	 * 
+	 * @param maxBatchSize
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("maxBatchSize must be at least 1");
+		}
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public CommitPolicy getCommitPolicy() {
+		return commitPolicy;
+	}
+
+	/**
+	 * Sets the policy which decides when the operations applied to this index
+	 * are committed. The default commits after every batch.
+	 * 
+	 * @param commitPolicy
+	 */
+	public void setCommitPolicy(CommitPolicy commitPolicy) {
+		if (commitPolicy == null) {
+			throw new IllegalArgumentException("commitPolicy cannot be null");
+		}
+		this.commitPolicy = commitPolicy;
+	}
+
+	/**
+	 * Returns the number of operations which have been applied since the last
+	 * commit
+	 */
+	public int getUncommittedOperationCount() {
+		return uncommittedCount;
+	}
+
+	public boolean hasUncommittedOperations() {
+		return uncommittedCount > 0;
+	}
+
+	/**
+	 * Returns the time of the last commit or, if the index has not been
+	 * committed yet, of the creation of this context
+	 */
+	public long getLastCommitTime() {
+		return lastCommitTime;
+	}
+
+	/**
+	 * Returns the size of the documents and deletions buffered by the
+	 * {@link IndexWriter}, or 0 if it is not open
+	 */
+	public long getRamSizeInBytes() {
+		IndexWriter w = getOpenWriter();
+		if (w == null) {
+			return 0;
+		}
+		try {
+			return w.ramSizeInBytes();
+		} catch (AlreadyClosedException e) {
+			// Closed or rolled back in the meantime
+			return 0;
+		}
+	}
+
+	/**
+	 * Returns whether there are uncommitted operations or merged segments
+	 */
+	public boolean hasUncommittedChanges() {
+		return hasUncommittedOperations() || mergesCompleted;
+	}
+
+	/**
+	 * Checks whether the uncommitted operations, if any, must be committed
+	 * according to the {@link CommitPolicy}. Completed background merges are
+	 * always committed.
+	 */
+	public boolean isCommitDue() {
+		return mergesCompleted || (hasUncommittedOperations() && commitPolicy.isCommitDue(this, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Records that the operations have been applied to the writer and will be
+	 * part of the next commit. They are kept until then, so that they can be
+	 * applied again if the writer is rolled back.
+	 * 
+	 * @param ops
+	 */
+	public void applied(List<IndexOperation> ops) {
+		uncommitted.addAll(ops);
+		uncommittedCount = uncommitted.size();
+	}
+
+	/**
+	 * Returns the operations which were lost when the writer was rolled back
+	 * before they could be committed, which the caller must apply again
+	 * 
+	 * @return the operations, in the order they were applied
+	 */
+	public List<IndexOperation> takeRolledBackOperations() {
+		if (!uncommittedLost) {
+			return Collections.emptyList();
+		}
+		List<IndexOperation> ops = new ArrayList<IndexOperation>(uncommitted);
+		uncommitted.clear();
+		uncommittedCount = 0;
+		uncommittedLost = false;
+		return ops;
+	}
+
+	private void clearUncommitted() {
+		uncommitted.clear();
+		uncommittedCount = 0;
+		uncommittedLost = false;
+		lastCommitTime = System.currentTimeMillis();
+	}
+
+	public long getMaxCommitDelay() {
+		return maxCommitDelay;
+	}
+
+	/**
+	 * Sets the maximum time (in milliseconds) a group commit will wait for
+	 * further messages to arrive before committing a batch which is smaller than
+	 * {@link #getMaxBatchSize()}. The default of 0 only groups the messages
+	 * which are already waiting in the queue.
+	 * 
+	 * @param maxCommitDelay
+	 */
+	public void setMaxCommitDelay(long maxCommitDelay) {
+		if (maxCommitDelay < 0) {
+			throw new IllegalArgumentException("maxCommitDelay cannot be negative");
+		}
+		this.maxCommitDelay = maxCommitDelay;
+	}
+
+	public String getKeyField() {
+		return keyField;
+	}
+
+	/**
+	 * Sets the name of the field which holds the primary key of the documents
+	 * of this index, which is required to apply operations in parallel
+	 * 
+	 * @param keyField
+	 */
+	public void setKeyField(String keyField) {
+		this.keyField = keyField;
+	}
+
+	public int getApplyParallelism() {
+		return applyParallelism;
+	}
+
+	/**
+	 * Sets the number of threads which apply the operations of a batch to this
+	 * index, partitioned by key field. The default of 1 applies them on the
+	 * drainer thread. Values above 1 require a key field and an applier
+	 * executor (see {@link #setApplierExecutor(ExecutorService)}).
+	 * 
+	 * @param applyParallelism
+	 */
+	public void setApplyParallelism(int applyParallelism) {
+		if (applyParallelism < 1) {
+			throw new IllegalArgumentException("applyParallelism must be at least 1");
+		}
+		this.applyParallelism = applyParallelism;
+	}
+
+	public ExecutorService getApplierExecutor() {
+		return applierExecutor;
+	}
+
+	/**
+	 * Sets the executor on which the additional threads used to apply
+	 * operations in parallel run
+	 * 
+	 * @param applierExecutor
+	 */
+	public void setApplierExecutor(ExecutorService applierExecutor) {
+		this.applierExecutor = applierExecutor;
+	}
+
+	public ExecutorService getMergeWaiterExecutor() {
+		return mergeWaiterExecutor;
+	}
+
+	/**
+	 * Sets the executor on which the completion of the background merges
+	 * started by an optimize or an expunge of deletes is awaited, so that the
+	 * index can be committed once they are done. If it is not set, the merged
+	 * segments are only committed with the next operations.
+	 * 
+	 * @param mergeWaiterExecutor
+	 */
+	public void setMergeWaiterExecutor(ExecutorService mergeWaiterExecutor) {
+		this.mergeWaiterExecutor = mergeWaiterExecutor;
+	}
+
+	/**
+	 * Records that background merges have been started on the writer: once
+	 * they have all completed, a commit becomes due, so that the merged
+	 * segments replace the old ones even if no further operations arrive
+	 * 
+	 * @param w
+	 *            the writer which runs the merges
+	 */
+	public void mergesStarted(final IndexWriter w) {
+		if (mergeWaiterExecutor == null || !mergesRunning.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			mergeWaiterExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						w.waitForMerges();
+					} catch (RuntimeException e) {
+						// Closed or interrupted: there is nothing to commit
+						log.debug("Stopped waiting for the merges of index {}", indexName);
+					} finally {
+						mergesRunning.set(false);
+					}
+					// A rolled back writer has lost its merges
+					if (getOpenWriter() == w) {
+						mergesCompleted = true;
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			mergesRunning.set(false);
+		}
+	}
+
+	/**
+	 * Returns whether background merges have completed since the last commit
+	 */
+	public boolean hasCompletedMerges() {
+		return mergesCompleted;
+	}
+
+	/**
+	 * Returns whether the operations of a batch should be applied in parallel
+	 */
+	public boolean isParallelApply() {
+		return applyParallelism > 1 && keyField != null && applierExecutor != null;
+	}
+
+	public DeadLetterStore getDeadLetterStore() {
+		return deadLetterStore;
+	}
+
+	/**
+	 * Sets the {@link DeadLetterStore} which receives the operations which
+	 * could not be applied to this index
+	 * 
+	 * @param deadLetterStore
+	 */
+	public void setDeadLetterStore(DeadLetterStore deadLetterStore) {
+		this.deadLetterStore = deadLetterStore;
+	}
+
+	public WriteAheadLog getWriteAheadLog() {
+		return writeAheadLog;
+	}
+
+	/**
+	 * Sets the {@link WriteAheadLog} in which the queued operations are
+	 * persisted until they are committed, and queues the operations recovered
+	 * from it, unless the index has been committed by another master since
+	 * they were logged. If the last commit was made with this log, e.g. just
+	 * before a crash which prevented the checkpoint, all the operations are
+	 * applied again. Must be invoked before any operation is queued.
+	 * 
+	 * @param writeAheadLog
+	 * @throws IOException
+	 */
+	public void setWriteAheadLog(WriteAheadLog writeAheadLog) throws IOException {
+		List<IndexOperations> pending = writeAheadLog.recover();
+		long version = readIndexVersion();
+		long loggedVersion = writeAheadLog.getIndexVersion();
+		if (!pending.isEmpty() && loggedVersion != WriteAheadLog.UNKNOWN_VERSION && version != WriteAheadLog.UNKNOWN_VERSION && loggedVersion != version
+				&& !isLastCommittedWith(writeAheadLog)) {
+			// Logged during an earlier ownership of the index, and overtaken by
+			// the commits of another master: applying them now would revert
+			// newer changes
+			log.warn("Discarding {} messages logged for index {} at version {}, which has since been committed at version {} by another master", new Object[] { pending.size(), indexName, loggedVersion, version });
+			writeAheadLog.checkpoint(writeAheadLog.getCheckpoint() + pending.size(), version);
+			pending = Collections.emptyList();
+		} else {
+			writeAheadLog.checkpoint(writeAheadLog.getCheckpoint(), version);
+		}
+		this.committedVersion = version;
+		this.recovered.addAll(pending);
+		this.appliedSequence = writeAheadLog.getCheckpoint();
+		this.writeAheadLog = writeAheadLog;
+	}
+
+	public SpillQueue getSpillQueue() {
+		return spillQueue;
+	}
+
+	/**
+	 * Sets the {@link SpillQueue} which receives the messages that do not fit
+	 * in the in-memory queue, so that {@link #enqueue(IndexOperations)} never
+	 * blocks. Must be invoked before any operation is queued.
+	 * 
+	 * @param spillQueue
+	 */
+	public void setSpillQueue(SpillQueue spillQueue) {
+		this.spillQueue = spillQueue;
+	}
+
+	public long getMaxQueuedBytes() {
+		return queueBudget.getLimit();
+	}
+
+	/**
+	 * Returns the estimated size, in bytes, which the operations take while
+	 * they are waiting in memory
+	 */
+	public static long estimateQueuedSize(IndexOperations ops) {
+		return QUEUE_ENTRY_OVERHEAD + IndexOperationsCodec.estimateSize(ops);
+	}
+
+	/**
+	 * Sets the estimated size, in bytes, of the messages which may be waiting
+	 * in memory for this index
+	 * 
+	 * @param maxQueuedBytes
+	 */
+	public void setMaxQueuedBytes(long maxQueuedBytes) {
+		queueBudget.setLimit(maxQueuedBytes);
+	}
+
+	/**
+	 * Returns the estimated size, in bytes, of the messages waiting in memory
+	 */
+	public long getQueuedBytes() {
+		return queueBudget.getUsed();
+	}
+
+	public MemoryBudget getGlobalBudget() {
+		return globalBudget;
+	}
+
+	/**
+	 * Sets the {@link MemoryBudget} shared by the queues of all the indexes,
+	 * which messages must fit in as well as in this queue's own limit
+	 * 
+	 * @param globalBudget
+	 */
+	public void setGlobalBudget(MemoryBudget globalBudget) {
+		this.globalBudget = globalBudget;
+	}
+
+	/**
+	 * Queues the operations for this index. If they do not fit in the memory
+	 * allowed for queued messages, they are added to the {@link SpillQueue},
+	 * if one has been set, otherwise the caller waits for memory to be freed.
+	 * If a {@link WriteAheadLog} has been set, the operations are appended to
+	 * it first.
+	 * 
+	 * @param ops
+	 * @throws InterruptedException
+	 * @throws IndexerException
+	 *             if the operations could not be logged
+	 */
+	public void enqueue(IndexOperations ops) throws InterruptedException, IndexerException {
+		enqueue(ops, true);
+	}
+
+	/**
+	 * Queues the operations for this index, like
+	 * {@link #enqueue(IndexOperations)}, unless they do not fit in the memory
+	 * allowed for queued messages and there is no {@link SpillQueue}, in which
+	 * case they are refused
+	 * 
+	 * @param ops
+	 * @return true if the operations have been queued
+	 * @throws IndexerException
+	 *             if the operations could not be logged
+	 */
+	public boolean offer(IndexOperations ops) throws IndexerException {
+		try {
+			return enqueue(ops, false);
+		} catch (InterruptedException e) {
+			// Does not wait
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private boolean enqueue(IndexOperations ops, boolean wait) throws InterruptedException, IndexerException {
+		if (failure != null) {
+			throw new IndexerException("Index " + indexName + " has failed and does not accept operations", failure);
+		}
+		lastEnqueueTime = System.currentTimeMillis();
+		ops.queuedTime = lastEnqueueTime;
+		long size = estimateQueuedSize(ops);
+		if (spillQueue == null) {
+			if (!reserve(size, wait)) {
+				return false;
+			}
+			ops.queuedBytes = size;
+			append(ops, true);
+			return true;
+		}
+		synchronized (spillLock) {
+			// Once messages have been spilled, later ones must follow them
+			boolean inMemory = spillQueue.isEmpty() && reserve(size, false);
+			if (inMemory) {
+				ops.queuedBytes = size;
+			}
+			append(ops, inMemory);
+			return true;
+		}
+	}
+
+	private boolean reserve(long size, boolean wait) throws InterruptedException {
+		if (wait) {
+			queueBudget.acquire(size);
+			if (globalBudget != null) {
+				try {
+					globalBudget.acquire(size);
+				} catch (InterruptedException e) {
+					queueBudget.release(size);
+					throw e;
+				}
+			}
+			return true;
+		}
+		if (!queueBudget.tryAcquire(size)) {
+			return false;
+		}
+		if (globalBudget != null && !globalBudget.tryAcquire(size)) {
+			queueBudget.release(size);
+			return false;
+		}
+		return true;
+	}
+
+	private void release(IndexOperations ops) {
+		if (ops.queuedBytes > 0) {
+			queueBudget.release(ops.queuedBytes);
+			if (globalBudget != null) {
+				globalBudget.release(ops.queuedBytes);
+			}
+			ops.queuedBytes = 0;
+		}
+	}
+
+	/**
+	 * Logs the message and adds it to the in-memory queue or to the
+	 * {@link SpillQueue}, keeping the log and the queues in the same order
+	 */
+	private void append(IndexOperations ops, boolean inMemory) throws IndexerException {
+		synchronized (logLock) {
+			if (writeAheadLog != null) {
+				try {
+					writeAheadLog.append(ops);
+				} catch (IOException e) {
+					release(ops);
+					throw new IndexerException("Could not log operations for index " + indexName, e);
+				}
+			}
+			if (!inMemory) {
+				try {
+					spillQueue.add(ops);
+					return;
+				} catch (IOException e) {
+					// Already logged, so it must be queued anyway
+					log.error("Could not spill operations for index " + indexName + ", keeping them in memory", e);
+				}
+			}
+			queue.add(ops);
+		}
+	}
+
+	/**
+	 * Returns the time at which operations were last queued for this index
+	 */
+	public long getLastEnqueueTime() {
+		return lastEnqueueTime;
+	}
+
+	public boolean hasQueuedOperations() {
+		if (failure != null) {
+			return false;
+		}
+		return !recovered.isEmpty() || !queue.isEmpty() || (spillQueue != null && !spillQueue.isEmpty());
+	}
+
+	/**
+	 * Returns the number of messages waiting in memory and, if any, in the
+	 * {@link SpillQueue}
+	 */
+	public int getQueueSize() {
+		return queue.size() + (spillQueue != null ? spillQueue.size() : 0);
+	}
+
+	/**
+	 * Invoked once a batch returned by {@link #drainQueue()} has been dealt
+	 * with, so that the memory reserved for its messages can be released and,
+	 * once they have been committed, they can be removed from the
+	 * {@link WriteAheadLog}
+	 * 
+	 * @param batch
+	 */
+	public void batchCompleted(List<IndexOperations> batch) {
+		for (IndexOperations ops : batch) {
+			release(ops);
+		}
+		appliedSequence += batch.size();
+		if (uncommitted.isEmpty()) {
+			// Otherwise they are checkpointed by a later commit
+			checkpoint();
+		}
+	}
+
+	private void checkpoint() {
+		if (writeAheadLog != null) {
+			try {
+				writeAheadLog.checkpoint(appliedSequence, committedVersion);
+			} catch (IOException e) {
+				log.warn("Could not checkpoint log for index " + indexName, e);
+			}
+		}
+	}
+
+	/**
+	 * Removes the next batch of messages from the queue. At most
+	 * {@link #getMaxBatchSize()} messages are returned: this does not wait for
+	 * more to arrive, see {@link #getBatchDelay()}.
+	 * 
+	 * @return the drained messages, in queue order
+	 */
+	public List<IndexOperations> drainQueue() {
+		List<IndexOperations> batch = new ArrayList<IndexOperations>();
+		if (failure != null) {
+			return batch;
+		}
+		// Messages recovered from the log come first
+		while (!recovered.isEmpty() && batch.size() < maxBatchSize) {
+			batch.add(recovered.removeFirst());
+		}
+		drainTo(batch);
+		return batch;
+	}
+
+	/**
+	 * Returns how long (in milliseconds) the next batch should wait for further
+	 * messages to arrive before being drained, or 0 if it should be drained
+	 * now, because it is already full or because its oldest message has
+	 * already waited for {@link #getMaxCommitDelay()}
+	 */
+	public long getBatchDelay() {
+		if (maxCommitDelay == 0 || failure != null || !recovered.isEmpty() || getQueueSize() >= maxBatchSize) {
+			return 0;
+		}
+		// Spilled messages are only read once the in-memory ones are gone
+		IndexOperations oldest = queue.peek();
+		if (oldest == null) {
+			return 0;
+		}
+		long remaining = oldest.queuedTime + maxCommitDelay - System.currentTimeMillis();
+		return remaining > 0 ? remaining : 0;
+	}
+
+	/**
+	 * Moves messages to the batch, first from the in-memory queue and then,
+	 * once it is empty, from the {@link SpillQueue}, which only holds messages
+	 * that are more recent than the in-memory ones
+	 */
+	private void drainTo(List<IndexOperations> batch) {
+		queue.drainTo(batch, maxBatchSize - batch.size());
+		if (spillQueue == null || batch.size() >= maxBatchSize) {
+			return;
+		}
+		synchronized (spillLock) {
+			if (!queue.isEmpty()) {
+				return;
+			}
+			try {
+				IndexOperations ops;
+				while (batch.size() < maxBatchSize && (ops = spillQueue.poll()) != null) {
+					batch.add(ops);
+				}
+			} catch (IOException e) {
+				// The rest of the file cannot be trusted
+				if (writeAheadLog != null) {
+					// Stop before the lost messages, so that the log is only
+					// checkpointed up to them and replays them on restart
+					failure = new IndexerException("Could not read spilled operations for index " + indexName, e);
+					log.error("Could not read spilled operations for index " + indexName + ", no further operations will be applied until it is reopened from its log", e);
+				} else {
+					log.error("Could not read spilled operations for index " + indexName + ", discarding them", e);
+					try {
+						log.error("Discarded {} spilled messages for index {}", spillQueue.clear(), indexName);
+					} catch (IOException e1) {
+						log.error("Could not discard spilled operations for index " + indexName, e1);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the queues of this index have failed, in which case it
+	 * neither accepts nor applies operations until it is reopened and the
+	 * messages which were lost are replayed from its {@link WriteAheadLog}
+	 */
+	public boolean isFailed() {
+		return failure != null;
+	}
+
+	/**
+	 * Releases the files which hold the queues of this index and closes its
+	 * {@link WriteAheadLog}, if any. Invoked when the dispatcher is closed,
+	 * once no drainer is running: the context must not be used afterwards.
+	 * Spilled messages which were not applied remain in the log.
+	 */
+	public void shutdown() {
+		synchronized (spillLock) {
+			if (spillQueue != null) {
+				try {
+					spillQueue.close();
+				} catch (IOException e) {
+					log.warn("Could not close spill queue for index " + indexName, e);
+				}
+			}
+		}
+		synchronized (logLock) {
+			if (writeAheadLog != null) {
+				writeAheadLog.close();
+			}
+		}
+	}
+
+	/**
+	 * Attempts to obtain the right to schedule a queue drainer for this index.
+	 * Only one drainer may be pending or running at any one time, so that
+	 * operations are applied serially and in order.
+	 * 
+	 * @return true if the caller must schedule a drainer
+	 */
+	public boolean acquireTurn() {
+		return scheduled.compareAndSet(false, true);
+	}
+
+	public void releaseTurn() {
+		scheduled.set(false);
+	}
+
+	/**
+	 * Invoked by the holder of the turn when it leaves the worker thread to let
+	 * the batch fill up: the turn is kept until {@link #endBatchWait()}
+	 * succeeds, so that no other drainer is scheduled in the meantime
+	 */
+	public void beginBatchWait() {
+		batchWaiting.set(true);
+	}
+
+	/**
+	 * Ends the wait started by {@link #beginBatchWait()}, either because its
+	 * delay has elapsed or because the batch has filled up.
+	 * 
+	 * @return true if the caller has taken over the turn and must schedule a
+	 *         drainer
+	 */
+	public boolean endBatchWait() {
+		return batchWaiting.compareAndSet(true, false);
+	}
+
+	/**
+	 * Records that the state of the {@link IndexWriter} has changed, either
+	 * because operations have been applied to it or because it has been
+	 * rolled back, so that near-real-time readers know they must be reopened
+	 */
+	public void markChanged() {
+		changeCount.incrementAndGet();
+	}
+
+	public long getChangeCount() {
+		return changeCount.get();
+	}
+
+	/**
+	 * Opens a near-real-time {@link IndexReader} from this index's
+	 * {@link IndexWriter}, which also sees the changes which have been applied
+	 * but not yet committed. The writer is created if necessary.
+	 * 
+	 * @return
+	 * @throws IndexerException
+	 */
+	public synchronized IndexReader openNearRealTimeReader() throws IndexerException {
+		try {
+			return getWriter().getReader();
+		} catch (IOException e) {
+			throw new IndexerException("Error while opening near-real-time reader for index " + indexName, e);
+		}
+	}
+
+	/**
+	 * Returns the {@link IndexWriter} if it is open, without opening it and
+	 * without waiting for a commit or a rollback in progress
+	 */
+	public IndexWriter getOpenWriter() {
+		return writer;
+	}
+
 	public synchronized IndexWriter getWriter() throws IndexerException {
 		if (writer != null)
 			return writer;
 		try {
-			if (IndexWriter.isLocked(directory)) {
-				log.warn("Unlocking index " + AmanuensisManager.getUniqueDirectoryIdentifier(directory) + " probable, crash of coordinator");
+			if (IndexWriter.isLocked(directory) && !awaitUnlock()) {
+				if (manager != null && manager.isHandoffPending(indexName)) {
+					// Forcing the lock would let two writers loose on the index
+					throw new IndexBusyException("Index " + indexName + " is still locked by its previous master");
+				}
+				log.warn("Unlocking index " + AmanuensisManager.getUniqueDirectoryIdentifier(directory) + ", probable crash of its previous master");
 				forceUnlock();
 			}
-			writer = new IndexWriter(directory, analyzer, MAX_FIELD_LENGTH);
-			manager.getWriterConfigurator().configure(writer);
+			if (deletionPolicy == null) {
+				// Kept across writers, so that a snapshot survives a rollback
+				deletionPolicy = new SnapshotDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy());
+			}
+			writer = new IndexWriter(directory, analyzer, deletionPolicy, MAX_FIELD_LENGTH);
+			getWriterConfigurator().configure(writer);
+			if (manager != null) {
+				manager.handoffCompleted(indexName);
+			}
 		} catch (IOException e) {
 			writer = null;
 			throw new IndexerException("Error while creating writer for index " + AmanuensisManager.getUniqueDirectoryIdentifier(directory), e);
 		}
+		// The operations logged from now on apply to this version
+		recordIndexVersion();
 		return writer;
 	}
 
+	private WriterConfigurator getWriterConfigurator() {
+		return manager != null ? manager.getWriterConfigurator() : new DefaultWriterConfigurator();
+	}
+
+	/**
+	 * Returns whether this node has taken over the index from a master which
+	 * is still a member of the cluster and which still holds the index lock,
+	 * in which case the queued operations must wait
+	 */
+	public boolean isHandoffPending() {
+		if (getOpenWriter() != null || manager == null || !manager.isHandoffPending(indexName)) {
+			return false;
+		}
+		try {
+			return IndexWriter.isLocked(directory);
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Gives the previous master of the index, which may still be handing it
+	 * over, up to {@link AmanuensisManager#getHandoffTimeout()} milliseconds
+	 * to close its writer. Returns immediately if there is no such master,
+	 * e.g. because it has left the cluster.
+	 * 
+	 * @return true if the index has been unlocked
+	 */
+	private boolean awaitUnlock() throws IOException {
+		if (manager == null) {
+			return !IndexWriter.isLocked(directory);
+		}
+		long deadline = System.currentTimeMillis() + manager.getHandoffTimeout();
+		while (manager.isHandoffPending(indexName) && System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			if (!IndexWriter.isLocked(directory)) {
+				return true;
+			}
+		}
+		return !IndexWriter.isLocked(directory);
+	}
+
+	/**
+	 * Returns the version of the last commit of the index, 0 if there is no
+	 * index yet or {@link WriteAheadLog#UNKNOWN_VERSION} if it cannot be read
+	 */
+	private long readIndexVersion() {
+		try {
+			return IndexReader.indexExists(directory) ? IndexReader.getCurrentVersion(directory) : 0;
+		} catch (IOException e) {
+			log.warn("Could not read the version of index " + indexName, e);
+			return WriteAheadLog.UNKNOWN_VERSION;
+		}
+	}
+
+	/**
+	 * Checks whether the last commit of the index was made by a master which
+	 * used the specified log
+	 */
+	private boolean isLastCommittedWith(WriteAheadLog writeAheadLog) {
+		try {
+			if (!IndexReader.indexExists(directory)) {
+				return false;
+			}
+			Map<String, String> userData = IndexReader.getCommitUserData(directory);
+			return userData != null && Long.toString(writeAheadLog.getLogId()).equals(userData.get(COMMIT_LOG_ID));
+		} catch (IOException e) {
+			log.warn("Could not read the commit data of index " + indexName, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the user data of the commits made by this context. Lucene keeps
+	 * the user data of the previous commit otherwise, so it is always set.
+	 */
+	private Map<String, String> getCommitUserData() {
+		return Collections.singletonMap(COMMIT_LOG_ID, writeAheadLog != null ? Long.toString(writeAheadLog.getLogId()) : "");
+	}
+
+	/**
+	 * Records the version of the index in the {@link WriteAheadLog}, so that
+	 * the messages logged from now on are only recovered if no other node has
+	 * committed the index in the meantime
+	 */
+	private void recordIndexVersion() {
+		if (writeAheadLog != null) {
+			committedVersion = readIndexVersion();
+			try {
+				writeAheadLog.checkpoint(writeAheadLog.getCheckpoint(), committedVersion);
+			} catch (IOException e) {
+				log.warn("Could not checkpoint log for index " + indexName, e);
+			}
+		}
+	}
+
+	/**
+	 * Pins the last commit point of the index, so that its files are not
+	 * deleted while it is being copied. Only one snapshot may be taken at a
+	 * time, and it must be released with {@link #releaseSnapshot()}.
+	 * 
+	 * @return the commit point
+	 * @throws IndexerException
+	 */
+	public synchronized IndexCommit snapshot() throws IndexerException {
+		if (snapshotTaken) {
+			throw new IndexerException("A snapshot of index " + indexName + " is already in progress");
+		}
+		getWriter();
+		try {
+			IndexCommit commit = deletionPolicy.snapshot();
+			snapshotTaken = true;
+			return commit;
+		} catch (IllegalStateException e) {
+			// The policy has not seen a commit yet
+			throw new IndexerException("Index " + indexName + " has no commit to snapshot", e);
+		}
+	}
+
+	public synchronized void releaseSnapshot() {
+		if (snapshotTaken) {
+			deletionPolicy.release();
+			snapshotTaken = false;
+		}
+	}
+
 	public synchronized void commit() throws IndexerException {
+		// Merges which complete from now on need another commit
+		mergesCompleted = false;
 		if (writer != null) {
 			try {
-				writer.commit();
+				long start = System.nanoTime();
+				writer.commit(getCommitUserData());
+				metrics.committed(System.nanoTime() - start);
+				if (writeAheadLog != null) {
+					committedVersion = readIndexVersion();
+				}
+				clearUncommitted();
+				operationExecutorFactory.getSegmentStaging().committed();
+				if (manager != null) {
+					manager.notifyCommit(indexName);
+				}
 				if (log.isTraceEnabled()) {
 					log.trace("Committed writer for index " + AmanuensisManager.getUniqueDirectoryIdentifier(directory));
 				}
@@ -117,7 +1074,17 @@ public class ExecutorContext {
 		writer = null;
 		if (w != null) {
 			try {
+				// So that the commit made by close is identified as well
+				w.commit(getCommitUserData());
 				w.close();
+				if (writeAheadLog != null) {
+					committedVersion = readIndexVersion();
+				}
+				if (!uncommitted.isEmpty()) {
+					// Closing committed them
+					clearUncommitted();
+					checkpoint();
+				}
 				if (log.isTraceEnabled()) {
 					log.debug("Closed writer for index " + AmanuensisManager.getUniqueDirectoryIdentifier(directory));
 				}
@@ -154,9 +1121,13 @@ public class ExecutorContext {
 				log.error("Error during rollback/close", e);
 			} finally {
 				writer = null;
+				uncommittedLost = !uncommitted.isEmpty();
+				metrics.rolledBack();
+				markChanged();
 			}
+			// The lock was ours
+			forceUnlock();
 		}
-		forceUnlock();		
 	}
 
 	public synchronized void forceUnlock() {
@@ -176,12 +1147,12 @@ public class ExecutorContext {
 	 * @author Tristan Tarrant
 	 * @author Sanne Grinovero
 	 */
-	private static class ExecutorThreadFactory implements ThreadFactory {
+	public static class ExecutorThreadFactory implements ThreadFactory {
 		final ThreadGroup group;
 		final AtomicInteger threadNumber = new AtomicInteger(1);
 		final String namePrefix;
 
-		ExecutorThreadFactory(String groupname) {
+		public ExecutorThreadFactory(String groupname) {
 			SecurityManager s = System.getSecurityManager();
 			group = (s != null) ? s.getThreadGroup() : Thread.currentThread().getThreadGroup();
 			namePrefix = THREAD_GROUP_PREFIX + groupname + "-";
@@ -194,25 +1165,5 @@ public class ExecutorContext {
 
 	}
 
-	/**
-	 * Provide an implementation of {@link RejectedExecutionHandler} which
-	 * queues up threads
-	 * 
-	 * @author Tristan Tarrant
-	 * @author Sanne Grinovero
-	 */
-	public static class BlockingPolicy implements RejectedExecutionHandler {
-		public BlockingPolicy() {
-		}
-
-		public void rejectedExecution(Runnable r, ThreadPoolExecutor exec) {
-			try {
-				exec.getQueue().put(r);
-			} catch (InterruptedException e) {
-				log.error("Work discarded, thread was interrupted while waiting for space to schedule: {}", r);
-			}
-		}
-	}
-
 	
 }
@@ -29,5 +29,6 @@ import java.io.Serializable;
  * @author Tristan Tarrant
  */
 public abstract class IndexOperation implements Serializable {
-	
+
+	public abstract OperationType getType();
 }
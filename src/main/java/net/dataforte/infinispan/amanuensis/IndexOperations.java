@@ -36,6 +36,10 @@ import java.util.List;
 public class IndexOperations implements Serializable {
 	final String indexName;
 	List<IndexOperation> operations = new ArrayList<IndexOperation>();
+	long sourceId;
+	long sequence;
+	transient long queuedBytes; // reserved while queued on the master
+	transient long queuedTime;
 
 	public IndexOperations(String indexName) {
 		this.indexName = indexName;
@@ -69,6 +73,36 @@ public class IndexOperations implements Serializable {
 		return operations;
 	}
 
+	/**
+	 * Returns the identifier of the dispatcher which sent this message
+	 */
+	public long getSourceId() {
+		return sourceId;
+	}
+
+	/**
+	 * Returns the sequence number of this message among those sent by its
+	 * source, or 0 if the message is not subject to duplicate detection
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Identifies this message, so that the master can discard it if it is
+	 * delivered more than once
+	 * 
+	 * @param sourceId
+	 *            the identifier of the sender
+	 * @param sequence
+	 *            a positive number, increasing with each message of the
+	 *            sender
+	 */
+	public void setId(long sourceId, long sequence) {
+		this.sourceId = sourceId;
+		this.sequence = sequence;
+	}
+
 	@Override
 	public String toString() {
 		return "IndexOperations [indexName=" + indexName + ", operations=" + operations + "]";
@@ -0,0 +1,153 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.infinispan.remoting.transport.Address;
+
+/**
+ * Decides which member of the cluster is the master of each index. By
+ * default the coordinator is the master of all the indexes. With distributed
+ * ownership the indexes are spread across the members by rendezvous
+ * (highest random weight) hashing: every member is given a weight for each
+ * index and the heaviest one owns it. Since all the nodes see the same view,
+ * they agree on the owners without talking to each other, and when a member
+ * joins or leaves only the indexes it wins or loses change owner.
+ * 
+ * When a node takes over an index from an owner which is still a member, that
+ * owner may still be applying the operations it had queued: the handoff is
+ * pending until the previous owner has released the index lock or has left
+ * the cluster, and only in the latter case may the lock be forced.
+ * 
+ * @author Tristan Tarrant
+ */
+public class IndexOwnership {
+	private boolean distributed = false;
+	private final ConcurrentMap<String, Address> previousOwners = new ConcurrentHashMap<String, Address>();
+
+	public boolean isDistributed() {
+		return distributed;
+	}
+
+	public void setDistributed(boolean distributed) {
+		this.distributed = distributed;
+	}
+
+	/**
+	 * Returns the owner of the index among the members of a view, or null if
+	 * the view is empty
+	 * 
+	 * @param indexName
+	 * @param members
+	 *            the members of the view, the coordinator first
+	 * @return
+	 */
+	public Address ownerOf(String indexName, List<Address> members) {
+		if (members == null || members.isEmpty()) {
+			return null;
+		}
+		if (!distributed) {
+			return members.get(0);
+		}
+		int indexHash = indexName.hashCode();
+		Address owner = null;
+		long maxWeight = Long.MIN_VALUE;
+		for (Address member : members) {
+			long weight = mix(((long) indexHash << 32) ^ (member.hashCode() & 0xFFFFFFFFL));
+			if (owner == null || weight > maxWeight) {
+				owner = member;
+				maxWeight = weight;
+			}
+		}
+		return owner;
+	}
+
+	/**
+	 * Records that the local node has taken over the index from the specified
+	 * owner
+	 * 
+	 * @param indexName
+	 * @param previousOwner
+	 */
+	public void handedOver(String indexName, Address previousOwner) {
+		previousOwners.put(indexName, previousOwner);
+	}
+
+	/**
+	 * Returns the owner from which the local node has taken over the index,
+	 * as long as the handoff is pending, or null
+	 * 
+	 * @param indexName
+	 * @return
+	 */
+	public Address getPreviousOwner(String indexName) {
+		return previousOwners.get(indexName);
+	}
+
+	/**
+	 * Returns whether the previous owner of the index may still be using it,
+	 * i.e. whether it is still one of the members. A previous owner which has
+	 * left completes the handoff.
+	 * 
+	 * @param indexName
+	 * @param members
+	 *            the members of the current view
+	 * @return
+	 */
+	public boolean isHandoffPending(String indexName, List<Address> members) {
+		Address previousOwner = previousOwners.get(indexName);
+		if (previousOwner == null) {
+			return false;
+		}
+		if (members != null && members.contains(previousOwner)) {
+			return true;
+		}
+		previousOwners.remove(indexName, previousOwner);
+		return false;
+	}
+
+	/**
+	 * Records that the local node has obtained the index lock, or has lost
+	 * the index again
+	 * 
+	 * @param indexName
+	 */
+	public void handoffCompleted(String indexName) {
+		previousOwners.remove(indexName);
+	}
+
+	/**
+	 * The finalization step of MurmurHash3, which spreads the bits of the
+	 * combined hash codes
+	 */
+	private static long mix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+}
@@ -0,0 +1,89 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis;
+
+/**
+ * A number of bytes which may be reserved and released, used to bound the
+ * memory held by queued messages. A reservation which exceeds the whole
+ * budget is granted when nothing else is reserved, so that a single oversized
+ * message cannot block forever.
+ * 
+ * @author Tristan Tarrant
+ */
+public class MemoryBudget {
+	private long limit;
+	private long used; // guarded by this
+
+	public MemoryBudget(long limit) {
+		setLimit(limit);
+	}
+
+	public synchronized long getLimit() {
+		return limit;
+	}
+
+	public synchronized void setLimit(long limit) {
+		if (limit < 1) {
+			throw new IllegalArgumentException("limit must be at least 1");
+		}
+		this.limit = limit;
+		notifyAll();
+	}
+
+	/**
+	 * Returns the number of bytes currently reserved
+	 */
+	public synchronized long getUsed() {
+		return used;
+	}
+
+	/**
+	 * Reserves the bytes if they fit in the budget
+	 * 
+	 * @param bytes
+	 * @return true if the bytes have been reserved
+	 */
+	public synchronized boolean tryAcquire(long bytes) {
+		if (used > 0 && used + bytes > limit) {
+			return false;
+		}
+		used += bytes;
+		return true;
+	}
+
+	/**
+	 * Reserves the bytes, waiting for them to fit in the budget
+	 * 
+	 * @param bytes
+	 * @throws InterruptedException
+	 */
+	public synchronized void acquire(long bytes) throws InterruptedException {
+		while (!tryAcquire(bytes)) {
+			wait();
+		}
+	}
+
+	public synchronized void release(long bytes) {
+		used -= bytes;
+		notifyAll();
+	}
+}
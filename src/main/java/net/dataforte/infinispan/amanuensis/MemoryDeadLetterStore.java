@@ -0,0 +1,124 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import net.dataforte.commons.slf4j.LoggerFactory;
+
+import org.slf4j.Logger;
+
+/**
+ * A {@link DeadLetterStore} which logs the rejected operations and keeps the
+ * most recent ones in memory
+ * 
+ * @author Tristan Tarrant
+ */
+public class MemoryDeadLetterStore implements DeadLetterStore {
+	private static final Logger log = LoggerFactory.make();
+	private final LinkedList<Entry> entries = new LinkedList<Entry>(); // guarded by itself
+	private int capacity = 1000;
+	private long count = 0;
+
+	@Override
+	public void store(String indexName, IndexOperation operation, Throwable cause) {
+		log.error("Rejected operation " + operation + " for index " + indexName, cause);
+		synchronized (entries) {
+			entries.addLast(new Entry(indexName, operation, cause, System.currentTimeMillis()));
+			++count;
+			while (entries.size() > capacity) {
+				entries.removeFirst();
+			}
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Sets the number of rejected operations which are kept
+	 * 
+	 * @param capacity
+	 */
+	public void setCapacity(int capacity) {
+		synchronized (entries) {
+			this.capacity = capacity;
+		}
+	}
+
+	/**
+	 * Returns the total number of operations which have been rejected
+	 */
+	public long getCount() {
+		synchronized (entries) {
+			return count;
+		}
+	}
+
+	/**
+	 * Returns the most recently rejected operations, oldest first
+	 */
+	public List<Entry> getEntries() {
+		synchronized (entries) {
+			return new ArrayList<Entry>(entries);
+		}
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	public static class Entry {
+		private final String indexName;
+		private final IndexOperation operation;
+		private final Throwable cause;
+		private final long timestamp;
+
+		Entry(String indexName, IndexOperation operation, Throwable cause, long timestamp) {
+			this.indexName = indexName;
+			this.operation = operation;
+			this.cause = cause;
+			this.timestamp = timestamp;
+		}
+
+		public String getIndexName() {
+			return indexName;
+		}
+
+		public IndexOperation getOperation() {
+			return operation;
+		}
+
+		public Throwable getCause() {
+			return cause;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.dataforte.infinispan.amanuensis.ops.AddDocumentOperation;
+import net.dataforte.infinispan.amanuensis.ops.DeleteDocumentsTermsOperation;
+import net.dataforte.infinispan.amanuensis.ops.UpdateDocumentOperation;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.index.Term;
+
+/**
+ * Rewrites a sequence of {@link IndexOperation}s into an equivalent, shorter
+ * one, so that documents which are updated several times within a batch are
+ * only analyzed and written once:
+ * <ul>
+ * <li>a delete of a single term immediately followed by the addition of a
+ * document keyed by that term becomes an {@link UpdateDocumentOperation}</li>
+ * <li>an update, or a delete of a single term, is dropped when a later update
+ * of the same term follows, since that update deletes the document again</li>
+ * </ul>
+ * A document is keyed by a term when it contains an indexed, untokenized
+ * field whose value is exactly the term's text. Updates of documents which do
+ * not contain their own key are never dropped.
+ * 
+ * @author Tristan Tarrant
+ */
+public class OperationCoalescer {
+
+	private OperationCoalescer() {
+	}
+
+	/**
+	 * Coalesces the operations of all the messages, in order
+	 * 
+	 * @param batch
+	 * @return the coalesced operations
+	 */
+	public static List<IndexOperation> coalesce(List<IndexOperations> batch) {
+		List<IndexOperation> operations = new ArrayList<IndexOperation>();
+		for (IndexOperations ops : batch) {
+			operations.addAll(ops.getOperations());
+		}
+		return coalesceOperations(operations);
+	}
+
+	/**
+	 * Coalesces the specified operations
+	 * 
+	 * @param operations
+	 * @return the coalesced operations, or the original list if nothing could
+	 *         be coalesced
+	 */
+	public static List<IndexOperation> coalesceOperations(List<IndexOperation> operations) {
+		if (operations.size() < 2) {
+			return operations;
+		}
+		boolean changed = false;
+		// Merge delete+add pairs into updates
+		List<IndexOperation> merged = new ArrayList<IndexOperation>(operations.size());
+		for (int i = 0; i < operations.size(); i++) {
+			IndexOperation op = operations.get(i);
+			Term term = singleTerm(op);
+			if (term != null && i + 1 < operations.size() && operations.get(i + 1) instanceof AddDocumentOperation) {
+				Document doc = ((AddDocumentOperation) operations.get(i + 1)).getDoc();
+				if (isKeyedBy(doc, term)) {
+					merged.add(new UpdateDocumentOperation(term, doc));
+					++i;
+					changed = true;
+					continue;
+				}
+			}
+			merged.add(op);
+		}
+		// Walk backwards dropping operations superseded by a later update
+		Set<Term> updated = new HashSet<Term>();
+		boolean[] superseded = new boolean[merged.size()];
+		for (int i = merged.size() - 1; i >= 0; i--) {
+			IndexOperation op = merged.get(i);
+			if (op instanceof UpdateDocumentOperation) {
+				UpdateDocumentOperation update = (UpdateDocumentOperation) op;
+				if (updated.contains(update.getTerm()) && isKeyedBy(update.getDoc(), update.getTerm())) {
+					superseded[i] = true;
+				} else {
+					updated.add(update.getTerm());
+				}
+			} else {
+				Term term = singleTerm(op);
+				if (term != null && updated.contains(term)) {
+					superseded[i] = true;
+				}
+			}
+		}
+		List<IndexOperation> result = new ArrayList<IndexOperation>(merged.size());
+		for (int i = 0; i < merged.size(); i++) {
+			if (superseded[i]) {
+				changed = true;
+			} else {
+				result.add(merged.get(i));
+			}
+		}
+		return changed ? result : operations;
+	}
+
+	private static Term singleTerm(IndexOperation op) {
+		if (op instanceof DeleteDocumentsTermsOperation) {
+			Term[] terms = ((DeleteDocumentsTermsOperation) op).getTerms();
+			if (terms.length == 1) {
+				return terms[0];
+			}
+		}
+		return null;
+	}
+
+	private static boolean isKeyedBy(Document doc, Term term) {
+		for (Fieldable field : doc.getFieldables(term.field())) {
+			if (field.isIndexed() && !field.isTokenized() && term.text().equals(field.stringValue())) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -22,5 +22,17 @@
 package net.dataforte.infinispan.amanuensis;
 
 public interface OperationDispatcher {
-	void dispatch(final IndexOperations ops) throws IndexerException;
+	/**
+	 * Dispatches the operations to the node which applies them to the index
+	 * 
+	 * @param ops
+	 * @return a future which completes when the operations have been accepted
+	 * @throws IndexerException
+	 */
+	DispatchFuture dispatch(final IndexOperations ops) throws IndexerException;
+
+	/**
+	 * Releases any resources held by this dispatcher
+	 */
+	void close();
 }
@@ -22,6 +22,7 @@
 package net.dataforte.infinispan.amanuensis;
 
 import java.io.IOException;
+import java.util.List;
 
 import org.apache.lucene.index.IndexWriter;
 
@@ -29,10 +30,38 @@ import org.apache.lucene.index.IndexWriter;
 public abstract class OperationExecutor<T extends IndexOperation> {
 
 	 public abstract void execute(IndexWriter w, T op) throws IOException;
+
+	/**
+	 * Executes a run of consecutive operations of this executor's type.
+	 * Executors which can apply several operations with a single
+	 * {@link IndexWriter} call should override this, provided that call can
+	 * safely be repeated one operation at a time if it fails.
+	 * 
+	 * @param w
+	 * @param ops
+	 * @throws IOException
+	 * @throws OperationFailedException
+	 *             if one of the operations fails, after the preceding ones
+	 *             have been applied
+	 */
+	public void execute(IndexWriter w, List<T> ops) throws IOException {
+		for (int i = 0; i < ops.size(); i++) {
+			try {
+				execute(w, ops.get(i));
+			} catch (RuntimeException e) {
+				throw new OperationFailedException(i, e);
+			}
+		}
+	}
 	
 	@SuppressWarnings(value="unchecked")
 	public void exec(IndexWriter w, IndexOperation op) throws IOException {
 		this.execute(w, (T)op);
 	}
+
+	@SuppressWarnings(value="unchecked")
+	public void exec(IndexWriter w, List<? extends IndexOperation> ops) throws IOException {
+		this.execute(w, (List<T>)ops);
+	}
 	
 }
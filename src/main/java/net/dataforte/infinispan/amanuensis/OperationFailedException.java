@@ -0,0 +1,45 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis;
+
+/**
+ * Thrown by {@link OperationExecutor#execute(org.apache.lucene.index.IndexWriter, java.util.List)}
+ * when one of the operations of a run fails: the operations which precede it
+ * have been applied, the ones which follow it have not.
+ * 
+ * @author Tristan Tarrant
+ */
+public class OperationFailedException extends RuntimeException {
+	private final int index;
+
+	public OperationFailedException(int index, RuntimeException cause) {
+		super(cause);
+		this.index = index;
+	}
+
+	/**
+	 * Returns the position of the failed operation within the run
+	 */
+	public int getIndex() {
+		return index;
+	}
+}
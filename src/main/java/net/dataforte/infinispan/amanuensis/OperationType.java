@@ -0,0 +1,70 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis;
+
+/**
+ * The types of {@link IndexOperation}. Each type has a stable code which is
+ * used to identify it on the wire.
+ * 
+ * @author Tristan Tarrant
+ */
+public enum OperationType {
+	ADD_DOCUMENT(1),
+	DELETE_DOCUMENTS_TERMS(2),
+	DELETE_DOCUMENTS_QUERIES(3),
+	OPTIMIZE_INDEX(4),
+	UPDATE_DOCUMENT(5),
+	SEGMENT_CHUNK(6),
+	ADD_INDEXES(7),
+	EXPUNGE_DELETES(8),
+	COMMIT(9);
+
+	private static final OperationType[] BY_CODE;
+
+	static {
+		int max = 0;
+		for (OperationType type : values()) {
+			max = Math.max(max, type.code);
+		}
+		BY_CODE = new OperationType[max + 1];
+		for (OperationType type : values()) {
+			BY_CODE[type.code] = type;
+		}
+	}
+
+	private final byte code;
+
+	private OperationType(int code) {
+		this.code = (byte) code;
+	}
+
+	public byte getCode() {
+		return code;
+	}
+
+	public static OperationType fromCode(byte code) {
+		if (code <= 0 || code >= BY_CODE.length || BY_CODE[code] == null) {
+			throw new IllegalArgumentException("Unknown operation type " + code);
+		}
+		return BY_CODE[code];
+	}
+}
@@ -0,0 +1,102 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.analysis;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Fieldable;
+
+/**
+ * Analyzes the tokenized fields of a {@link Document} in advance, producing a
+ * copy of the document whose fields carry {@link PreAnalyzedTokenStream}s. A
+ * field's stored value, if any, is kept.
+ * 
+ * @author Tristan Tarrant
+ */
+public class DocumentAnalyzer {
+	private final Analyzer analyzer;
+
+	public DocumentAnalyzer(Analyzer analyzer) {
+		this.analyzer = analyzer;
+	}
+
+	/**
+	 * Analyzes the document's fields. The document itself is left untouched:
+	 * the analyzed fields are copied into the returned document, which shares
+	 * all the other fields with the original one. The readers of
+	 * reader-valued fields are consumed.
+	 * 
+	 * @param doc
+	 * @return a copy of the document, with pre-analyzed token streams
+	 * @throws IOException
+	 */
+	public Document analyze(Document doc) throws IOException {
+		Document analyzed = new Document();
+		analyzed.setBoost(doc.getBoost());
+		for (Fieldable fieldable : doc.getFields()) {
+			analyzed.add(analyze(fieldable));
+		}
+		return analyzed;
+	}
+
+	private Fieldable analyze(Fieldable fieldable) throws IOException {
+		if (!(fieldable instanceof Field) || !fieldable.isIndexed() || !fieldable.isTokenized() || fieldable.tokenStreamValue() != null) {
+			return fieldable;
+		}
+		Field field = (Field) fieldable;
+		Reader reader;
+		if (field.readerValue() != null) {
+			reader = field.readerValue();
+		} else if (field.stringValue() != null) {
+			reader = new StringReader(field.stringValue());
+		} else {
+			return fieldable;
+		}
+		PreAnalyzedTokenStream tokenStream = PreAnalyzedTokenStream.capture(analyzer.reusableTokenStream(field.name(), reader));
+		Field copy;
+		if (field.isStored() && field.stringValue() != null) {
+			copy = new Field(field.name(), field.stringValue(), Field.Store.YES, Field.Index.ANALYZED, termVector(field));
+			copy.setTokenStream(tokenStream);
+		} else {
+			copy = new Field(field.name(), tokenStream, termVector(field));
+		}
+		copy.setOmitNorms(field.getOmitNorms());
+		copy.setOmitTermFreqAndPositions(field.getOmitTermFreqAndPositions());
+		copy.setBoost(field.getBoost());
+		return copy;
+	}
+
+	private static Field.TermVector termVector(Field field) {
+		if (!field.isTermVectorStored()) {
+			return Field.TermVector.NO;
+		}
+		if (field.isStorePositionWithTermVector()) {
+			return field.isStoreOffsetWithTermVector() ? Field.TermVector.WITH_POSITIONS_OFFSETS : Field.TermVector.WITH_POSITIONS;
+		}
+		return field.isStoreOffsetWithTermVector() ? Field.TermVector.WITH_OFFSETS : Field.TermVector.YES;
+	}
+}
@@ -0,0 +1,208 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.analysis;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.Token;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.index.Payload;
+
+/**
+ * A {@link TokenStream} which replays the tokens captured from another
+ * {@link TokenStream}: term, position increment, offsets, type and payload. It
+ * allows a field to be analyzed on one node and indexed on another, by setting
+ * it with {@link org.apache.lucene.document.Field#setTokenStream(TokenStream)}.
+ * 
+ * @author Tristan Tarrant
+ */
+public final class PreAnalyzedTokenStream extends TokenStream {
+	private static final int INITIAL_CAPACITY = 16;
+	private final TermAttribute termAtt = addAttribute(TermAttribute.class);
+	private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+	private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+	private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
+	private final PayloadAttribute payloadAtt = addAttribute(PayloadAttribute.class);
+
+	private int count;
+	private String[] terms;
+	private int[] positionIncrements;
+	private int[] startOffsets;
+	private int[] endOffsets;
+	private String[] types;
+	private byte[][] payloads;
+	private int finalOffset;
+	private int current;
+
+	/**
+	 * Creates an empty stream, to be filled with
+	 * {@link #addToken(String, int, int, int, String, byte[])}
+	 */
+	public PreAnalyzedTokenStream() {
+		this(INITIAL_CAPACITY);
+	}
+
+	public PreAnalyzedTokenStream(int capacity) {
+		capacity = Math.max(1, capacity);
+		terms = new String[capacity];
+		positionIncrements = new int[capacity];
+		startOffsets = new int[capacity];
+		endOffsets = new int[capacity];
+		types = new String[capacity];
+		payloads = new byte[capacity][];
+	}
+
+	/**
+	 * Consumes the stream, capturing its tokens, and closes it
+	 * 
+	 * @param stream
+	 * @return
+	 * @throws IOException
+	 */
+	public static PreAnalyzedTokenStream capture(TokenStream stream) throws IOException {
+		PreAnalyzedTokenStream captured = new PreAnalyzedTokenStream();
+		TermAttribute term = stream.addAttribute(TermAttribute.class);
+		PositionIncrementAttribute posInc = stream.hasAttribute(PositionIncrementAttribute.class) ? stream.getAttribute(PositionIncrementAttribute.class) : null;
+		OffsetAttribute offset = stream.hasAttribute(OffsetAttribute.class) ? stream.getAttribute(OffsetAttribute.class) : null;
+		TypeAttribute type = stream.hasAttribute(TypeAttribute.class) ? stream.getAttribute(TypeAttribute.class) : null;
+		PayloadAttribute payload = stream.hasAttribute(PayloadAttribute.class) ? stream.getAttribute(PayloadAttribute.class) : null;
+		try {
+			stream.reset();
+			while (stream.incrementToken()) {
+				Payload p = payload != null ? payload.getPayload() : null;
+				captured.addToken(term.term(), posInc != null ? posInc.getPositionIncrement() : 1, offset != null ? offset.startOffset() : 0, offset != null ? offset
+						.endOffset() : 0, type != null ? type.type() : Token.DEFAULT_TYPE, p != null ? p.toByteArray() : null);
+			}
+			stream.end();
+			captured.setFinalOffset(offset != null ? offset.endOffset() : 0);
+		} finally {
+			stream.close();
+		}
+		return captured;
+	}
+
+	public void addToken(String term, int positionIncrement, int startOffset, int endOffset, String type, byte[] payload) {
+		if (count == terms.length) {
+			grow();
+		}
+		terms[count] = term;
+		positionIncrements[count] = positionIncrement;
+		startOffsets[count] = startOffset;
+		endOffsets[count] = endOffset;
+		types[count] = type;
+		payloads[count] = payload;
+		++count;
+	}
+
+	private void grow() {
+		int capacity = terms.length * 2;
+		String[] newTerms = new String[capacity];
+		int[] newPositionIncrements = new int[capacity];
+		int[] newStartOffsets = new int[capacity];
+		int[] newEndOffsets = new int[capacity];
+		String[] newTypes = new String[capacity];
+		byte[][] newPayloads = new byte[capacity][];
+		System.arraycopy(terms, 0, newTerms, 0, count);
+		System.arraycopy(positionIncrements, 0, newPositionIncrements, 0, count);
+		System.arraycopy(startOffsets, 0, newStartOffsets, 0, count);
+		System.arraycopy(endOffsets, 0, newEndOffsets, 0, count);
+		System.arraycopy(types, 0, newTypes, 0, count);
+		System.arraycopy(payloads, 0, newPayloads, 0, count);
+		terms = newTerms;
+		positionIncrements = newPositionIncrements;
+		startOffsets = newStartOffsets;
+		endOffsets = newEndOffsets;
+		types = newTypes;
+		payloads = newPayloads;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public String getTerm(int i) {
+		return terms[i];
+	}
+
+	public int getPositionIncrement(int i) {
+		return positionIncrements[i];
+	}
+
+	public int getStartOffset(int i) {
+		return startOffsets[i];
+	}
+
+	public int getEndOffset(int i) {
+		return endOffsets[i];
+	}
+
+	public String getType(int i) {
+		return types[i];
+	}
+
+	/**
+	 * Returns the payload of the token, or null
+	 */
+	public byte[] getPayload(int i) {
+		return payloads[i];
+	}
+
+	public int getFinalOffset() {
+		return finalOffset;
+	}
+
+	public void setFinalOffset(int finalOffset) {
+		this.finalOffset = finalOffset;
+	}
+
+	@Override
+	public boolean incrementToken() {
+		if (current >= count) {
+			return false;
+		}
+		clearAttributes();
+		termAtt.setTermBuffer(terms[current]);
+		posIncAtt.setPositionIncrement(positionIncrements[current]);
+		offsetAtt.setOffset(startOffsets[current], endOffsets[current]);
+		typeAtt.setType(types[current]);
+		if (payloads[current] != null) {
+			payloadAtt.setPayload(new Payload(payloads[current]));
+		}
+		++current;
+		return true;
+	}
+
+	@Override
+	public void end() {
+		offsetAtt.setOffset(finalOffset, finalOffset);
+	}
+
+	@Override
+	public void reset() {
+		current = 0;
+	}
+}
@@ -21,15 +21,35 @@
 
 package net.dataforte.infinispan.amanuensis.backend.jgroups;
 
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import net.dataforte.commons.slf4j.LoggerFactory;
 import net.dataforte.infinispan.amanuensis.AmanuensisManager;
+import net.dataforte.infinispan.amanuensis.DispatchFuture;
+import net.dataforte.infinispan.amanuensis.DispatchListener;
+import net.dataforte.infinispan.amanuensis.ExecutorContext;
+import net.dataforte.infinispan.amanuensis.IndexBusyException;
 import net.dataforte.infinispan.amanuensis.IndexOperations;
 import net.dataforte.infinispan.amanuensis.IndexerException;
 import net.dataforte.infinispan.amanuensis.OperationDispatcher;
+import net.dataforte.infinispan.amanuensis.codec.IndexOperationsCodec;
+import net.dataforte.infinispan.amanuensis.jmx.LatencyHistogram;
+import net.dataforte.infinispan.amanuensis.jmx.Meter;
+import net.dataforte.infinispan.amanuensis.jmx.StripedCounter;
 
 import org.infinispan.remoting.transport.jgroups.JGroupsAddress;
 import org.jgroups.Address;
@@ -37,11 +57,18 @@ import org.jgroups.Message;
 import org.jgroups.blocks.Request;
 import org.jgroups.blocks.RequestOptions;
 import org.jgroups.blocks.mux.MuxMessageDispatcher;
+import org.jgroups.util.FutureListener;
+import org.jgroups.util.NotifyingFuture;
 import org.slf4j.Logger;
 
 /**
  * This class takes care of dispatching {@link IndexOperations} messages from
- * the slaves to the master.
+ * the slaves to the master. Messages are sent asynchronously: up to
+ * {@link #getMaxInFlight()} messages may be awaiting an acknowledgement from
+ * the master at any one time, after which callers of
+ * {@link #dispatch(IndexOperations)} wait for a slot to become available.
+ * Failed or timed out messages are retried on a single scheduler thread shared
+ * by all the messages.
  * 
  * @author Tristan Tarrant
  */
@@ -52,11 +79,32 @@ public class JGroupsOperationDispatcher implements OperationDispatcher {
 	private RequestOptions requestOptions;
 	private int maxRetries = 10;
 	private int minTimeout = 10000;
+	private int maxInFlight = 32;
+	private int busyRetryDelay = 50;
+	private int maxBusyRetries = 30;
+	private int inFlight = 0; // guarded by windowLock
+	private final Lock windowLock = new ReentrantLock();
+	private final Condition windowAvailable = windowLock.newCondition();
+	private final ScheduledExecutorService scheduler;
+	private final long sourceId = new SecureRandom().nextLong();
+	private final AtomicLong sequence = new AtomicLong();
+	private final Meter delivered = new Meter();
+	private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+	private final StripedCounter retries = new StripedCounter();
+	private final StripedCounter busyRetries = new StripedCounter();
+	private final StripedCounter failures = new StripedCounter();
+	private final DispatchListener windowReleaser = new DispatchListener() {
+		@Override
+		public void dispatchComplete(DispatchFuture future) {
+			releaseWindow();
+		}
+	};
 
 	public JGroupsOperationDispatcher(AmanuensisManager manager, MuxMessageDispatcher messageDispatcher) {
 		this.manager = manager;
 		this.messageDispatcher = messageDispatcher;
-		this.requestOptions = new RequestOptions(Request.GET_ALL, 10000); // We want synchronous, and we can wait for 10 seconds
+		this.requestOptions = new RequestOptions(Request.GET_ALL, 10000); // We want an acknowledgement, and we can wait for 10 seconds
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ExecutorContext.ExecutorThreadFactory("Dispatcher"));
 	}
 
 	public RequestOptions getRequestOptions() {
@@ -79,50 +127,330 @@ public class JGroupsOperationDispatcher implements OperationDispatcher {
 		return minTimeout;
 	}
 
+	/**
+	 * Sets the delay (in milliseconds) before a failed message is sent again
+	 * 
+	 * @param minTimeout
+	 */
 	public void setMinTimeout(int minTimeout) {
 		this.minTimeout = minTimeout;
 	}
 
+	public int getBusyRetryDelay() {
+		return busyRetryDelay;
+	}
+
+	/**
+	 * Sets the initial delay (in milliseconds) before a message which the
+	 * master refused because its queues are full is sent again. The delay
+	 * doubles with each refusal, up to {@link #getMinTimeout()}. Refusals do
+	 * not count towards {@link #getMaxRetries()}, and the message keeps its
+	 * slot in the window meanwhile, so that callers are slowed down.
+	 * 
+	 * @param busyRetryDelay
+	 */
+	public void setBusyRetryDelay(int busyRetryDelay) {
+		this.busyRetryDelay = busyRetryDelay;
+	}
+
+	public int getMaxBusyRetries() {
+		return maxBusyRetries;
+	}
+
+	/**
+	 * Sets how many times a message refused by a busy master is sent again
+	 * before giving up on it. Defaults to 30, which, with the default delays,
+	 * amounts to about four and a half minutes.
+	 * 
+	 * @param maxBusyRetries
+	 */
+	public void setMaxBusyRetries(int maxBusyRetries) {
+		if (maxBusyRetries < 0) {
+			throw new IllegalArgumentException("maxBusyRetries must not be negative");
+		}
+		this.maxBusyRetries = maxBusyRetries;
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Sets the maximum number of messages which may be awaiting an
+	 * acknowledgement from the master
+	 * 
+	 * @param maxInFlight
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("maxInFlight must be at least 1");
+		}
+		windowLock.lock();
+		try {
+			this.maxInFlight = maxInFlight;
+			windowAvailable.signalAll();
+		} finally {
+			windowLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of messages currently awaiting an acknowledgement
+	 */
+	public int getInFlight() {
+		windowLock.lock();
+		try {
+			return inFlight;
+		} finally {
+			windowLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number and rate of the messages acknowledged by the master
+	 */
+	public Meter getDelivered() {
+		return delivered;
+	}
+
+	/**
+	 * Returns the time from the dispatch of a message to its acknowledgement,
+	 * including its retries
+	 */
+	public LatencyHistogram getDeliveryLatency() {
+		return deliveryLatency;
+	}
+
+	/**
+	 * Returns the number of messages which have been sent again because they
+	 * failed or timed out
+	 */
+	public long getRetries() {
+		return retries.sum();
+	}
+
+	/**
+	 * Returns the number of messages which have been sent again because the
+	 * master's queues were full
+	 */
+	public long getBusyRetries() {
+		return busyRetries.sum();
+	}
+
+	/**
+	 * Returns the number of messages which could not be delivered
+	 */
+	public long getFailures() {
+		return failures.sum();
+	}
+
 	@Override
-	public void dispatch(final IndexOperations ops) throws IndexerException {
-		final ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-		
-		executor.scheduleWithFixedDelay(new Runnable() {
-			int retryCount = 0;
+	public DispatchFuture dispatch(final IndexOperations ops) throws IndexerException {
+		// Retries resend the same id, so the master can discard duplicates
+		if (ops.getSequence() == 0) {
+			ops.setId(sourceId, sequence.incrementAndGet());
+		}
+		byte[] payload;
+		try {
+			payload = IndexOperationsCodec.encode(ops);
+		} catch (IOException e) {
+			throw new IndexerException("Could not encode operations for index " + ops.getIndexName(), e);
+		}
+		acquireWindow();
+		DispatchFuture future = new DispatchFuture();
+		future.addListener(windowReleaser);
+		new Transmission(ops, payload, future).run();
+		return future;
+	}
 
-			@Override
-			public void run() {
-				Address dest = ((JGroupsAddress) manager.getMasterAddress()).getJGroupsAddress();
-				Address src = ((JGroupsAddress) manager.getLocalAddress()).getJGroupsAddress();
-				if(dest.equals(src)) {
-					try {
-						manager.dispatchOperations(ops);
-						executor.shutdown();
-						return;
-					} catch (IndexerException e) {
-						// Fall through
-					}					
+	@Override
+	public void close() {
+		scheduler.shutdown();
+	}
+
+	private void acquireWindow() throws IndexerException {
+		windowLock.lock();
+		try {
+			while (inFlight >= maxInFlight) {
+				windowAvailable.await();
+			}
+			++inFlight;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IndexerException("Interrupted while waiting to dispatch operations", e);
+		} finally {
+			windowLock.unlock();
+		}
+	}
+
+	private void releaseWindow() {
+		windowLock.lock();
+		try {
+			--inFlight;
+			windowAvailable.signal();
+		} finally {
+			windowLock.unlock();
+		}
+	}
+
+	/**
+	 * The delivery of a single message to the master, including its retries
+	 */
+	private class Transmission implements Runnable {
+		private final IndexOperations ops;
+		private final byte[] payload;
+		private final DispatchFuture future;
+		private int retryCount = 0;
+		private int busyCount = 0;
+		private int busyRetryCount = 0;
+		private final long start = System.nanoTime();
+
+		Transmission(IndexOperations ops, byte[] payload, DispatchFuture future) {
+			this.ops = ops;
+			this.payload = payload;
+			this.future = future;
+		}
+
+		@Override
+		public void run() {
+			Address dest = ((JGroupsAddress) manager.getMasterAddress(ops.getIndexName())).getJGroupsAddress();
+			Address src = ((JGroupsAddress) manager.getLocalAddress()).getJGroupsAddress();
+			if (dest.equals(src)) {
+				// We have become the master in the meantime
+				try {
+					manager.offerOperations(ops).addListener(new DispatchListener() {
+						@Override
+						public void dispatchComplete(DispatchFuture local) {
+							if (local.isSuccess()) {
+								delivered();
+							} else {
+								retry(local.getFailure());
+							}
+						}
+					});
+				} catch (IndexerException e) {
+					retry(e);
+				}
+				return;
+			}
+			Message message = new Message(dest, src, payload);
+			if (log.isTraceEnabled()) {
+				log.trace("Sending {} to {}", ops.toString(), dest.toString());
+			}
+			Attempt attempt = new Attempt(dest);
+			try {
+				NotifyingFuture<Object> response = messageDispatcher.sendMessageWithFuture(message, requestOptions);
+				attempt.response = response;
+				response.setListener(attempt);
+				attempt.timeout = scheduler.schedule(attempt, requestOptions.getTimeout(), TimeUnit.MILLISECONDS);
+			} catch (Exception e) {
+				attempt.finish(e);
+			}
+		}
+
+		void retry(Throwable t) {
+			if (t instanceof IndexBusyException) {
+				if (busyRetryCount >= maxBusyRetries) {
+					log.error("Could not send operations to master, still busy after " + busyRetryCount + " tries, giving up", t);
+					failed(t);
+					return;
+				}
+				++busyRetryCount;
+				long delay = Math.min((long) busyRetryDelay << Math.min(busyCount, 16), minTimeout);
+				++busyCount;
+				if (log.isDebugEnabled()) {
+					log.debug("Master busy, sending {} again in {}ms", ops.toString(), delay);
 				}
-				Message message = new Message(dest, src, ops);
-				if (log.isTraceEnabled()) {
-					log.trace("Sending {} to {}", ops.toString(), dest.toString());
+				try {
+					scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+					busyRetries.increment();
+					return;
+				} catch (RejectedExecutionException e) {
+					log.error("Could not send operations to master, dispatcher is closed");
+					failed(t);
+					return;
+				}
+			}
+			busyCount = 0;
+			++retryCount;
+			if (log.isDebugEnabled()) {
+				log.debug("Error while sending {}", ops.toString());
+			}
+			if (retryCount < maxRetries) {
+				log.warn("Sending operations to master failed, try #{}", retryCount);
+				try {
+					scheduler.schedule(this, minTimeout, TimeUnit.MILLISECONDS);
+					retries.increment();
+					return;
+				} catch (RejectedExecutionException e) {
+					log.error("Could not send operations to master, dispatcher is closed");
 				}
+			} else {
+				log.error("Could not send operations to master after " + maxRetries + " tries, giving up", t);
+			}
+			failed(t);
+		}
+
+		private void delivered() {
+			delivered.mark();
+			deliveryLatency.record(System.nanoTime() - start);
+			future.done();
+		}
+
+		private void failed(Throwable t) {
+			failures.increment();
+			future.fail(t);
+		}
+
+		/**
+		 * A single send of the message: completes either when the master
+		 * acknowledges it, when the send fails or when the timeout expires,
+		 * whichever happens first.
+		 */
+		private class Attempt implements FutureListener<Object>, Runnable {
+			private final AtomicBoolean finished = new AtomicBoolean(false);
+			private final Address dest;
+			volatile NotifyingFuture<Object> response;
+			volatile ScheduledFuture<?> timeout;
+
+			Attempt(Address dest) {
+				this.dest = dest;
+			}
+
+			@Override
+			public void futureDone(Future<Object> f) {
 				try {
-					messageDispatcher.sendMessage(message, requestOptions);
-					// No exception was raised, stop the executor
-					executor.shutdown();
+					Object rsp = f.get();
+					finish(rsp instanceof Throwable ? (Throwable) rsp : null);
+				} catch (ExecutionException e) {
+					finish(e.getCause());
 				} catch (Exception e) {
-					++retryCount;
-					if(log.isDebugEnabled()) {
-						log.debug("Error while sending {} to {}", ops.toString(), dest.toString());
-					}
-					if(retryCount<maxRetries) {
-						log.warn("Sending operations to {} failed, try #{}", dest.toString(), retryCount);
-					} else {
-						log.error("Could not send operations to "+dest.toString()+" after "+maxRetries + "tries, giving up", e);
-					}
+					finish(e);
+				}
+			}
+
+			@Override
+			public void run() {
+				finish(new TimeoutException("No acknowledgement from " + dest + " after " + requestOptions.getTimeout() + "ms"));
+				if (response != null) {
+					response.cancel(true);
+				}
+			}
+
+			void finish(Throwable t) {
+				if (!finished.compareAndSet(false, true)) {
+					return;
+				}
+				ScheduledFuture<?> pendingTimeout = timeout;
+				if (pendingTimeout != null) {
+					pendingTimeout.cancel(false);
+				}
+				if (t == null) {
+					delivered();
+				} else {
+					retry(t);
 				}
-				
-			}}, 0, minTimeout, TimeUnit.MILLISECONDS);
+			}
+		}
 	}
 }
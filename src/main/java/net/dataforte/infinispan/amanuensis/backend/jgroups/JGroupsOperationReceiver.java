@@ -21,21 +21,28 @@
 
 package net.dataforte.infinispan.amanuensis.backend.jgroups;
 
+import java.io.IOException;
+
 import net.dataforte.commons.slf4j.LoggerFactory;
 import net.dataforte.infinispan.amanuensis.AmanuensisManager;
+import net.dataforte.infinispan.amanuensis.CommitNotification;
+import net.dataforte.infinispan.amanuensis.DispatchFuture;
+import net.dataforte.infinispan.amanuensis.IndexBusyException;
 import net.dataforte.infinispan.amanuensis.IndexOperations;
-import net.dataforte.infinispan.amanuensis.IndexerException;
+import net.dataforte.infinispan.amanuensis.codec.IndexOperationsCodec;
 
 import org.apache.lucene.index.IndexWriter;
 import org.jgroups.Message;
 import org.jgroups.blocks.RequestHandler;
+import org.jgroups.blocks.RequestOptions;
 import org.jgroups.blocks.mux.MuxMessageDispatcher;
 import org.slf4j.Logger;
 
 /**
  * This class receives incoming messages from neighboring nodes, and passes them
  * onto an executor, which will then apply them to the appropriate
- * {@link IndexWriter}
+ * {@link IndexWriter}. It also broadcasts and receives the
+ * {@link CommitNotification}s sent by the master.
  * 
  * @author Tristan Tarrant
  */
@@ -47,7 +54,7 @@ public class JGroupsOperationReceiver implements RequestHandler {
 	public JGroupsOperationReceiver(AmanuensisManager manager, short scopeId) {
 		this.manager = manager;
 		// Register the dispatcher for receiving messages
-		this.dispatcher = new MuxMessageDispatcher(scopeId, MuxChannelLookup.getChannel(), null, null, this);
+		this.dispatcher = new MuxMessageDispatcher(scopeId, MuxChannelLookup.getChannel(manager.getCacheManager()), null, null, this);
 	}
 
 	public void close() {
@@ -58,12 +65,42 @@ public class JGroupsOperationReceiver implements RequestHandler {
 		return dispatcher;
 	}
 
+	/**
+	 * Asynchronously broadcasts a {@link CommitNotification} to all the nodes,
+	 * including this one
+	 * 
+	 * @param notification
+	 */
+	public void broadcastCommit(CommitNotification notification) {
+		try {
+			dispatcher.castMessage(null, new Message(null, null, IndexOperationsCodec.encode(notification)), RequestOptions.ASYNC());
+		} catch (Exception e) {
+			log.warn("Could not broadcast " + notification, e);
+		}
+	}
+
 	@Override
 	public Object handle(Message msg) {
 		IndexOperations ops;
 
 		try {
-			ops = (IndexOperations) msg.getObject();
+			if (IndexOperationsCodec.getKind(msg.getRawBuffer(), msg.getOffset(), msg.getLength()) == IndexOperationsCodec.KIND_COMMIT) {
+				CommitNotification notification = IndexOperationsCodec.decodeCommit(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+				if (log.isTraceEnabled()) {
+					log.trace("Received {} from {}", notification, msg.getSrc());
+				}
+				manager.commitNotified(notification);
+				return null;
+			} else if (IndexOperationsCodec.isEncoded(msg.getRawBuffer(), msg.getOffset(), msg.getLength())) {
+				// Decode straight from the message buffer
+				ops = IndexOperationsCodec.decode(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+			} else {
+				// Java serialized message from an older node
+				ops = (IndexOperations) msg.getObject();
+			}
+		} catch (IOException e) {
+			log.error("Malformed message received from " + msg.getSrc(), e);
+			return null;
 		} catch (ClassCastException e) {
 			log.error("Unexpected message received", e);
 			return null;
@@ -73,11 +110,17 @@ public class JGroupsOperationReceiver implements RequestHandler {
 			if (log.isTraceEnabled()) {
 				log.trace("Received {} operations from {}\n", ops, msg.getSrc());
 			}
-			// The manager knows what to do
-			try {
-				manager.dispatchOperations(ops);
-			} catch (IndexerException e) {
-				log.error("Error while dispatching operations {} received from {}", msg.getSrc(), ops);
+			if (!manager.isMaster(ops.getIndexName())) {
+				// Forwarding them would hold up this delivery thread: the
+				// sender retries against the new master once it has seen the
+				// new view
+				return new IndexBusyException("This node is no longer the master of index " + ops.getIndexName());
+			}
+			// Never waits: refused if the queues are full
+			DispatchFuture future = manager.getLocalOperationDispatcher().offer(ops);
+			if (!future.isSuccess()) {
+				// Let the sender retry, for example when the queues are full
+				return future.getFailure();
 			}
 		}
 		return null;
@@ -24,7 +24,10 @@ package net.dataforte.infinispan.amanuensis.backend.jgroups;
 import java.net.URL;
 import java.util.Properties;
 
+import org.infinispan.Cache;
 import org.infinispan.CacheException;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.remoting.transport.Transport;
 import org.infinispan.remoting.transport.jgroups.JGroupsChannelLookup;
 import org.infinispan.remoting.transport.jgroups.JGroupsTransport;
 import org.infinispan.util.FileLookup;
@@ -57,6 +60,43 @@ public class MuxChannelLookup implements JGroupsChannelLookup {
 		return muxedChannel;
 	}
 
+	/**
+	 * Returns the channel of the cache manager's transport, so that several
+	 * cache managers may run in the same JVM. The transport is a global
+	 * component, which is looked up through a cache which is already running,
+	 * whatever its clustering mode, so that no cache is started. Falls back to
+	 * the last channel created by this lookup if the transport's channel
+	 * cannot be obtained.
+	 * 
+	 * @param cacheManager
+	 * @return
+	 */
+	public static MuxChannel getChannel(EmbeddedCacheManager cacheManager) {
+		Cache<?, ?> cache = getRunningCache(cacheManager);
+		if (cache != null) {
+			Transport transport = cache.getAdvancedCache().getComponentRegistry().getGlobalComponentRegistry().getComponent(Transport.class);
+			if (transport instanceof JGroupsTransport) {
+				Channel channel = ((JGroupsTransport) transport).getChannel();
+				if (channel instanceof MuxChannel) {
+					return (MuxChannel) channel;
+				}
+			}
+		}
+		return muxedChannel;
+	}
+
+	private static Cache<?, ?> getRunningCache(EmbeddedCacheManager cacheManager) {
+		if (cacheManager.isDefaultRunning()) {
+			return cacheManager.getCache();
+		}
+		for (String name : cacheManager.getCacheNames()) {
+			if (cacheManager.isRunning(name)) {
+				return cacheManager.getCache(name, false);
+			}
+		}
+		return null;
+	}
+
 	@Override
 	public boolean shouldStartAndConnect() {
 		return true;
@@ -0,0 +1,208 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.backend.lucene;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Remembers which of the most recent sequence numbers of a message source
+ * have already been seen, so that duplicate deliveries can be discarded. The
+ * window is a ring of bits covering the {@link #getSize()} sequence numbers up
+ * to the highest one seen: messages may arrive out of order within it, while
+ * messages which are older than the window are assumed to be duplicates.
+ * It also remembers which messages have been refused, so that the later
+ * messages of the source for the same index can be held back until they have
+ * been accepted, preserving their order. A refusal expires if the message is
+ * not sent again in time, e.g. because the source has given up or has sent it
+ * to another master.
+ * 
+ * @author Tristan Tarrant
+ */
+public class DeduplicationWindow {
+	public static final int DEFAULT_SIZE = 4096;
+	public static final long DEFAULT_REFUSAL_EXPIRY = 30000;
+	private final long[] bits;
+	private final int size;
+	private long highest = 0; // highest sequence number seen, 0 if none
+	// for each index, the refused sequence numbers and when they were refused
+	private final Map<String, TreeMap<Long, Long>> refused = new HashMap<String, TreeMap<Long, Long>>();
+	private long refusalExpiry = DEFAULT_REFUSAL_EXPIRY;
+
+	/**
+	 * @param size
+	 *            the number of sequence numbers tracked, rounded up to a
+	 *            multiple of 64
+	 */
+	public DeduplicationWindow(int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("size must be at least 1");
+		}
+		this.bits = new long[(size + 63) >>> 6];
+		this.size = bits.length << 6;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public synchronized long getRefusalExpiry() {
+		return refusalExpiry;
+	}
+
+	/**
+	 * Sets how long (in milliseconds) a refused message holds back the
+	 * following ones if it is not sent again
+	 * 
+	 * @param refusalExpiry
+	 */
+	public synchronized void setRefusalExpiry(long refusalExpiry) {
+		this.refusalExpiry = refusalExpiry;
+	}
+
+	/**
+	 * Records the sequence number as seen
+	 * 
+	 * @param sequence
+	 *            a positive sequence number
+	 * @return true if it had not been seen before, false if the message is a
+	 *         duplicate
+	 */
+	public synchronized boolean accept(long sequence) {
+		if (sequence > highest) {
+			if (sequence - highest >= size) {
+				for (int i = 0; i < bits.length; i++) {
+					bits[i] = 0;
+				}
+			} else {
+				for (long s = highest + 1; s < sequence; s++) {
+					clear(s);
+				}
+			}
+			highest = sequence;
+			set(sequence);
+			return true;
+		} else if (highest - sequence >= size) {
+			// too old to tell, assume it was applied
+			return false;
+		} else if (isSet(sequence)) {
+			return false;
+		} else {
+			set(sequence);
+			return true;
+		}
+	}
+
+	/**
+	 * Forgets a sequence number, so that the message will be accepted again,
+	 * for example because it could not be processed
+	 * 
+	 * @param sequence
+	 */
+	public synchronized void forget(long sequence) {
+		if (sequence <= highest && highest - sequence < size) {
+			clear(sequence);
+		}
+	}
+
+	/**
+	 * Records that the message has been refused, so that it will be accepted
+	 * again and the messages for the same index which follow it will be held
+	 * back until then
+	 * 
+	 * @param indexName
+	 * @param sequence
+	 * @param now
+	 *            the current time, in milliseconds
+	 */
+	public synchronized void refuse(String indexName, long sequence, long now) {
+		forget(sequence);
+		TreeMap<Long, Long> refusedForIndex = refused.get(indexName);
+		if (refusedForIndex == null) {
+			refusedForIndex = new TreeMap<Long, Long>();
+			refused.put(indexName, refusedForIndex);
+		}
+		refusedForIndex.put(sequence, now);
+	}
+
+	/**
+	 * Returns whether the message must be refused because an earlier message
+	 * of the source for the same index has been refused, and has neither been
+	 * accepted since nor expired
+	 * 
+	 * @param indexName
+	 * @param sequence
+	 * @param now
+	 *            the current time, in milliseconds
+	 */
+	public synchronized boolean isHeldBack(String indexName, long sequence, long now) {
+		TreeMap<Long, Long> refusedForIndex = refused.get(indexName);
+		if (refusedForIndex == null) {
+			return false;
+		}
+		for (Iterator<Long> i = refusedForIndex.values().iterator(); i.hasNext();) {
+			if (now - i.next() >= refusalExpiry) {
+				i.remove();
+			}
+		}
+		if (refusedForIndex.isEmpty()) {
+			refused.remove(indexName);
+			return false;
+		}
+		return sequence > refusedForIndex.firstKey();
+	}
+
+	/**
+	 * Records that a message, which may have been refused before, has been
+	 * queued
+	 * 
+	 * @param indexName
+	 * @param sequence
+	 */
+	public synchronized void queued(String indexName, long sequence) {
+		TreeMap<Long, Long> refusedForIndex = refused.get(indexName);
+		if (refusedForIndex != null) {
+			refusedForIndex.remove(sequence);
+			if (refusedForIndex.isEmpty()) {
+				refused.remove(indexName);
+			}
+		}
+	}
+
+	private int index(long sequence) {
+		return (int) (sequence % size) >>> 6;
+	}
+
+	private void set(long sequence) {
+		bits[index(sequence)] |= 1L << (sequence & 63);
+	}
+
+	private void clear(long sequence) {
+		bits[index(sequence)] &= ~(1L << (sequence & 63));
+	}
+
+	private boolean isSet(long sequence) {
+		return (bits[index(sequence)] & (1L << (sequence & 63))) != 0;
+	}
+}
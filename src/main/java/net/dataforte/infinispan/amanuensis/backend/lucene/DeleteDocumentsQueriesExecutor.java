@@ -22,11 +22,15 @@
 package net.dataforte.infinispan.amanuensis.backend.lucene;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import net.dataforte.infinispan.amanuensis.OperationExecutor;
 import net.dataforte.infinispan.amanuensis.ops.DeleteDocumentsQueriesOperation;
 
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.Query;
 
 public class DeleteDocumentsQueriesExecutor extends OperationExecutor<DeleteDocumentsQueriesOperation> {
 
@@ -35,4 +39,17 @@ public class DeleteDocumentsQueriesExecutor extends OperationExecutor<DeleteDocu
 		w.deleteDocuments(op.getQueries());		
 	}
 
+	@Override
+	public void execute(IndexWriter w, List<DeleteDocumentsQueriesOperation> ops) throws IOException {
+		if (ops.size() == 1) {
+			execute(w, ops.get(0));
+			return;
+		}
+		List<Query> queries = new ArrayList<Query>();
+		for (int i = 0; i < ops.size(); i++) {
+			queries.addAll(Arrays.asList(ops.get(i).getQueries()));
+		}
+		w.deleteDocuments(queries.toArray(new Query[queries.size()]));
+	}
+
 }
@@ -22,11 +22,15 @@
 package net.dataforte.infinispan.amanuensis.backend.lucene;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import net.dataforte.infinispan.amanuensis.OperationExecutor;
 import net.dataforte.infinispan.amanuensis.ops.DeleteDocumentsTermsOperation;
 
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
 
 public class DeleteDocumentsTermsExecutor extends OperationExecutor<DeleteDocumentsTermsOperation> {
 
@@ -35,5 +39,18 @@ public class DeleteDocumentsTermsExecutor extends OperationExecutor<DeleteDocume
 		w.deleteDocuments(op.getTerms());
 	}
 
+	@Override
+	public void execute(IndexWriter w, List<DeleteDocumentsTermsOperation> ops) throws IOException {
+		if (ops.size() == 1) {
+			execute(w, ops.get(0));
+			return;
+		}
+		List<Term> terms = new ArrayList<Term>();
+		for (int i = 0; i < ops.size(); i++) {
+			terms.addAll(Arrays.asList(ops.get(i).getTerms()));
+		}
+		w.deleteDocuments(terms.toArray(new Term[terms.size()]));
+	}
+
 
 }
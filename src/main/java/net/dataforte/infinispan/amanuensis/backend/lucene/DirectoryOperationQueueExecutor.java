@@ -21,20 +21,32 @@
 
 package net.dataforte.infinispan.amanuensis.backend.lucene;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
 
 import net.dataforte.commons.slf4j.LoggerFactory;
+import net.dataforte.infinispan.amanuensis.DeadLetterStore;
 import net.dataforte.infinispan.amanuensis.ExecutorContext;
 import net.dataforte.infinispan.amanuensis.IndexOperation;
 import net.dataforte.infinispan.amanuensis.IndexOperations;
 import net.dataforte.infinispan.amanuensis.IndexerException;
-import net.dataforte.infinispan.amanuensis.OperationExecutor;
+import net.dataforte.infinispan.amanuensis.OperationCoalescer;
+import net.dataforte.infinispan.amanuensis.OperationType;
 
 import org.apache.lucene.index.IndexWriter;
 import org.slf4j.Logger;
 
 /**
- * This class applies {@link IndexOperations} to a specific index (represented by an {@link ExecutorContext})
+ * This class applies a batch of {@link IndexOperations} to a specific index (represented by an {@link ExecutorContext})
+ * and commits them all at once when the context's {@link net.dataforte.infinispan.amanuensis.CommitPolicy} or a commit
+ * barrier asks for it, together with the operations of the earlier batches which are still uncommitted. Operations which fail because they are faulty are moved to the context's
+ * {@link DeadLetterStore} while the others are applied; if the commit itself fails because of one of them, the batch
+ * is rolled back and bisected until the culprit is found. Any other error discards the writer.
  * 
  * @author Tristan Tarrant
  */
@@ -42,38 +54,173 @@ public class DirectoryOperationQueueExecutor implements Callable<Void> {
 	private static final Logger log = LoggerFactory.make();
 
 	private ExecutorContext context;
-	private IndexOperations ops;
+	private List<IndexOperations> batch;
+	private List<IndexOperation> operations;
+	// Operations which have been committed or rejected while bisecting
+	private final Set<IndexOperation> settled = Collections.newSetFromMap(new IdentityHashMap<IndexOperation, Boolean>());
+	// Operations of earlier batches which must be applied again
+	private final Set<IndexOperation> carried = new LinkedHashSet<IndexOperation>();
+	private int attempts;
 
 	public DirectoryOperationQueueExecutor(ExecutorContext context, IndexOperations ops) {
-		this.context = context;		
-		this.ops = ops;
+		this(context, Collections.singletonList(ops));
+	}
+
+	public DirectoryOperationQueueExecutor(ExecutorContext context, List<IndexOperations> batch) {
+		this.context = context;
+		this.batch = batch;
 	}
 
 
 	@Override
 	public Void call() throws Exception {
-		// No operations, return immediately
-		if (this.ops.getOperations().isEmpty()) {
+		if (attempts++ > 0) {
+			context.getMetrics().retried();
+		}
+		if (operations == null) {
+			// Collapse repeated updates across all the messages of the batch
+			operations = OperationCoalescer.coalesce(batch);
+		}
+		// Operations of earlier batches which were lost by a rollback before
+		// they could be committed come first
+		List<IndexOperation> lost = context.takeRolledBackOperations();
+		if (!lost.isEmpty()) {
+			Set<IndexOperation> own = Collections.newSetFromMap(new IdentityHashMap<IndexOperation, Boolean>());
+			own.addAll(operations);
+			for (IndexOperation op : lost) {
+				if (!own.contains(op)) {
+					carried.add(op);
+				}
+			}
+		}
+		List<IndexOperation> ops = operations;
+		if (!carried.isEmpty()) {
+			ops = new ArrayList<IndexOperation>(carried);
+			ops.addAll(operations);
+		}
+		// Nothing to apply or commit, return immediately
+		if (ops.isEmpty() && !context.hasUncommittedChanges()) {
 			return null;
 		}
 		try {
-			// Obtain an index writer
-			IndexWriter writer = context.getWriter();
-			for (IndexOperation op : ops.getOperations()) {
-				Class<? extends IndexOperation> opClass = op.getClass();
-
-				OperationExecutor<? extends IndexOperation> executor = context.getOperationExecutorFactory().getExecutor(opClass);
-				executor.exec(writer, op);
+			if (applyAndCommit(ops, hasCommitBarrier(operations)) && log.isTraceEnabled()) {
+				log.trace("Committed {} messages for index {}", batch.size(), context.getIndexName());
 			}
-			// Commit the changes
-			context.commit();
 			return null;
 		} catch (Throwable t) {			
 			// Something bad happened, discard the writer and try again		
-			log.error("Error while processing queue for index "+ops.getIndexName()+", discarding writer and unlocking directory", t);
+			log.error("Error while processing queue for index "+context.getIndexName()+", discarding writer and unlocking directory", t);
 			context.rollback();			
-			throw new IndexerException("Error while processing queue for index "+ops.getIndexName()+", discarding writer and unlocking directory");
+			throw new IndexerException("Error while processing queue for index "+context.getIndexName()+", discarding writer and unlocking directory");
 		}
 	}
 
+	/**
+	 * Applies the operations and commits them, together with the operations
+	 * which are still uncommitted, if forced to or if the context's
+	 * {@link net.dataforte.infinispan.amanuensis.CommitPolicy} says so
+	 * 
+	 * @return true if the index has been committed
+	 */
+	private boolean applyAndCommit(List<IndexOperation> ops, boolean force) throws Exception {
+		ops = withoutSettled(ops);
+		if (!ops.isEmpty()) {
+			// Obtain an index writer
+			IndexWriter writer = context.getWriter();
+			long start = System.nanoTime();
+			if (context.isParallelApply()) {
+				new PartitionedOperationApplier(context.getOperationExecutorFactory(), context.getApplierExecutor(), context.getKeyField(), context.getApplyParallelism()).apply(writer, ops,
+						context.getIndexName(), deadLetters);
+			} else {
+				context.getOperationExecutorFactory().apply(writer, ops, context.getIndexName(), deadLetters);
+			}
+			context.markChanged();
+			if (startsMerges(ops)) {
+				context.mergesStarted(writer);
+			}
+			context.getMetrics().applied(ops, System.nanoTime() - start);
+			// The rejected operations must not be applied again after a rollback
+			context.applied(withoutSettled(ops));
+		}
+		if (!context.hasUncommittedChanges() || !(force || context.isCommitDue())) {
+			return false;
+		}
+		try {
+			// Commit the changes
+			context.commit();
+			settled.addAll(ops);
+			return true;
+		} catch (RuntimeException e) {
+			if (LuceneOperationExecutorFactory.isFatal(e)) {
+				throw e;
+			}
+			// One of the operations can only fail when it is flushed, e.g. a
+			// delete by query: find it by committing each half separately.
+			// This includes the operations of earlier, uncommitted batches.
+			context.rollback();
+			ops = withoutSettled(context.takeRolledBackOperations());
+			if (ops.size() == 1) {
+				deadLetters.store(context.getIndexName(), ops.get(0), e);
+			} else if (!ops.isEmpty()) {
+				int half = ops.size() / 2;
+				applyAndCommit(ops.subList(0, half), true);
+				applyAndCommit(ops.subList(half, ops.size()), true);
+			}
+			return true;
+		}
+	}
+
+	private static boolean hasCommitBarrier(List<IndexOperation> ops) {
+		for (IndexOperation op : ops) {
+			if (op.getType() == OperationType.COMMIT) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns whether the operations include an optimize or an expunge of
+	 * deletes, whose merges run in the background
+	 */
+	private static boolean startsMerges(List<IndexOperation> ops) {
+		for (IndexOperation op : ops) {
+			if (op.getType() == OperationType.OPTIMIZE_INDEX || op.getType() == OperationType.EXPUNGE_DELETES) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private List<IndexOperation> withoutSettled(List<IndexOperation> ops) {
+		if (settled.isEmpty()) {
+			return ops;
+		}
+		List<IndexOperation> remaining = new ArrayList<IndexOperation>(ops.size());
+		for (IndexOperation op : ops) {
+			if (!settled.contains(op)) {
+				remaining.add(op);
+			}
+		}
+		return remaining;
+	}
+
+	/**
+	 * Remembers the rejected operations, so that they are skipped if the batch
+	 * is bisected or retried
+	 */
+	private final DeadLetterStore deadLetters = new DeadLetterStore() {
+		@Override
+		public void store(String indexName, IndexOperation operation, Throwable cause) {
+			boolean added;
+			// may be invoked concurrently when applying in parallel
+			synchronized (settled) {
+				added = settled.add(operation);
+			}
+			if (added) {
+				context.getDeadLetterStore().store(indexName, operation, cause);
+			}
+		}
+	};
+
 }
@@ -0,0 +1,98 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.backend.lucene;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import net.dataforte.commons.concurrent.RetryCallable;
+import net.dataforte.infinispan.amanuensis.ExecutorContext;
+import net.dataforte.infinispan.amanuensis.IndexOperations;
+
+/**
+ * This class drains the queue of an {@link ExecutorContext}: all the messages
+ * which are waiting (up to the context's maximum batch size) are applied by a
+ * single {@link DirectoryOperationQueueExecutor}, so that they share a single
+ * commit, unless the context's commit policy defers it further. If more messages have arrived in the meantime, another drainer is
+ * scheduled. A batch which is not full may be held back for the context's
+ * maximum commit delay, during which no worker thread is occupied.
+ * 
+ * @author Tristan Tarrant
+ */
+public class DirectoryQueueDrainer implements Callable<Void> {
+	private static final int MAX_RETRIES = 10;
+	// How long to wait before checking again whether the previous master has
+	// released the index
+	private static final long HANDOFF_RETRY_DELAY = 100;
+	private LuceneOperationDispatcher dispatcher;
+	private ExecutorContext context;
+
+	public DirectoryQueueDrainer(LuceneOperationDispatcher dispatcher, ExecutorContext context) {
+		this.dispatcher = dispatcher;
+		this.context = context;
+	}
+
+	@Override
+	public Void call() throws Exception {
+		boolean deferred = context.isHandoffPending();
+		long batchDelay = deferred ? 0 : context.getBatchDelay();
+		if (batchDelay > 0) {
+			// Keep the turn but free the worker while the batch fills up
+			context.beginBatchWait();
+			dispatcher.resumeLater(context, batchDelay);
+			return null;
+		}
+		try {
+			if (!deferred) {
+				drain();
+			}
+			return null;
+		} finally {
+			context.releaseTurn();
+			if (deferred) {
+				// Leave the operations queued and free the worker
+				dispatcher.scheduleLater(context, HANDOFF_RETRY_DELAY);
+			} else if (context.hasQueuedOperations()) {
+				dispatcher.schedule(context);
+			}
+		}
+	}
+
+	/**
+	 * Applies one batch of the queued messages or, if there are none, commits
+	 * the uncommitted operations if they are due. The caller must hold the
+	 * context's turn.
+	 * 
+	 * @throws Exception
+	 */
+	void drain() throws Exception {
+		List<IndexOperations> batch = context.drainQueue();
+		if (!batch.isEmpty() || context.isCommitDue()) {
+			try {
+				new RetryCallable<Void>(new DirectoryOperationQueueExecutor(context, batch), MAX_RETRIES).call();
+			} finally {
+				context.batchCompleted(batch);
+			}
+		}
+	}
+
+}
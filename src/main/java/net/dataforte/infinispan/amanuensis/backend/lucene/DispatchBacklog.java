@@ -0,0 +1,168 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.backend.lucene;
+
+import java.util.LinkedList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.dataforte.commons.slf4j.LoggerFactory;
+import net.dataforte.infinispan.amanuensis.DispatchFuture;
+import net.dataforte.infinispan.amanuensis.ExecutorContext;
+import net.dataforte.infinispan.amanuensis.IndexBusyException;
+import net.dataforte.infinispan.amanuensis.IndexOperations;
+import net.dataforte.infinispan.amanuensis.IndexerException;
+
+import org.slf4j.Logger;
+
+/**
+ * Holds the messages dispatched locally to an index, on its master, which did
+ * not fit in its queues, so that the dispatching threads never wait for
+ * memory. The messages are offered again, in order, on the scheduler until
+ * they are accepted, at which point their futures complete. A message is
+ * only offered directly while the backlog is empty, so that it cannot
+ * overtake the earlier ones. The backlog itself may hold at most as many
+ * bytes as the index's in-memory queue: beyond that, messages are refused
+ * with an {@link IndexBusyException}.
+ * 
+ * @author Tristan Tarrant
+ */
+public class DispatchBacklog implements Runnable {
+	private static final Logger log = LoggerFactory.make();
+	private static final long MIN_RETRY_DELAY = 5;
+	private static final long MAX_RETRY_DELAY = 500;
+	private final LuceneOperationDispatcher dispatcher;
+	private final ExecutorContext context;
+	private final ScheduledExecutorService scheduler;
+	// Guarded by this
+	private final LinkedList<Entry> entries = new LinkedList<Entry>();
+	private long bytes;
+	private long retryDelay = MIN_RETRY_DELAY;
+
+	public DispatchBacklog(LuceneOperationDispatcher dispatcher, ExecutorContext context, ScheduledExecutorService scheduler) {
+		this.dispatcher = dispatcher;
+		this.context = context;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Queues the message, or adds it to the backlog if the queues are full
+	 * 
+	 * @param ops
+	 * @return a future which completes once the message has been queued
+	 * @throws IndexBusyException
+	 *             if the backlog is full too
+	 * @throws IndexerException
+	 */
+	public synchronized DispatchFuture dispatch(IndexOperations ops) throws IndexerException {
+		if (entries.isEmpty() && context.offer(ops)) {
+			return DispatchFuture.completed();
+		}
+		long size = ExecutorContext.estimateQueuedSize(ops);
+		if (!entries.isEmpty() && bytes + size > context.getMaxQueuedBytes()) {
+			throw new IndexBusyException("The queues and the backlog of index " + context.getIndexName() + " are full");
+		}
+		DispatchFuture future = new DispatchFuture();
+		entries.add(new Entry(ops, size, future));
+		bytes += size;
+		if (entries.size() == 1) {
+			retryDelay = MIN_RETRY_DELAY;
+			retryLater();
+		}
+		return future;
+	}
+
+	/**
+	 * Returns the number of messages waiting for room in the queues
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the estimated size, in bytes, of the messages waiting for room
+	 * in the queues
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Fails the messages still waiting for room in the queues
+	 */
+	public synchronized void close() {
+		for (Entry entry : entries) {
+			entry.future.fail(new IndexerException("Dispatcher closed before operations for index " + context.getIndexName() + " could be queued"));
+		}
+		entries.clear();
+		bytes = 0;
+	}
+
+	@Override
+	public synchronized void run() {
+		while (!entries.isEmpty()) {
+			Entry entry = entries.getFirst();
+			try {
+				if (!context.offer(entry.ops)) {
+					break;
+				}
+				entry.future.done();
+			} catch (IndexerException e) {
+				entry.future.fail(e);
+			}
+			entries.removeFirst();
+			bytes -= entry.size;
+			retryDelay = MIN_RETRY_DELAY;
+		}
+		dispatcher.schedule(context);
+		if (!entries.isEmpty()) {
+			retryDelay = Math.min(retryDelay << 1, MAX_RETRY_DELAY);
+			retryLater();
+		}
+	}
+
+	private void retryLater() {
+		try {
+			scheduler.schedule(this, retryDelay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			log.error("Could not queue operations for index {}, dispatcher is closed", context.getIndexName());
+			for (Entry entry : entries) {
+				entry.future.fail(e);
+			}
+			entries.clear();
+			bytes = 0;
+		}
+	}
+
+	private static class Entry {
+		final IndexOperations ops;
+		final long size;
+		final DispatchFuture future;
+
+		Entry(IndexOperations ops, long size, DispatchFuture future) {
+			this.ops = ops;
+			this.size = size;
+			this.future = future;
+		}
+	}
+}
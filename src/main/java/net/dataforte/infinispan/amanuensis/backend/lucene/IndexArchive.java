@@ -0,0 +1,283 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.backend.lucene;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.dataforte.commons.slf4j.LoggerFactory;
+
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.slf4j.Logger;
+
+/**
+ * This class copies the files of an index commit point to a local archive
+ * directory, and back. Since Lucene never modifies a file once it has been
+ * written, a file which is already in the archive with the same name and length
+ * is not copied again, so that successive snapshots only copy the segments
+ * which have changed in the meantime. The archive holds a single snapshot,
+ * described by its manifest: files which are not needed any longer are removed.
+ * 
+ * Files are copied with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+ * when the index is stored in an {@link FSDirectory}, and in large chunks
+ * otherwise.
+ * 
+ * @author Tristan Tarrant
+ */
+public class IndexArchive {
+	private static final Logger log = LoggerFactory.make();
+	private static final String MANIFEST = "manifest";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String SEGMENTS_PREFIX = "segments_";
+	private static final int CHUNK_SIZE = 1024 * 1024;
+
+	private final File archiveDirectory;
+
+	public IndexArchive(File archiveDirectory) {
+		this.archiveDirectory = archiveDirectory;
+	}
+
+	public File getArchiveDirectory() {
+		return archiveDirectory;
+	}
+
+	/**
+	 * Copies the files of the commit point which are not already in the
+	 * archive and replaces the archive's manifest
+	 * 
+	 * @param commit
+	 *            the commit point, which must stay pinned during the copy
+	 * @return the number of bytes copied
+	 * @throws IOException
+	 */
+	public long store(IndexCommit commit) throws IOException {
+		if (!archiveDirectory.isDirectory() && !archiveDirectory.mkdirs()) {
+			throw new IOException("Could not create archive directory " + archiveDirectory);
+		}
+		Directory directory = commit.getDirectory();
+		Map<String, Long> manifest = new LinkedHashMap<String, Long>();
+		long copied = 0;
+		int copiedFiles = 0;
+		for (String name : commit.getFileNames()) {
+			long length = directory.fileLength(name);
+			manifest.put(name, length);
+			File target = new File(archiveDirectory, name);
+			if (target.isFile() && target.length() == length) {
+				continue;
+			}
+			File temp = new File(archiveDirectory, name + TEMP_SUFFIX);
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				copyFromDirectory(directory, name, length, out.getChannel());
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			rename(temp, target);
+			copied += length;
+			++copiedFiles;
+		}
+		writeManifest(manifest);
+		// Remove the files of the previous snapshot which are no longer needed
+		for (File f : archiveDirectory.listFiles()) {
+			if (f.isFile() && !f.getName().equals(MANIFEST) && !manifest.containsKey(f.getName())) {
+				if (!f.delete()) {
+					log.warn("Could not delete obsolete archive file {}", f);
+				}
+			}
+		}
+		log.info("Snapshot of generation {} stored in {}: {} files, {} bytes copied", new Object[] { commit.getGeneration(), archiveDirectory, copiedFiles, copied });
+		return copied;
+	}
+
+	/**
+	 * Replaces the contents of the directory with the snapshot held in the
+	 * archive. The directory must not be in use by a writer.
+	 * 
+	 * @param directory
+	 * @return the number of bytes copied
+	 * @throws IOException
+	 */
+	public long restore(Directory directory) throws IOException {
+		Map<String, Long> manifest = readManifest();
+		for (String name : directory.listAll()) {
+			directory.deleteFile(name);
+		}
+		// Copy the segments file last, so that an interrupted restore is not
+		// mistaken for a complete index
+		List<String> names = new ArrayList<String>();
+		String segmentsFile = null;
+		for (String name : manifest.keySet()) {
+			if (name.startsWith(SEGMENTS_PREFIX)) {
+				segmentsFile = name;
+			} else {
+				names.add(name);
+			}
+		}
+		if (segmentsFile == null) {
+			throw new IOException("Archive " + archiveDirectory + " does not contain a segments file");
+		}
+		names.add(segmentsFile);
+		long copied = 0;
+		for (String name : names) {
+			File source = new File(archiveDirectory, name);
+			if (source.length() != manifest.get(name)) {
+				throw new IOException("Archive file " + source + " is incomplete");
+			}
+			copyToDirectory(source, directory, name);
+			copied += source.length();
+		}
+		for (String name : names) {
+			directory.sync(name);
+		}
+		log.info("Restored {} files, {} bytes from {}", new Object[] { names.size(), copied, archiveDirectory });
+		return copied;
+	}
+
+	private void copyFromDirectory(Directory directory, String name, long length, FileChannel target) throws IOException {
+		if (directory instanceof FSDirectory) {
+			FileInputStream in = new FileInputStream(new File(((FSDirectory) directory).getFile(), name));
+			try {
+				transfer(in.getChannel(), target, length);
+			} finally {
+				in.close();
+			}
+		} else {
+			IndexInput in = directory.openInput(name, CHUNK_SIZE);
+			try {
+				byte[] buf = new byte[(int) Math.min(CHUNK_SIZE, length)];
+				long remaining = length;
+				while (remaining > 0) {
+					int chunk = (int) Math.min(buf.length, remaining);
+					in.readBytes(buf, 0, chunk);
+					ByteBuffer bb = ByteBuffer.wrap(buf, 0, chunk);
+					while (bb.hasRemaining()) {
+						target.write(bb);
+					}
+					remaining -= chunk;
+				}
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	private void copyToDirectory(File source, Directory directory, String name) throws IOException {
+		FileInputStream in = new FileInputStream(source);
+		try {
+			if (directory instanceof FSDirectory) {
+				FileOutputStream out = new FileOutputStream(new File(((FSDirectory) directory).getFile(), name));
+				try {
+					transfer(in.getChannel(), out.getChannel(), source.length());
+				} finally {
+					out.close();
+				}
+			} else {
+				IndexOutput out = directory.createOutput(name);
+				try {
+					byte[] buf = new byte[(int) Math.min(CHUNK_SIZE, Math.max(1, source.length()))];
+					int n;
+					while ((n = in.read(buf)) > 0) {
+						out.writeBytes(buf, n);
+					}
+				} finally {
+					out.close();
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void transfer(FileChannel source, FileChannel target, long length) throws IOException {
+		long position = 0;
+		while (position < length) {
+			long n = source.transferTo(position, length - position, target);
+			if (n <= 0) {
+				throw new IOException("Unexpected end of file after " + position + " of " + length + " bytes");
+			}
+			position += n;
+		}
+	}
+
+	private void writeManifest(Map<String, Long> manifest) throws IOException {
+		File temp = new File(archiveDirectory, MANIFEST + TEMP_SUFFIX);
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			Writer w = new OutputStreamWriter(out, "UTF-8");
+			for (Map.Entry<String, Long> entry : manifest.entrySet()) {
+				w.write(entry.getKey() + " " + entry.getValue() + "\n");
+			}
+			w.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		rename(temp, new File(archiveDirectory, MANIFEST));
+	}
+
+	private Map<String, Long> readManifest() throws IOException {
+		File f = new File(archiveDirectory, MANIFEST);
+		if (!f.isFile()) {
+			throw new IOException("No snapshot found in " + archiveDirectory);
+		}
+		Map<String, Long> manifest = new LinkedHashMap<String, Long>();
+		BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+		try {
+			String line;
+			while ((line = r.readLine()) != null) {
+				int space = line.lastIndexOf(' ');
+				if (space > 0) {
+					manifest.put(line.substring(0, space), Long.parseLong(line.substring(space + 1)));
+				}
+			}
+		} finally {
+			r.close();
+		}
+		return manifest;
+	}
+
+	private static void rename(File from, File to) throws IOException {
+		if (to.exists() && !to.delete()) {
+			throw new IOException("Could not replace " + to);
+		}
+		if (!from.renameTo(to)) {
+			throw new IOException("Could not rename " + from + " to " + to);
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.backend.lucene;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.dataforte.infinispan.amanuensis.ExecutorContext;
+import net.dataforte.infinispan.amanuensis.IndexOperation;
+import net.dataforte.infinispan.amanuensis.ops.ExpungeDeletesOperation;
+import net.dataforte.infinispan.amanuensis.ops.OptimizeIndexOperation;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.SegmentInfos;
+
+/**
+ * Decides when an index needs background merges, which are then queued like
+ * any other operation and run without holding up the ones which follow them.
+ * An index is checked, in order, for:
+ * <ul>
+ * <li>a ratio of deleted documents of at least {@link #getMaxDeletedRatio()},
+ * which expunges the deletes</li>
+ * <li>more than {@link #getMaxSegmentCount()} segments, which merges the index
+ * down to {@link #getTargetSegmentCount()} segments</li>
+ * <li>no operations for {@link #getQuietPeriod()} milliseconds, which fully
+ * optimizes it</li>
+ * </ul>
+ * An index is left alone for {@link #getMinInterval()} milliseconds after
+ * maintenance has been requested, to give the merges time to complete.
+ * 
+ * @author Tristan Tarrant
+ */
+public class IndexMaintenance {
+	private volatile double maxDeletedRatio = 0.3;
+	private volatile int maxSegmentCount = 0;
+	private volatile int targetSegmentCount = 1;
+	private volatile long quietPeriod = 0;
+	private volatile long minInterval = 10 * 60 * 1000L;
+	private final ConcurrentMap<String, Long> lastRequests = new ConcurrentHashMap<String, Long>();
+
+	public double getMaxDeletedRatio() {
+		return maxDeletedRatio;
+	}
+
+	/**
+	 * Sets the ratio of deleted to total documents which triggers the
+	 * expunging of deletes. 0 disables the check.
+	 * 
+	 * @param maxDeletedRatio
+	 */
+	public void setMaxDeletedRatio(double maxDeletedRatio) {
+		if (maxDeletedRatio < 0 || maxDeletedRatio > 1) {
+			throw new IllegalArgumentException("maxDeletedRatio must be between 0 and 1");
+		}
+		this.maxDeletedRatio = maxDeletedRatio;
+	}
+
+	public int getMaxSegmentCount() {
+		return maxSegmentCount;
+	}
+
+	/**
+	 * Sets the number of segments above which the index is partially
+	 * optimized. 0, the default, disables the check.
+	 * 
+	 * @param maxSegmentCount
+	 */
+	public void setMaxSegmentCount(int maxSegmentCount) {
+		if (maxSegmentCount < 0) {
+			throw new IllegalArgumentException("maxSegmentCount cannot be negative");
+		}
+		this.maxSegmentCount = maxSegmentCount;
+	}
+
+	public int getTargetSegmentCount() {
+		return targetSegmentCount;
+	}
+
+	/**
+	 * Sets the number of segments a partial optimize merges the index down to
+	 * 
+	 * @param targetSegmentCount
+	 */
+	public void setTargetSegmentCount(int targetSegmentCount) {
+		if (targetSegmentCount < 1) {
+			throw new IllegalArgumentException("targetSegmentCount must be at least 1");
+		}
+		this.targetSegmentCount = targetSegmentCount;
+	}
+
+	public long getQuietPeriod() {
+		return quietPeriod;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) without operations after which an index
+	 * is fully optimized. 0, the default, disables the check.
+	 * 
+	 * @param quietPeriod
+	 */
+	public void setQuietPeriod(long quietPeriod) {
+		if (quietPeriod < 0) {
+			throw new IllegalArgumentException("quietPeriod cannot be negative");
+		}
+		this.quietPeriod = quietPeriod;
+	}
+
+	public long getMinInterval() {
+		return minInterval;
+	}
+
+	/**
+	 * Sets the minimum time (in milliseconds) between two maintenance requests
+	 * for the same index
+	 * 
+	 * @param minInterval
+	 */
+	public void setMinInterval(long minInterval) {
+		if (minInterval < 0) {
+			throw new IllegalArgumentException("minInterval cannot be negative");
+		}
+		this.minInterval = minInterval;
+	}
+
+	/**
+	 * Returns the maintenance operation the index needs, if any. Indexes whose
+	 * writer is not open are not checked.
+	 * 
+	 * @param context
+	 * @param now
+	 *            the current time
+	 * @return the operation, or null
+	 * @throws IOException
+	 */
+	public IndexOperation check(ExecutorContext context, long now) throws IOException {
+		IndexWriter writer = context.getOpenWriter();
+		if (writer == null) {
+			return null;
+		}
+		Long lastRequest = lastRequests.get(context.getIndexName());
+		if (lastRequest != null && now - lastRequest < minInterval) {
+			return null;
+		}
+		int maxDoc = writer.maxDoc();
+		if (maxDoc == 0) {
+			return null;
+		}
+		int deleted = maxDoc - writer.numDocs();
+		if (maxDeletedRatio > 0 && deleted > 0 && (double) deleted / maxDoc >= maxDeletedRatio) {
+			return new ExpungeDeletesOperation();
+		}
+		if (maxSegmentCount <= 0 && quietPeriod <= 0) {
+			return null;
+		}
+		SegmentInfos segments = new SegmentInfos();
+		segments.read(context.getDirectory());
+		if (maxSegmentCount > 0 && segments.size() > maxSegmentCount) {
+			return new OptimizeIndexOperation(targetSegmentCount);
+		}
+		if (quietPeriod > 0 && now - context.getLastEnqueueTime() >= quietPeriod && (segments.size() > 1 || deleted > 0)) {
+			return new OptimizeIndexOperation(1);
+		}
+		return null;
+	}
+
+	/**
+	 * Records that maintenance has been requested for the index
+	 * 
+	 * @param indexName
+	 * @param now
+	 *            the current time
+	 */
+	public void requested(String indexName, long now) {
+		lastRequests.put(indexName, now);
+	}
+}
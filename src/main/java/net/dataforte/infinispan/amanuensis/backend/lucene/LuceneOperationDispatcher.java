@@ -21,30 +21,703 @@
 
 package net.dataforte.infinispan.amanuensis.backend.lucene;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import net.dataforte.commons.collections.Computable;
 import net.dataforte.commons.collections.Memoizer;
-import net.dataforte.commons.concurrent.RetryCallable;
 import net.dataforte.commons.slf4j.LoggerFactory;
 import net.dataforte.infinispan.amanuensis.AmanuensisManager;
+import net.dataforte.infinispan.amanuensis.CommitPolicy;
+import net.dataforte.infinispan.amanuensis.DeadLetterStore;
+import net.dataforte.infinispan.amanuensis.DefaultCommitPolicy;
+import net.dataforte.infinispan.amanuensis.DispatchFuture;
 import net.dataforte.infinispan.amanuensis.ExecutorContext;
+import net.dataforte.infinispan.amanuensis.IndexBusyException;
+import net.dataforte.infinispan.amanuensis.IndexOperation;
 import net.dataforte.infinispan.amanuensis.IndexOperations;
 import net.dataforte.infinispan.amanuensis.IndexerException;
+import net.dataforte.infinispan.amanuensis.MemoryBudget;
+import net.dataforte.infinispan.amanuensis.MemoryDeadLetterStore;
 import net.dataforte.infinispan.amanuensis.OperationDispatcher;
+import net.dataforte.infinispan.amanuensis.jmx.StripedCounter;
 
+import org.apache.lucene.index.IndexCommit;
 import org.slf4j.Logger;
 
+/**
+ * This class applies {@link IndexOperations} to the local indexes. All indexes
+ * share a single, fixed-size pool of worker threads: each index has at most one
+ * {@link DirectoryQueueDrainer} scheduled on the pool at any one time, so that
+ * its operations are applied serially and in order, and a drainer which finds
+ * more work resubmits itself at the back of the pool's queue, so that every
+ * index gets its turn.
+ * 
+ * @author Tristan Tarrant
+ */
 public class LuceneOperationDispatcher implements OperationDispatcher {
 	private static final Logger log = LoggerFactory.make();
+	// How long close() waits for the indexes to become idle
+	private static final long CLOSE_TIMEOUT = 10000;
 	private AmanuensisManager manager;
 	private Memoizer<String, ExecutorContext> executorContexts;
+	private final ThreadPoolExecutor workers;
+	private int maxBatchSize = 1;
+	private long maxCommitDelay = 0;
+	private File writeAheadLogDirectory;
+	private int writeAheadLogSegmentSize = WriteAheadLog.DEFAULT_SEGMENT_SIZE;
+	private long writeAheadLogSyncInterval = 100;
+	private final List<WriteAheadLog> writeAheadLogs = new CopyOnWriteArrayList<WriteAheadLog>();
+	private ScheduledFuture<?> syncTask;
+	private IndexMaintenance maintenance = new IndexMaintenance();
+	private long maintenanceInterval = 60000;
+	private ScheduledFuture<?> maintenanceTask;
+	private CommitPolicy commitPolicy = new DefaultCommitPolicy();
+	private final Map<String, CommitPolicy> commitPolicies = new ConcurrentHashMap<String, CommitPolicy>();
+	private long commitCheckInterval = 100;
+	private ScheduledFuture<?> commitCheckTask;
+	private final List<ExecutorContext> contexts = new CopyOnWriteArrayList<ExecutorContext>();
+	private File overflowDirectory;
+	private long maxQueuedBytesPerIndex = ExecutorContext.DEFAULT_MAX_QUEUED_BYTES;
+	private final MemoryBudget globalBudget = new MemoryBudget(Runtime.getRuntime().maxMemory() / 4);
+	private DeadLetterStore deadLetterStore = new MemoryDeadLetterStore();
+	private String keyField;
+	private int applyParallelism = 1;
+	private ThreadPoolExecutor appliers; // created on demand
+	private final ExecutorService mergeWaiters;
+	private int deduplicationWindowSize = DeduplicationWindow.DEFAULT_SIZE;
+	private int maxDeduplicationSources = 1024;
+	private long refusalExpiry = DeduplicationWindow.DEFAULT_REFUSAL_EXPIRY;
+	private final Map<ExecutorContext, DispatchBacklog> backlogs = new ConcurrentHashMap<ExecutorContext, DispatchBacklog>();
+	private final StripedCounter refusedMessages = new StripedCounter();
+	private final StripedCounter duplicateMessages = new StripedCounter();
+	private final Map<Long, DeduplicationWindow> deduplicationWindows = new LinkedHashMap<Long, DeduplicationWindow>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, DeduplicationWindow> eldest) {
+			return size() > maxDeduplicationSources;
+		}
+	}; // guarded by itself
 
 	public LuceneOperationDispatcher(AmanuensisManager manager) {
 		this.manager = manager;		
 		this.executorContexts = new Memoizer<String, ExecutorContext>(new ExecutorContextComputer());
+		int threads = Runtime.getRuntime().availableProcessors();
+		this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ExecutorContext.ExecutorThreadFactory("IndexWriter"));
+		// Only busy while an index has background merges running
+		this.mergeWaiters = Executors.newCachedThreadPool(new ExecutorContext.ExecutorThreadFactory("MergeWaiter"));
+	}
+
+	public int getWorkerThreads() {
+		return workers.getMaximumPoolSize();
+	}
+
+	/**
+	 * Returns the number of worker threads which are applying operations
+	 */
+	public int getActiveWorkerThreads() {
+		return workers.getActiveCount();
+	}
+
+	/**
+	 * Sets the number of threads used to apply operations to all of the local
+	 * indexes. Defaults to the number of available processors.
+	 * 
+	 * @param workerThreads
+	 */
+	public void setWorkerThreads(int workerThreads) {
+		if (workerThreads < 1) {
+			throw new IllegalArgumentException("workerThreads must be at least 1");
+		}
+		if (workerThreads > workers.getMaximumPoolSize()) {
+			workers.setMaximumPoolSize(workerThreads);
+			workers.setCorePoolSize(workerThreads);
+		} else {
+			workers.setCorePoolSize(workerThreads);
+			workers.setMaximumPoolSize(workerThreads);
+		}
+	}
+
+	/**
+	 * Stops the worker threads once the already scheduled work has completed,
+	 * then releases the queues and closes the write-ahead logs of the indexes
+	 */
+	@Override
+	public void close() {
+		workers.shutdown();
+		mergeWaiters.shutdownNow();
+		synchronized (this) {
+			if (appliers != null) {
+				appliers.shutdown();
+			}
+		}
+		synchronized (this) {
+			if (syncTask != null) {
+				syncTask.cancel(false);
+				syncTask = null;
+			}
+			if (maintenanceTask != null) {
+				maintenanceTask.cancel(false);
+				maintenanceTask = null;
+			}
+			if (commitCheckTask != null) {
+				commitCheckTask.cancel(false);
+				commitCheckTask = null;
+			}
+		}
+		for (DispatchBacklog backlog : backlogs.values()) {
+			backlog.close();
+		}
+		syncWriteAheadLogs();
+		shutdownContexts();
+	}
+
+	/**
+	 * Shuts down the contexts once the drainers which are already scheduled
+	 * have completed, waiting up to {@link #CLOSE_TIMEOUT} milliseconds
+	 */
+	private void shutdownContexts() {
+		long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+		for (ExecutorContext context : contexts) {
+			boolean idle;
+			// A drainer waiting for its batch to fill up holds the turn too
+			while (!(idle = context.acquireTurn() || context.endBatchWait()) && System.currentTimeMillis() < deadline) {
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			if (idle) {
+				// The turn is kept, so that nothing is scheduled any more
+				context.shutdown();
+			} else {
+				// Its log has been synced, which is all that recovery needs
+				log.warn("Index {} is still busy, leaving its queues and its log open", context.getIndexName());
+			}
+		}
+	}
+
+	public String getKeyField() {
+		return keyField;
+	}
+
+	/**
+	 * Sets the default primary key field for newly created indexes
+	 * 
+	 * @see ExecutorContext#setKeyField(String)
+	 */
+	public void setKeyField(String keyField) {
+		this.keyField = keyField;
+	}
+
+	public int getApplyParallelism() {
+		return applyParallelism;
+	}
+
+	/**
+	 * Sets the default number of threads which apply the operations to each
+	 * newly created index. Values above 1 require a key field.
+	 * 
+	 * @see ExecutorContext#setApplyParallelism(int)
+	 */
+	public void setApplyParallelism(int applyParallelism) {
+		if (applyParallelism < 1) {
+			throw new IllegalArgumentException("applyParallelism must be at least 1");
+		}
+		this.applyParallelism = applyParallelism;
+	}
+
+	/**
+	 * Returns the pool shared by all indexes for applying operations in
+	 * parallel, sized after the number of available processors. It is only
+	 * created once an index applies operations in parallel.
+	 */
+	public synchronized ExecutorService getApplierExecutor() {
+		if (appliers == null) {
+			int threads = Runtime.getRuntime().availableProcessors();
+			appliers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ExecutorContext.ExecutorThreadFactory("Applier"));
+		}
+		return appliers;
+	}
+
+	public DeadLetterStore getDeadLetterStore() {
+		return deadLetterStore;
+	}
+
+	/**
+	 * Sets the {@link DeadLetterStore} which receives the operations which
+	 * could not be applied, for newly created indexes. Defaults to a
+	 * {@link MemoryDeadLetterStore} shared by all indexes.
+	 * 
+	 * @param deadLetterStore
+	 */
+	public void setDeadLetterStore(DeadLetterStore deadLetterStore) {
+		this.deadLetterStore = deadLetterStore;
+	}
+
+	public int getDeduplicationWindowSize() {
+		return deduplicationWindowSize;
+	}
+
+	/**
+	 * Sets the number of recent messages of each source which are remembered
+	 * in order to discard duplicate deliveries. A retried message which
+	 * arrives after more than this number of newer messages from the same
+	 * source is discarded.
+	 * 
+	 * @param deduplicationWindowSize
+	 */
+	public void setDeduplicationWindowSize(int deduplicationWindowSize) {
+		if (deduplicationWindowSize < 1) {
+			throw new IllegalArgumentException("deduplicationWindowSize must be at least 1");
+		}
+		this.deduplicationWindowSize = deduplicationWindowSize;
+	}
+
+	public int getMaxDeduplicationSources() {
+		return maxDeduplicationSources;
+	}
+
+	/**
+	 * Sets the number of sources for which a deduplication window is kept. The
+	 * windows of the least recently active sources are discarded first.
+	 * 
+	 * @param maxDeduplicationSources
+	 */
+	public void setMaxDeduplicationSources(int maxDeduplicationSources) {
+		if (maxDeduplicationSources < 1) {
+			throw new IllegalArgumentException("maxDeduplicationSources must be at least 1");
+		}
+		this.maxDeduplicationSources = maxDeduplicationSources;
+	}
+
+	public long getRefusalExpiry() {
+		return refusalExpiry;
+	}
+
+	/**
+	 * Sets how long (in milliseconds) a message from another node which was
+	 * refused because the queues were full holds back the following messages
+	 * of the same source for the same index, if it is not sent again. It
+	 * should be longer than the delay between the retries of a busy message.
+	 * Defaults to 30000.
+	 * 
+	 * @param refusalExpiry
+	 */
+	public void setRefusalExpiry(long refusalExpiry) {
+		this.refusalExpiry = refusalExpiry;
+	}
+
+	/**
+	 * Checks whether the message has already been received from its source
+	 * 
+	 * @param ops
+	 * @return true if the message must be discarded
+	 */
+	private boolean isDuplicate(IndexOperations ops) {
+		if (ops.getSequence() == 0) {
+			return false;
+		}
+		return !getDeduplicationWindow(ops.getSourceId()).accept(ops.getSequence());
+	}
+
+	private DeduplicationWindow getDeduplicationWindow(long sourceId) {
+		synchronized (deduplicationWindows) {
+			DeduplicationWindow window = deduplicationWindows.get(sourceId);
+			if (window == null) {
+				window = new DeduplicationWindow(deduplicationWindowSize);
+				window.setRefusalExpiry(refusalExpiry);
+				deduplicationWindows.put(sourceId, window);
+			}
+			return window;
+		}
+	}
+
+	public File getWriteAheadLogDirectory() {
+		return writeAheadLogDirectory;
+	}
+
+	/**
+	 * Sets the directory under which each index keeps a {@link WriteAheadLog}
+	 * of the operations which have been queued but not yet committed. The
+	 * default of null disables the logs. Only affects indexes which have not
+	 * been used yet.
+	 * 
+	 * @param writeAheadLogDirectory
+	 */
+	public void setWriteAheadLogDirectory(File writeAheadLogDirectory) {
+		this.writeAheadLogDirectory = writeAheadLogDirectory;
+	}
+
+	public int getWriteAheadLogSegmentSize() {
+		return writeAheadLogSegmentSize;
+	}
+
+	/**
+	 * Sets the size of each segment file of the logs, in bytes
+	 * 
+	 * @param writeAheadLogSegmentSize
+	 */
+	public void setWriteAheadLogSegmentSize(int writeAheadLogSegmentSize) {
+		this.writeAheadLogSegmentSize = writeAheadLogSegmentSize;
+	}
+
+	public long getWriteAheadLogSyncInterval() {
+		return writeAheadLogSyncInterval;
+	}
+
+	/**
+	 * Sets the interval (in milliseconds) at which the logs are forced to disk.
+	 * This bounds the operations which can be lost if the operating system
+	 * crashes: a crash of the process alone loses nothing.
+	 * 
+	 * @param writeAheadLogSyncInterval
+	 */
+	public void setWriteAheadLogSyncInterval(long writeAheadLogSyncInterval) {
+		if (writeAheadLogSyncInterval < 1) {
+			throw new IllegalArgumentException("writeAheadLogSyncInterval must be at least 1");
+		}
+		this.writeAheadLogSyncInterval = writeAheadLogSyncInterval;
+	}
+
+	public long getMaxQueuedBytes() {
+		return globalBudget.getLimit();
+	}
+
+	/**
+	 * Sets the estimated size, in bytes, of the messages which may be waiting
+	 * in memory across all the indexes. Defaults to a quarter of the maximum
+	 * heap size. Messages which do not fit are spilled to disk if an overflow
+	 * directory has been set; otherwise messages from other nodes are refused
+	 * with an {@link IndexBusyException}, so that their senders back off and
+	 * retry, while local callers do not wait: their messages are kept in a
+	 * {@link DispatchBacklog}, which holds at most as many bytes as the queue
+	 * of the index, and beyond that they are refused with an
+	 * {@link IndexBusyException} too.
+	 * 
+	 * @param maxQueuedBytes
+	 */
+	public void setMaxQueuedBytes(long maxQueuedBytes) {
+		globalBudget.setLimit(maxQueuedBytes);
+	}
+
+	/**
+	 * Returns the estimated size, in bytes, of the messages waiting in memory
+	 * across all the indexes
+	 */
+	public long getQueuedBytes() {
+		return globalBudget.getUsed();
+	}
+
+	public long getMaxQueuedBytesPerIndex() {
+		return maxQueuedBytesPerIndex;
+	}
+
+	/**
+	 * Sets the estimated size, in bytes, of the messages which may be waiting
+	 * in memory for each index. Only affects indexes which have not been used
+	 * yet.
+	 * 
+	 * @param maxQueuedBytesPerIndex
+	 */
+	public void setMaxQueuedBytesPerIndex(long maxQueuedBytesPerIndex) {
+		this.maxQueuedBytesPerIndex = maxQueuedBytesPerIndex;
+	}
+
+	public File getOverflowDirectory() {
+		return overflowDirectory;
+	}
+
+	/**
+	 * Sets the directory under which each index keeps a {@link SpillQueue}
+	 * for the messages which arrive while its in-memory queue is full, so
+	 * that the threads delivering them (such as the JGroups handler threads)
+	 * are never blocked by a slow index. The default of null makes them wait
+	 * for space instead. Only affects indexes which have not been used yet.
+	 * 
+	 * @param overflowDirectory
+	 */
+	public void setOverflowDirectory(File overflowDirectory) {
+		this.overflowDirectory = overflowDirectory;
+	}
+
+	public CommitPolicy getCommitPolicy() {
+		return commitPolicy;
+	}
+
+	/**
+	 * Sets the {@link CommitPolicy} of the indexes which do not have their own
+	 * 
+	 * @param commitPolicy
+	 * @see #setCommitPolicy(String, CommitPolicy)
+	 */
+	public void setCommitPolicy(CommitPolicy commitPolicy) {
+		if (commitPolicy == null) {
+			throw new IllegalArgumentException("commitPolicy cannot be null");
+		}
+		this.commitPolicy = commitPolicy;
+		for (ExecutorContext context : contexts) {
+			if (!commitPolicies.containsKey(context.getIndexName())) {
+				context.setCommitPolicy(commitPolicy);
+			}
+		}
+	}
+
+	/**
+	 * Returns the {@link CommitPolicy} in effect for the index
+	 * 
+	 * @param indexName
+	 */
+	public CommitPolicy getCommitPolicy(String indexName) {
+		CommitPolicy policy = commitPolicies.get(indexName);
+		return policy != null ? policy : commitPolicy;
+	}
+
+	/**
+	 * Sets the {@link CommitPolicy} of a single index, which takes effect
+	 * from its next batch. A null policy reverts the index to the default one.
+	 * 
+	 * @param indexName
+	 * @param commitPolicy
+	 */
+	public void setCommitPolicy(String indexName, CommitPolicy commitPolicy) {
+		if (commitPolicy == null) {
+			commitPolicies.remove(indexName);
+		} else {
+			commitPolicies.put(indexName, commitPolicy);
+		}
+		for (ExecutorContext context : contexts) {
+			if (context.getIndexName().equals(indexName)) {
+				context.setCommitPolicy(getCommitPolicy(indexName));
+			}
+		}
+	}
+
+	public long getCommitCheckInterval() {
+		return commitCheckInterval;
+	}
+
+	/**
+	 * Sets the interval (in milliseconds) at which the indexes whose commits
+	 * have been deferred by their {@link CommitPolicy} are checked, so that
+	 * they are committed even if no further operations arrive. Only takes
+	 * effect if set before any index is used.
+	 * 
+	 * @param commitCheckInterval
+	 */
+	public void setCommitCheckInterval(long commitCheckInterval) {
+		if (commitCheckInterval <= 0) {
+			throw new IllegalArgumentException("commitCheckInterval must be positive");
+		}
+		this.commitCheckInterval = commitCheckInterval;
+	}
+
+	private synchronized void scheduleCommitCheck() {
+		if (commitCheckTask == null) {
+			commitCheckTask = manager.getScheduler().scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					for (ExecutorContext context : contexts) {
+						if (context.isCommitDue()) {
+							schedule(context);
+						}
+					}
+				}
+			}, commitCheckInterval, commitCheckInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public IndexMaintenance getMaintenance() {
+		return maintenance;
+	}
+
+	/**
+	 * Sets the policy which decides when the local indexes are optimized or
+	 * have their deletes expunged
+	 * 
+	 * @param maintenance
+	 */
+	public void setMaintenance(IndexMaintenance maintenance) {
+		this.maintenance = maintenance;
+	}
+
+	public long getMaintenanceInterval() {
+		return maintenanceInterval;
+	}
+
+	/**
+	 * Sets the interval (in milliseconds) at which the local indexes are
+	 * checked for maintenance. 0 disables the checks. Only takes effect if set
+	 * before any index is used.
+	 * 
+	 * @param maintenanceInterval
+	 */
+	public void setMaintenanceInterval(long maintenanceInterval) {
+		this.maintenanceInterval = maintenanceInterval;
+	}
+
+	private synchronized void scheduleMaintenance() {
+		if (maintenanceTask == null && maintenanceInterval > 0) {
+			maintenanceTask = manager.getScheduler().scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					runMaintenance();
+				}
+			}, maintenanceInterval, maintenanceInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Queues the maintenance operations needed by the indexes this node is the
+	 * master of. The merges they start run in the background, on the merge
+	 * threads of the writer, so the operations which follow are not held up.
+	 */
+	void runMaintenance() {
+		IndexMaintenance maintenance = this.maintenance;
+		long now = System.currentTimeMillis();
+		for (ExecutorContext context : contexts) {
+			String indexName = context.getIndexName();
+			if (!manager.isMaster(indexName)) {
+				continue;
+			}
+			try {
+				IndexOperation op = maintenance.check(context, now);
+				if (op != null && offer(new IndexOperations(indexName, op)).isSuccess()) {
+					// A busy index is checked again next time
+					maintenance.requested(indexName, now);
+					if (log.isDebugEnabled()) {
+						log.debug("Requested {} for index {}", op.getType(), indexName);
+					}
+				}
+			} catch (Exception e) {
+				log.warn("Could not check index " + indexName + " for maintenance", e);
+			}
+		}
+	}
+
+	private static String fileName(String indexName) {
+		return indexName.replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+
+	private void syncWriteAheadLogs() {
+		for (WriteAheadLog writeAheadLog : writeAheadLogs) {
+			try {
+				writeAheadLog.sync();
+			} catch (IOException e) {
+				log.error("Could not sync log " + writeAheadLog.getDirectory(), e);
+			}
+		}
+	}
+
+	private WriteAheadLog openWriteAheadLog(String indexName) throws IOException {
+		WriteAheadLog writeAheadLog = new WriteAheadLog(new File(writeAheadLogDirectory, fileName(indexName)), writeAheadLogSegmentSize);
+		writeAheadLogs.add(writeAheadLog);
+		synchronized (this) {
+			if (syncTask == null) {
+				syncTask = manager.getScheduler().scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						syncWriteAheadLogs();
+					}
+				}, writeAheadLogSyncInterval, writeAheadLogSyncInterval, TimeUnit.MILLISECONDS);
+			}
+		}
+		return writeAheadLog;
 	}
 	
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	/**
+	 * Sets the default maximum number of messages which are grouped into a
+	 * single commit for newly created indexes.
+	 * 
+	 * @see ExecutorContext#setMaxBatchSize(int)
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("maxBatchSize must be at least 1");
+		}
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public long getMaxCommitDelay() {
+		return maxCommitDelay;
+	}
+
+	/**
+	 * Sets the default maximum commit delay for newly created indexes.
+	 * 
+	 * @see ExecutorContext#setMaxCommitDelay(long)
+	 */
+	public void setMaxCommitDelay(long maxCommitDelay) {
+		if (maxCommitDelay < 0) {
+			throw new IllegalArgumentException("maxCommitDelay cannot be negative");
+		}
+		this.maxCommitDelay = maxCommitDelay;
+	}
+
+	/**
+	 * Returns the {@link ExecutorContext} for the specified index, creating it
+	 * if necessary
+	 * 
+	 * @param indexName
+	 * @return
+	 * @throws IndexerException
+	 */
+	public ExecutorContext getExecutorContext(String indexName) throws IndexerException {
+		try {
+			return executorContexts.compute(indexName);
+		} catch (Exception e) {
+			throw new IndexerException("Could not obtain executor context for index " + indexName, e);
+		}
+	}
+
+	/**
+	 * Returns the {@link ExecutorContext} of the specified index, or null if
+	 * this node has not applied any operations to it
+	 * 
+	 * @param indexName
+	 */
+	public ExecutorContext findExecutorContext(String indexName) {
+		for (ExecutorContext context : contexts) {
+			if (context.getIndexName().equals(indexName)) {
+				return context;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the number of messages from other nodes which have been refused
+	 * because the queues were full
+	 */
+	public long getRefusedMessages() {
+		return refusedMessages.sum();
+	}
+
+	/**
+	 * Returns the number of duplicate deliveries which have been discarded
+	 */
+	public long getDuplicateMessages() {
+		return duplicateMessages.sum();
+	}
+
 	public void checkIndex(String indexName, boolean fix) {
 		try {
 			ExecutorContext context = executorContexts.compute(indexName);
@@ -54,21 +727,319 @@ public class LuceneOperationDispatcher implements OperationDispatcher {
 		}
 	}
 
+	/**
+	 * Copies the last commit point of the index to the archive directory while
+	 * operations continue to be applied. Only the files which are not already
+	 * in the archive are copied.
+	 * 
+	 * @param indexName
+	 * @param archiveDirectory
+	 * @throws IndexerException
+	 */
+	public void snapshotIndex(String indexName, File archiveDirectory) throws IndexerException {
+		ExecutorContext context = getExecutorContext(indexName);
+		IndexCommit commit = context.snapshot();
+		try {
+			new IndexArchive(archiveDirectory).store(commit);
+		} catch (IOException e) {
+			throw new IndexerException("Could not store snapshot of index " + indexName + " in " + archiveDirectory, e);
+		} finally {
+			context.releaseSnapshot();
+		}
+	}
+
+	/**
+	 * Replaces the contents of the index with the snapshot held in the archive
+	 * directory. Operations which are queued for the index are applied after
+	 * the restore.
+	 * 
+	 * @param indexName
+	 * @param archiveDirectory
+	 * @throws IndexerException
+	 */
+	public void restoreIndex(String indexName, File archiveDirectory) throws IndexerException {
+		ExecutorContext context = getExecutorContext(indexName);
+		awaitTurn(context);
+		try {
+			context.close();
+			new IndexArchive(archiveDirectory).restore(context.getDirectory());
+			context.markChanged();
+		} catch (IOException e) {
+			throw new IndexerException("Could not restore index " + indexName + " from " + archiveDirectory, e);
+		} finally {
+			context.releaseTurn();
+			if (context.hasQueuedOperations()) {
+				schedule(context);
+			}
+		}
+	}
+
+	/**
+	 * Hands the index over to another node: the operations which are queued
+	 * for it are applied and its writer is committed and closed, releasing
+	 * the index lock. This happens asynchronously, on one of the worker
+	 * threads. The index is reopened if operations are dispatched to it again.
+	 * 
+	 * @param indexName
+	 */
+	public void releaseIndex(final String indexName) {
+		try {
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						ExecutorContext context = getExecutorContext(indexName);
+						awaitTurn(context);
+						try {
+							DirectoryQueueDrainer drainer = new DirectoryQueueDrainer(LuceneOperationDispatcher.this, context);
+							while (context.hasQueuedOperations()) {
+								drainer.drain();
+							}
+							context.close();
+						} finally {
+							context.releaseTurn();
+							if (context.hasQueuedOperations()) {
+								schedule(context);
+							}
+						}
+					} catch (Exception e) {
+						log.error("Could not release index " + indexName, e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			log.warn("Could not release index {}, dispatcher is closed", indexName);
+		}
+	}
+
+	/**
+	 * Waits for the drainer of the index, if any, to finish and takes its turn,
+	 * so that the caller has exclusive use of the index
+	 */
+	private void awaitTurn(ExecutorContext context) throws IndexerException {
+		while (!context.acquireTurn()) {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IndexerException("Interrupted while waiting for index " + context.getIndexName());
+			}
+		}
+	}
+
+	/**
+	 * Queues the operations. The caller never waits for memory: if the queues
+	 * are full, the message is kept in the index's {@link DispatchBacklog} and
+	 * the returned future completes once it has been queued.
+	 * 
+	 * @throws IndexBusyException
+	 *             if the backlog is full too, so that the caller backs off
+	 */
 	@Override
-	public void dispatch(IndexOperations ops) throws IndexerException {
+	public DispatchFuture dispatch(IndexOperations ops) throws IndexerException {
+		return dispatch(ops, true);
+	}
+
+	/**
+	 * Queues the operations unless the queues are full, in which case the
+	 * returned future fails with an {@link IndexBusyException}. Used for the
+	 * messages received from other nodes, so that the threads delivering them
+	 * are never blocked.
+	 * 
+	 * @param ops
+	 * @return
+	 */
+	public DispatchFuture offer(IndexOperations ops) {
 		try {
+			return dispatch(ops, false);
+		} catch (IndexBusyException e) {
+			return DispatchFuture.failed(e);
+		}
+	}
+
+	private DispatchFuture dispatch(IndexOperations ops, boolean wait) throws IndexBusyException {
+		try {
+			if (isDuplicate(ops)) {
+				// Already queued, acknowledge it again
+				duplicateMessages.increment();
+				if (log.isDebugEnabled()) {
+					log.debug("Discarding duplicate message {} from source {}", ops.getSequence(), ops.getSourceId());
+				}
+				return DispatchFuture.completed();
+			}
 			ExecutorContext context = executorContexts.compute(ops.getIndexName());
-			DirectoryOperationQueueExecutor queueExecutor = new DirectoryOperationQueueExecutor(context, ops);
-			context.getExecutor().submit(new RetryCallable<Void>(queueExecutor, 10));			
+			DeduplicationWindow window = ops.getSequence() != 0 ? getDeduplicationWindow(ops.getSourceId()) : null;
+			if (wait) {
+				try {
+					return backlogs.get(context).dispatch(ops);
+				} finally {
+					schedule(context);
+				}
+			} else if ((window != null && window.isHeldBack(ops.getIndexName(), ops.getSequence(), System.currentTimeMillis())) || !context.offer(ops)) {
+				// Refused: later messages of the same source for this index
+				// are held back until this one is sent again, so that the
+				// order is kept
+				if (window != null) {
+					window.refuse(ops.getIndexName(), ops.getSequence(), System.currentTimeMillis());
+				}
+				refusedMessages.increment();
+				schedule(context);
+				return DispatchFuture.failed(new IndexBusyException("The queues of index " + ops.getIndexName() + " are full"));
+			}
+			if (window != null) {
+				window.queued(ops.getIndexName(), ops.getSequence());
+			}
+			schedule(context);
+			return DispatchFuture.completed();
+		} catch (IndexBusyException e) {
+			refusedMessages.increment();
+			if (ops.getSequence() != 0) {
+				getDeduplicationWindow(ops.getSourceId()).forget(ops.getSequence());
+			}
+			throw e;
 		} catch (Exception e) {
 			log.error("", e);
+			if (ops.getSequence() != 0) {
+				// Not queued, so a retry must not be discarded
+				getDeduplicationWindow(ops.getSourceId()).forget(ops.getSequence());
+			}
+			return DispatchFuture.failed(e);
+		}
+	}
+
+	/**
+	 * Schedules a {@link DirectoryQueueDrainer} for the specified index unless
+	 * one is already pending
+	 * 
+	 * @param context
+	 */
+	void schedule(ExecutorContext context) {
+		if (context.acquireTurn()) {
+			submit(context);
+		} else if (context.getBatchDelay() == 0 && context.endBatchWait()) {
+			// The batch the drainer was waiting for has filled up
+			submit(context);
+		}
+	}
+
+	/**
+	 * Submits a {@link DirectoryQueueDrainer} for an index whose turn is held
+	 * by the caller
+	 */
+	private void submit(ExecutorContext context) {
+		try {
+			context.getExecutor().submit(new DirectoryQueueDrainer(this, context));
+		} catch (RejectedExecutionException e) {
+			context.releaseTurn();
+			log.warn("Could not schedule operations for index {}, dispatcher is closed", context.getIndexName());
 		}
 	}
 	
+	/**
+	 * Schedules a {@link DirectoryQueueDrainer} for the specified index after
+	 * a delay, without occupying a worker thread in the meantime
+	 * 
+	 * @param context
+	 * @param delay
+	 *            in milliseconds
+	 */
+	void scheduleLater(final ExecutorContext context, long delay) {
+		try {
+			manager.getScheduler().schedule(new Runnable() {
+				@Override
+				public void run() {
+					schedule(context);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			log.warn("Could not schedule operations for index {}, dispatcher is closed", context.getIndexName());
+		}
+	}
+	
+	/**
+	 * Ends the batch wait of the specified index after a delay, unless it has
+	 * already been ended because the batch has filled up, and hands the turn
+	 * to a new {@link DirectoryQueueDrainer}
+	 * 
+	 * @param context
+	 * @param delay
+	 *            in milliseconds
+	 * @see ExecutorContext#beginBatchWait()
+	 */
+	void resumeLater(final ExecutorContext context, long delay) {
+		try {
+			manager.getScheduler().schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (context.endBatchWait()) {
+						submit(context);
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			context.endBatchWait();
+			context.releaseTurn();
+			log.warn("Could not schedule operations for index {}, dispatcher is closed", context.getIndexName());
+		}
+	}
+	
+	/**
+	 * Sets up the spill queue and the write-ahead log of a new context, if
+	 * configured, closing whatever was opened if either fails
+	 */
+	private void openQueues(String indexName, ExecutorContext executorContext) throws ExecutionException {
+		SpillQueue spillQueue = null;
+		WriteAheadLog writeAheadLog = null;
+		try {
+			if (overflowDirectory != null) {
+				spillQueue = new SpillQueue(new File(overflowDirectory, fileName(indexName) + ".spill"));
+				executorContext.setSpillQueue(spillQueue);
+			}
+			if (writeAheadLogDirectory != null) {
+				writeAheadLog = openWriteAheadLog(indexName);
+				executorContext.setWriteAheadLog(writeAheadLog);
+			}
+		} catch (IOException e) {
+			if (writeAheadLog != null) {
+				writeAheadLogs.remove(writeAheadLog);
+				writeAheadLog.close();
+			}
+			if (spillQueue != null) {
+				try {
+					spillQueue.close();
+				} catch (IOException ce) {
+					log.warn("Could not close spill queue for index " + indexName, ce);
+				}
+			}
+			throw new ExecutionException("Could not open the " + (spillQueue == null && overflowDirectory != null ? "spill queue" : "write-ahead log") + " of index " + indexName, e);
+		}
+	}
+
 	private class ExecutorContextComputer implements Computable<String, ExecutorContext> {
 		@Override
 		public ExecutorContext compute(String indexName) throws InterruptedException, ExecutionException {
-			ExecutorContext executorContext = new ExecutorContext(manager, LuceneOperationDispatcher.this.manager.getDirectoryByIndexName(indexName), LuceneOperationDispatcher.this.manager.getAnalyzer());
+			ExecutorContext executorContext = new ExecutorContext(manager, LuceneOperationDispatcher.this.manager.getDirectoryByIndexName(indexName), LuceneOperationDispatcher.this.manager.getAnalyzer(), workers);
+			executorContext.setMaxBatchSize(maxBatchSize);
+			executorContext.setMaxCommitDelay(maxCommitDelay);
+			executorContext.setDeadLetterStore(deadLetterStore);
+			executorContext.setKeyField(keyField);
+			executorContext.setApplyParallelism(applyParallelism);
+			if (applyParallelism > 1) {
+				executorContext.setApplierExecutor(getApplierExecutor());
+			}
+			executorContext.setMergeWaiterExecutor(mergeWaiters);
+			executorContext.setMaxQueuedBytes(maxQueuedBytesPerIndex);
+			executorContext.setGlobalBudget(globalBudget);
+			executorContext.setCommitPolicy(getCommitPolicy(indexName));
+			openQueues(indexName, executorContext);
+			// Only registered once fully set up, as the periodic tasks poll it
+			contexts.add(executorContext);
+			backlogs.put(executorContext, new DispatchBacklog(LuceneOperationDispatcher.this, executorContext, manager.getScheduler()));
+			scheduleMaintenance();
+			scheduleCommitCheck();
+			if (executorContext.hasQueuedOperations()) {
+				schedule(executorContext);
+			}
 			return executorContext;			
 		}
 		
@@ -21,27 +21,148 @@
 
 package net.dataforte.infinispan.amanuensis.backend.lucene;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
 
+import net.dataforte.infinispan.amanuensis.DeadLetterStore;
 import net.dataforte.infinispan.amanuensis.IndexOperation;
 import net.dataforte.infinispan.amanuensis.OperationExecutor;
-import net.dataforte.infinispan.amanuensis.ops.AddDocumentOperation;
-import net.dataforte.infinispan.amanuensis.ops.DeleteDocumentsQueriesOperation;
-import net.dataforte.infinispan.amanuensis.ops.DeleteDocumentsTermsOperation;
-import net.dataforte.infinispan.amanuensis.ops.OptimizeIndexOperation;
+import net.dataforte.infinispan.amanuensis.OperationFailedException;
+import net.dataforte.infinispan.amanuensis.OperationType;
 
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.infinispan.CacheException;
+
+/**
+ * Maps each {@link OperationType} to the {@link OperationExecutor} which
+ * applies it to an {@link IndexWriter}
+ * 
+ * @author Tristan Tarrant
+ */
 public class LuceneOperationExecutorFactory {
-	Map<Class<? extends IndexOperation>, OperationExecutor<? extends IndexOperation>> executor = new HashMap<Class<? extends IndexOperation>, OperationExecutor<? extends IndexOperation>>();
-	
+	private final OperationExecutor<?>[] executors = new OperationExecutor<?>[OperationType.values().length];
+	private final SegmentStaging segmentStaging;
+
 	public LuceneOperationExecutorFactory() {
-		executor.put(AddDocumentOperation.class, new AddDocumentExecutor());
-		executor.put(DeleteDocumentsTermsOperation.class, new DeleteDocumentsTermsExecutor());
-		executor.put(DeleteDocumentsQueriesOperation.class, new DeleteDocumentsQueriesExecutor());
-		executor.put(OptimizeIndexOperation.class, new OptimizeIndexExecutor());
+		this(new SegmentStaging());
+	}
+
+	public LuceneOperationExecutorFactory(SegmentStaging segmentStaging) {
+		this.segmentStaging = segmentStaging;
+		executors[OperationType.ADD_DOCUMENT.ordinal()] = new AddDocumentExecutor();
+		executors[OperationType.DELETE_DOCUMENTS_TERMS.ordinal()] = new DeleteDocumentsTermsExecutor();
+		executors[OperationType.DELETE_DOCUMENTS_QUERIES.ordinal()] = new DeleteDocumentsQueriesExecutor();
+		executors[OperationType.OPTIMIZE_INDEX.ordinal()] = new OptimizeIndexExecutor();
+		executors[OperationType.UPDATE_DOCUMENT.ordinal()] = new UpdateDocumentExecutor();
+		executors[OperationType.SEGMENT_CHUNK.ordinal()] = new SegmentChunkExecutor(segmentStaging);
+		executors[OperationType.ADD_INDEXES.ordinal()] = new AddIndexesExecutor(segmentStaging);
+		executors[OperationType.EXPUNGE_DELETES.ordinal()] = new ExpungeDeletesExecutor();
+		executors[OperationType.COMMIT.ordinal()] = new CommitExecutor();
+	}
+
+	/**
+	 * Returns the staging area for the index files shipped by slaves
+	 */
+	public SegmentStaging getSegmentStaging() {
+		return segmentStaging;
+	}
+
+	public OperationExecutor<?> getExecutor(OperationType type) {
+		return executors[type.ordinal()];
+	}
+
+	/**
+	 * Applies the operations to the writer, in order. Runs of consecutive
+	 * operations of the same type are handed to their executor in one go, so
+	 * that, for example, consecutive deletes become a single
+	 * {@link IndexWriter#deleteDocuments(org.apache.lucene.index.Term...)} call.
+	 * 
+	 * @param writer
+	 * @param operations
+	 * @throws IOException
+	 */
+	public void apply(IndexWriter writer, List<IndexOperation> operations) throws IOException {
+		apply(writer, operations, null, null);
+	}
+
+	/**
+	 * Applies the operations to the writer, in order, like
+	 * {@link #apply(IndexWriter, List)}. An operation which fails with a
+	 * {@link RuntimeException} is handed to the {@link DeadLetterStore}, and
+	 * the following operations are applied, the writer being left open.
+	 * {@link IOException}s, {@link Error}s and the exceptions which denote a
+	 * damaged writer or a failure of the storage (see {@link #isFatal}) are
+	 * propagated.
+	 * 
+	 * @param writer
+	 * @param operations
+	 * @param indexName
+	 * @param deadLetters
+	 *            receives the failed operations. If null, the first failure is
+	 *            propagated
+	 * @throws IOException
+	 */
+	public void apply(IndexWriter writer, List<IndexOperation> operations, String indexName, DeadLetterStore deadLetters) throws IOException {
+		int size = operations.size();
+		int start = 0;
+		while (start < size) {
+			OperationType type = operations.get(start).getType();
+			int end = start + 1;
+			while (end < size && operations.get(end).getType() == type) {
+				++end;
+			}
+			OperationExecutor<?> executor = executors[type.ordinal()];
+			List<IndexOperation> run = operations.subList(start, end);
+			try {
+				executor.exec(writer, run);
+			} catch (OperationFailedException e) {
+				RuntimeException cause = (RuntimeException) e.getCause();
+				if (deadLetters == null || isFatal(cause)) {
+					throw cause;
+				}
+				// The operations which precede the failed one have been applied
+				deadLetters.store(indexName, run.get(e.getIndex()), cause);
+				start += e.getIndex() + 1;
+				continue;
+			} catch (RuntimeException e) {
+				if (deadLetters == null || isFatal(e)) {
+					throw e;
+				}
+				// The run was applied by a single, repeatable call: repeat it
+				// one operation at a time to find the culprit
+				for (IndexOperation op : run) {
+					try {
+						executor.exec(writer, op);
+					} catch (RuntimeException e1) {
+						if (isFatal(e1)) {
+							throw e1;
+						}
+						deadLetters.store(indexName, op, e1);
+					}
+				}
+			}
+			start = end;
+		}
 	}
 
-	public OperationExecutor<? extends IndexOperation> getExecutor(Class<? extends IndexOperation> klass) {
-		return executor.get(klass);
+	/**
+	 * Checks whether the exception denotes a writer which can no longer be
+	 * used or a failure of the underlying storage, such as a timeout of the
+	 * Infinispan cluster, rather than a faulty operation. Such failures must
+	 * be retried, not blamed on the operations.
+	 */
+	public static boolean isFatal(RuntimeException e) {
+		// IndexWriter throws IllegalStateException after an OutOfMemoryError
+		if (e instanceof AlreadyClosedException || e instanceof IllegalStateException) {
+			return true;
+		}
+		for (Throwable t = e; t != null; t = t.getCause() == t ? null : t.getCause()) {
+			if (t instanceof CacheException || t instanceof IOException || t instanceof TimeoutException) {
+				return true;
+			}
+		}
+		return false;
 	}
 }
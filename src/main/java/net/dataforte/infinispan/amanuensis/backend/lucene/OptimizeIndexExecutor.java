@@ -32,7 +32,8 @@ public class OptimizeIndexExecutor extends OperationExecutor<OptimizeIndexOperat
 
 	@Override
 	public void execute(IndexWriter w, OptimizeIndexOperation op) throws IOException {
-		w.optimize();
+		// Don't wait: the merges run on the merge scheduler's threads
+		w.optimize(op.getMaxSegments(), false);
 	}
 
 }
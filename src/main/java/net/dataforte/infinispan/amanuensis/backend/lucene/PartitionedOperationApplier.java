@@ -0,0 +1,221 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.backend.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import net.dataforte.infinispan.amanuensis.DeadLetterStore;
+import net.dataforte.infinispan.amanuensis.IndexOperation;
+import net.dataforte.infinispan.amanuensis.IndexerException;
+import net.dataforte.infinispan.amanuensis.ops.AddDocumentOperation;
+import net.dataforte.infinispan.amanuensis.ops.DeleteDocumentsTermsOperation;
+import net.dataforte.infinispan.amanuensis.ops.UpdateDocumentOperation;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+
+/**
+ * This class applies the operations of a batch to an {@link IndexWriter} on
+ * several threads at once. Operations are partitioned by the value of their key
+ * field (the document's field for adds, the term for updates and deletes by
+ * term), so that the operations on the same key are applied in order by the
+ * same thread. Operations which may affect documents in more than one partition
+ * (deletes by query, deletes by terms on other fields, optimizations, documents
+ * without a single key) are barriers: the operations which precede them are
+ * applied before them, the ones which follow them after.
+ * 
+ * Note that Lucene 3.0's IndexWriter indexes at most 5 documents concurrently.
+ * 
+ * @author Tristan Tarrant
+ */
+public class PartitionedOperationApplier {
+	private static final int BARRIER = -1;
+	// Below this, the cost of handing off the work is not worth it
+	private static final int MIN_PARTITIONED_RUN = 16;
+	private final LuceneOperationExecutorFactory factory;
+	private final ExecutorService executor;
+	private final String keyField;
+	private final int partitions;
+
+	/**
+	 * @param factory
+	 *            applies the operations of each partition
+	 * @param executor
+	 *            runs all partitions but one, which is applied by the caller
+	 * @param keyField
+	 *            the name of the field which holds the primary key of the
+	 *            documents
+	 * @param partitions
+	 *            the number of partitions
+	 */
+	public PartitionedOperationApplier(LuceneOperationExecutorFactory factory, ExecutorService executor, String keyField, int partitions) {
+		this.factory = factory;
+		this.executor = executor;
+		this.keyField = keyField;
+		this.partitions = partitions;
+	}
+
+	/**
+	 * Applies the operations like
+	 * {@link LuceneOperationExecutorFactory#apply(IndexWriter, List, String, DeadLetterStore)}
+	 * 
+	 * @param writer
+	 * @param operations
+	 * @param indexName
+	 * @param deadLetters
+	 *            receives the failed operations. Must be thread-safe
+	 * @throws IOException
+	 * @throws IndexerException
+	 *             if interrupted while waiting for the partitions
+	 */
+	public void apply(IndexWriter writer, List<IndexOperation> operations, String indexName, DeadLetterStore deadLetters) throws IOException, IndexerException {
+		int size = operations.size();
+		int[] assignment = new int[size];
+		for (int i = 0; i < size; i++) {
+			assignment[i] = partitionOf(operations.get(i));
+		}
+		int start = 0;
+		for (int i = 0; i <= size; i++) {
+			if (i == size || assignment[i] == BARRIER) {
+				applyPartitioned(writer, operations, assignment, start, i, indexName, deadLetters);
+				if (i < size) {
+					factory.apply(writer, operations.subList(i, i + 1), indexName, deadLetters);
+				}
+				start = i + 1;
+			}
+		}
+	}
+
+	private void applyPartitioned(final IndexWriter writer, List<IndexOperation> operations, int[] assignment, int start, int end, final String indexName,
+			final DeadLetterStore deadLetters) throws IOException, IndexerException {
+		if (end - start < MIN_PARTITIONED_RUN) {
+			if (end > start) {
+				factory.apply(writer, operations.subList(start, end), indexName, deadLetters);
+			}
+			return;
+		}
+		List<List<IndexOperation>> parts = new ArrayList<List<IndexOperation>>(partitions);
+		for (int p = 0; p < partitions; p++) {
+			parts.add(new ArrayList<IndexOperation>());
+		}
+		for (int i = start; i < end; i++) {
+			parts.get(assignment[i]).add(operations.get(i));
+		}
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(partitions - 1);
+		for (int p = 1; p < partitions; p++) {
+			final List<IndexOperation> part = parts.get(p);
+			if (!part.isEmpty()) {
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						factory.apply(writer, part, indexName, deadLetters);
+						return null;
+					}
+				}));
+			}
+		}
+		Throwable failure = null;
+		try {
+			factory.apply(writer, parts.get(0), indexName, deadLetters);
+		} catch (Throwable t) {
+			failure = t;
+		}
+		// Always wait for all the partitions, so that the writer is not in use
+		// when the caller deals with a failure
+		boolean interrupted = false;
+		for (Future<Void> future : futures) {
+			for (;;) {
+				try {
+					future.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause();
+					}
+					break;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure instanceof IOException) {
+			throw (IOException) failure;
+		} else if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure instanceof Error) {
+			throw (Error) failure;
+		} else if (failure != null) {
+			throw new IndexerException("Error while applying operations to index " + indexName, failure);
+		}
+	}
+
+	/**
+	 * Returns the partition of the operation, or {@link #BARRIER}
+	 */
+	private int partitionOf(IndexOperation op) {
+		switch (op.getType()) {
+		case ADD_DOCUMENT:
+			return partitionOf(((AddDocumentOperation) op).getDoc());
+		case UPDATE_DOCUMENT:
+			return partitionOf(((UpdateDocumentOperation) op).getTerm());
+		case DELETE_DOCUMENTS_TERMS:
+			int partition = BARRIER;
+			for (Term term : ((DeleteDocumentsTermsOperation) op).getTerms()) {
+				int p = partitionOf(term);
+				if (p == BARRIER || (partition != BARRIER && p != partition)) {
+					return BARRIER;
+				}
+				partition = p;
+			}
+			return partition;
+		default:
+			return BARRIER;
+		}
+	}
+
+	private int partitionOf(Document doc) {
+		Fieldable[] fields = doc.getFieldables(keyField);
+		if (fields.length != 1 || fields[0].isBinary() || fields[0].stringValue() == null) {
+			return BARRIER;
+		}
+		return partitionOf(fields[0].stringValue());
+	}
+
+	private int partitionOf(Term term) {
+		return keyField.equals(term.field()) ? partitionOf(term.text()) : BARRIER;
+	}
+
+	private int partitionOf(String key) {
+		return (key.hashCode() & Integer.MAX_VALUE) % partitions;
+	}
+}
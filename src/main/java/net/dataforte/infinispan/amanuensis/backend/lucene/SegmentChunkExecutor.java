@@ -0,0 +1,43 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.backend.lucene;
+
+import java.io.IOException;
+
+import net.dataforte.infinispan.amanuensis.OperationExecutor;
+import net.dataforte.infinispan.amanuensis.ops.SegmentChunkOperation;
+
+import org.apache.lucene.index.IndexWriter;
+
+public class SegmentChunkExecutor extends OperationExecutor<SegmentChunkOperation> {
+	private final SegmentStaging staging;
+
+	public SegmentChunkExecutor(SegmentStaging staging) {
+		this.staging = staging;
+	}
+
+	@Override
+	public void execute(IndexWriter w, SegmentChunkOperation op) throws IOException {
+		staging.stage(op);
+	}
+
+}
@@ -0,0 +1,212 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.backend.lucene;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.dataforte.commons.slf4j.LoggerFactory;
+import net.dataforte.infinispan.amanuensis.ops.AddIndexesOperation;
+import net.dataforte.infinispan.amanuensis.ops.SegmentChunkOperation;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RAMDirectory;
+import org.slf4j.Logger;
+
+/**
+ * Holds the index files shipped by slaves until they are added to the index.
+ * The chunks of each transfer are written straight into a {@link Directory} of
+ * its own as they arrive: a chunk which arrives ahead of the ones preceding it
+ * is kept aside until the gap is filled, and a chunk which has already been
+ * written (for example when a batch is applied again after a rollback) is
+ * ignored. A transfer is discarded once the commit which includes it has
+ * completed, or when it has not been touched for {@link #getTimeout()}
+ * milliseconds, which happens when a slave gives up halfway through.
+ * 
+ * @author Tristan Tarrant
+ */
+public class SegmentStaging {
+	private static final Logger log = LoggerFactory.make();
+	public static final long DEFAULT_TIMEOUT = 10 * 60 * 1000L;
+	private final Map<Long, Transfer> transfers = new HashMap<Long, Transfer>();
+	private long timeout = DEFAULT_TIMEOUT;
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) after which an incomplete transfer is
+	 * discarded
+	 * 
+	 * @param timeout
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	public synchronized void stage(SegmentChunkOperation op) throws IOException {
+		Transfer transfer = transfers.get(op.getTransferId());
+		if (transfer == null) {
+			transfer = new Transfer();
+			transfers.put(op.getTransferId(), transfer);
+		}
+		transfer.lastAccess = System.currentTimeMillis();
+		if (transfer.assembled) {
+			// Applied again after the transfer was added
+			return;
+		}
+		StagedFile file = transfer.files.get(op.getFileName());
+		if (file == null) {
+			file = new StagedFile(transfer.dir.createOutput(op.getFileName()));
+			transfer.files.put(op.getFileName(), file);
+		}
+		file.write(op.getOffset(), op.getData());
+	}
+
+	/**
+	 * Completes the files of a transfer and returns the {@link Directory} which
+	 * holds them. It may be invoked again, e.g. when the operation is applied
+	 * again after a rollback, until the transfer is discarded.
+	 * 
+	 * @param op
+	 * @return
+	 * @throws IOException
+	 *             if the transfer is unknown, e.g. because its chunks were
+	 *             sent to another master, or if some of its chunks are missing
+	 */
+	public synchronized Directory assemble(AddIndexesOperation op) throws IOException {
+		Transfer transfer = transfers.get(op.getTransferId());
+		if (transfer == null) {
+			throw new IOException("Unknown segment transfer " + op.getTransferId());
+		}
+		transfer.lastAccess = System.currentTimeMillis();
+		if (transfer.assembled) {
+			return transfer.dir;
+		}
+		String[] names = op.getFileNames();
+		long[] lengths = op.getFileLengths();
+		for (int i = 0; i < names.length; i++) {
+			StagedFile file = transfer.files.get(names[i]);
+			if (file == null) {
+				if (lengths[i] > 0) {
+					throw new IOException("Segment transfer " + op.getTransferId() + " is missing file " + names[i]);
+				}
+				transfer.dir.createOutput(names[i]).close();
+			} else if (file.position != lengths[i]) {
+				throw new IOException("Segment transfer " + op.getTransferId() + " is missing data of file " + names[i] + " at offset " + file.position);
+			}
+		}
+		for (StagedFile file : transfer.files.values()) {
+			file.out.close();
+		}
+		transfer.files.clear();
+		transfer.assembled = true;
+		return transfer.dir;
+	}
+
+	/**
+	 * Marks a transfer as added to the index, so that it is discarded at the
+	 * next commit
+	 */
+	public synchronized void added(long transferId) {
+		Transfer transfer = transfers.get(transferId);
+		if (transfer != null) {
+			transfer.added = true;
+		}
+	}
+
+	/**
+	 * Invoked after a commit: discards the transfers which have been added
+	 * and the ones which have expired
+	 */
+	public synchronized void committed() {
+		long now = System.currentTimeMillis();
+		for (Iterator<Map.Entry<Long, Transfer>> it = transfers.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Long, Transfer> entry = it.next();
+			Transfer transfer = entry.getValue();
+			if (transfer.added) {
+				it.remove();
+				transfer.dir.close();
+			} else if (now - transfer.lastAccess > timeout) {
+				log.warn("Discarding incomplete segment transfer {}", entry.getKey());
+				it.remove();
+				transfer.dir.close();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of transfers being staged
+	 */
+	public synchronized int size() {
+		return transfers.size();
+	}
+
+	private static class Transfer {
+		final RAMDirectory dir = new RAMDirectory();
+		final Map<String, StagedFile> files = new HashMap<String, StagedFile>();
+		long lastAccess;
+		boolean added;
+		boolean assembled;
+	}
+
+	/**
+	 * A file being written, together with the chunks which arrived ahead of
+	 * the position reached so far
+	 */
+	private static class StagedFile {
+		final IndexOutput out;
+		final TreeMap<Long, byte[]> ahead = new TreeMap<Long, byte[]>();
+		long position;
+
+		StagedFile(IndexOutput out) {
+			this.out = out;
+		}
+
+		void write(long offset, byte[] data) throws IOException {
+			if (offset < position) {
+				// Already written
+				return;
+			}
+			if (offset > position) {
+				ahead.put(offset, data);
+				return;
+			}
+			out.writeBytes(data, data.length);
+			position += data.length;
+			// Write the chunks which were waiting for this one
+			Map.Entry<Long, byte[]> next;
+			while ((next = ahead.firstEntry()) != null && next.getKey() <= position) {
+				ahead.remove(next.getKey());
+				if (next.getKey() == position) {
+					out.writeBytes(next.getValue(), next.getValue().length);
+					position += next.getValue().length;
+				}
+			}
+		}
+	}
+}
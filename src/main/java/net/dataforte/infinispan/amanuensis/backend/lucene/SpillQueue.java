@@ -0,0 +1,152 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.backend.lucene;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import net.dataforte.infinispan.amanuensis.IndexOperations;
+import net.dataforte.infinispan.amanuensis.codec.IndexOperationsCodec;
+
+/**
+ * A first-in first-out queue of {@link IndexOperations} kept in a file, which
+ * absorbs the messages which do not fit in the in-memory queue of an index.
+ * Each message is stored as its length followed by its encoded form. The file
+ * is truncated whenever the queue becomes empty, so that it only grows for as
+ * long as a backlog persists. It is not forced to disk: durability is the
+ * business of the {@link WriteAheadLog}.
+ * 
+ * @author Tristan Tarrant
+ */
+public class SpillQueue {
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final ByteBuffer header = ByteBuffer.allocate(4);
+	private long readPosition;
+	private long writePosition;
+	private int size;
+
+	/**
+	 * Creates an empty queue, discarding the contents of the file if it
+	 * already exists
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public SpillQueue(File file) throws IOException {
+		File parent = file.getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Could not create directory " + parent);
+		}
+		this.file = file;
+		this.raf = new RandomAccessFile(file, "rw");
+		this.raf.setLength(0);
+		this.channel = raf.getChannel();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized void add(IndexOperations ops) throws IOException {
+		byte[] payload = IndexOperationsCodec.encode(ops);
+		ByteBuffer buf = ByteBuffer.allocate(4 + payload.length);
+		buf.putInt(payload.length).put(payload).flip();
+		long position = writePosition;
+		while (buf.hasRemaining()) {
+			position += channel.write(buf, position);
+		}
+		writePosition = position;
+		++size;
+	}
+
+	/**
+	 * Removes and returns the oldest message, or null if the queue is empty
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized IndexOperations poll() throws IOException {
+		if (size == 0) {
+			return null;
+		}
+		header.clear();
+		read(header, readPosition);
+		int length = header.getInt(0);
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		read(payload, readPosition + 4);
+		readPosition += 4 + length;
+		if (--size == 0) {
+			readPosition = writePosition = 0;
+			channel.truncate(0);
+		}
+		return IndexOperationsCodec.decode(payload.array(), 0, length);
+	}
+
+	private void read(ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, position);
+			if (n < 0) {
+				throw new EOFException("Unexpected end of spill file " + file);
+			}
+			position += n;
+		}
+	}
+
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Discards all the queued messages
+	 * 
+	 * @return the number of discarded messages
+	 * @throws IOException
+	 */
+	public synchronized int clear() throws IOException {
+		int discarded = size;
+		size = 0;
+		readPosition = writePosition = 0;
+		channel.truncate(0);
+		return discarded;
+	}
+
+	/**
+	 * Closes and deletes the file, discarding any messages still queued
+	 */
+	public synchronized void close() throws IOException {
+		try {
+			raf.close();
+		} finally {
+			file.delete();
+		}
+	}
+}
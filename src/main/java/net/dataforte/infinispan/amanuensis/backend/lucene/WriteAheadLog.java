@@ -0,0 +1,391 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.backend.lucene;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import net.dataforte.commons.slf4j.LoggerFactory;
+import net.dataforte.infinispan.amanuensis.IndexOperations;
+import net.dataforte.infinispan.amanuensis.codec.IndexOperationsCodec;
+
+import org.slf4j.Logger;
+
+/**
+ * An append-only log of the {@link IndexOperations} which have been accepted
+ * for an index but not yet committed to it. The log is split into segment
+ * files which are written through memory mappings, so that appending a message
+ * costs a memory copy and no system call: the data survives a crash of the
+ * process as soon as it has been appended, and a crash of the operating system
+ * once the log has been {@link #sync()}ed, which is meant to be done
+ * periodically for all the messages appended in the meantime.
+ * 
+ * Each message is stored as a record made of its length, its CRC32, its
+ * sequence number and its {@link IndexOperationsCodec} encoding. Sequence
+ * numbers are contiguous: a {@link #checkpoint(long)} records that all the
+ * messages up to a sequence number have been committed to the index and
+ * deletes the segments which only contain such messages. On startup,
+ * {@link #recover()} returns the messages after the checkpoint, stopping at the
+ * first torn or corrupted record.
+ * 
+ * The checkpoint also records the version of the index which the messages
+ * apply to, so that messages which were logged while this node owned the
+ * index, and were overtaken by the commits of another owner, are not applied
+ * again when the node recovers. Each log has a random identifier, which its
+ * owner stores in the user data of its commits, so that the owner's own
+ * commits can be told apart from those of another owner.
+ * 
+ * Delivery is at-least-once: messages which were committed just before a crash
+ * but after the last checkpoint will be applied again.
+ * 
+ * @author Tristan Tarrant
+ */
+public class WriteAheadLog {
+	private static final Logger log = LoggerFactory.make();
+	private static final String SEGMENT_SUFFIX = ".wal";
+	private static final String CHECKPOINT_FILE = "checkpoint";
+	private static final int RECORD_HEADER_SIZE = 16;
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	/**
+	 * The index version of a log which has not recorded one
+	 */
+	public static final long UNKNOWN_VERSION = -1;
+
+	private final File directory;
+	private final int segmentSize;
+	private final TreeMap<Long, File> segments = new TreeMap<Long, File>();
+	private final RandomAccessFile checkpointFile;
+	private MappedByteBuffer segment; // the segment being appended to
+	private long nextSequence = 1;
+	private long checkpoint = 0;
+	private long indexVersion = UNKNOWN_VERSION;
+	private long logId;
+	private boolean dirty = false;
+	private boolean recovered = false;
+
+	/**
+	 * Opens the log stored in the specified directory, creating it if necessary
+	 * 
+	 * @param directory
+	 * @param segmentSize
+	 *            the size of each segment file. Messages larger than this are
+	 *            stored in a segment of their own
+	 * @throws IOException
+	 */
+	public WriteAheadLog(File directory, int segmentSize) throws IOException {
+		if (segmentSize < RECORD_HEADER_SIZE) {
+			throw new IllegalArgumentException("segmentSize is too small");
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create log directory " + directory);
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.checkpointFile = new RandomAccessFile(new File(directory, CHECKPOINT_FILE), "rw");
+		if (checkpointFile.length() >= 16) {
+			long value = checkpointFile.readLong();
+			if (checkpointFile.readLong() == ~value) {
+				checkpoint = value;
+			} else {
+				log.warn("Ignoring corrupted checkpoint in log {}", directory);
+			}
+		}
+		if (checkpointFile.length() >= 32) {
+			long value = checkpointFile.readLong();
+			if (checkpointFile.readLong() == ~value) {
+				indexVersion = value;
+			}
+		}
+		boolean identified = false;
+		if (checkpointFile.length() >= 48) {
+			long value = checkpointFile.readLong();
+			if (checkpointFile.readLong() == ~value) {
+				logId = value;
+				identified = true;
+			}
+		}
+		if (!identified) {
+			logId = new SecureRandom().nextLong();
+			writeCheckpoint();
+		}
+		File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File f) {
+				return f.isFile() && f.getName().endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		for (File f : files) {
+			String name = f.getName();
+			try {
+				segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), f);
+			} catch (NumberFormatException e) {
+				log.warn("Ignoring unexpected file {} in log {}", name, directory);
+			}
+		}
+		nextSequence = checkpoint + 1;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Returns the sequence number of the last committed message
+	 */
+	public synchronized long getCheckpoint() {
+		return checkpoint;
+	}
+
+	/**
+	 * Returns the random identifier of this log, which is kept across restarts
+	 */
+	public long getLogId() {
+		return logId;
+	}
+
+	/**
+	 * Returns the version of the index recorded by the last checkpoint, or
+	 * {@link #UNKNOWN_VERSION}
+	 */
+	public synchronized long getIndexVersion() {
+		return indexVersion;
+	}
+
+	/**
+	 * Reads the messages which were appended after the last checkpoint. This
+	 * must be invoked once, before any message is appended. Afterwards
+	 * {@link #getCheckpoint()} is the sequence number preceding the first
+	 * recovered message.
+	 * 
+	 * @return the messages, in the order in which they were appended
+	 * @throws IOException
+	 */
+	public synchronized List<IndexOperations> recover() throws IOException {
+		if (recovered) {
+			throw new IllegalStateException("Log " + directory + " has already been recovered");
+		}
+		recovered = true;
+		List<IndexOperations> pending = new ArrayList<IndexOperations>();
+		long expected = -1;
+		long first = -1;
+		CRC32 crc = new CRC32();
+		segments: for (Map.Entry<Long, File> entry : segments.entrySet()) {
+			if (expected != -1 && entry.getKey() != expected) {
+				log.warn("Missing records before segment {} in log {}, ignoring the rest of the log", entry.getValue().getName(), directory);
+				break;
+			}
+			expected = entry.getKey();
+			MappedByteBuffer buffer = map(entry.getValue(), MapMode.READ_ONLY, 0);
+			while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+				int length = buffer.getInt();
+				if (length == 0) {
+					// end of the segment
+					continue segments;
+				}
+				int checksum = buffer.getInt();
+				long sequence = buffer.getLong();
+				if (length < 0 || length > buffer.remaining() || sequence != expected) {
+					log.warn("Torn record {} in segment {} of log {}", new Object[] { expected, entry.getValue().getName(), directory });
+					continue segments;
+				}
+				byte[] payload = new byte[length];
+				buffer.get(payload);
+				crc.reset();
+				crc.update(payload);
+				if ((int) crc.getValue() != checksum) {
+					log.warn("Corrupted record {} in segment {} of log {}", new Object[] { expected, entry.getValue().getName(), directory });
+					continue segments;
+				}
+				++expected;
+				if (sequence > checkpoint) {
+					if (first == -1) {
+						first = sequence;
+					}
+					pending.add(IndexOperationsCodec.decode(payload, 0, length));
+				}
+			}
+		}
+		if (first > checkpoint + 1) {
+			log.warn("Records {} to {} of log {} are missing", new Object[] { checkpoint + 1, first - 1, directory });
+			checkpoint = first - 1;
+		}
+		nextSequence = checkpoint + pending.size() + 1;
+		if (!pending.isEmpty()) {
+			log.info("Recovered {} messages from log {}", pending.size(), directory);
+		}
+		return pending;
+	}
+
+	/**
+	 * Appends a message to the log
+	 * 
+	 * @param ops
+	 * @return the sequence number of the message
+	 * @throws IOException
+	 */
+	public synchronized long append(IndexOperations ops) throws IOException {
+		if (!recovered) {
+			throw new IllegalStateException("Log " + directory + " must be recovered before appending");
+		}
+		byte[] payload = IndexOperationsCodec.encode(ops);
+		// leave room for the terminating zero length
+		int size = RECORD_HEADER_SIZE + payload.length + 4;
+		if (segment == null || segment.remaining() < size) {
+			roll(size);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		long sequence = nextSequence++;
+		segment.putInt(payload.length);
+		segment.putInt((int) crc.getValue());
+		segment.putLong(sequence);
+		segment.put(payload);
+		dirty = true;
+		return sequence;
+	}
+
+	/**
+	 * Forces the appended messages and the checkpoint to the storage device
+	 * 
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		MappedByteBuffer buffer;
+		synchronized (this) {
+			if (!dirty) {
+				return;
+			}
+			dirty = false;
+			buffer = segment;
+			checkpointFile.getFD().sync();
+		}
+		// forcing does not need to hold up appends
+		if (buffer != null) {
+			buffer.force();
+		}
+	}
+
+	/**
+	 * Records that all the messages up to the specified sequence number have
+	 * been committed to the index, and deletes the segments which are no
+	 * longer needed
+	 * 
+	 * @param sequence
+	 * @throws IOException
+	 */
+	public synchronized void checkpoint(long sequence) throws IOException {
+		checkpoint(sequence, indexVersion);
+	}
+
+	/**
+	 * Records that all the messages up to the specified sequence number have
+	 * been committed to the index, which is now at the specified version, and
+	 * deletes the segments which are no longer needed
+	 * 
+	 * @param sequence
+	 * @param indexVersion
+	 *            the version of the index, or {@link #UNKNOWN_VERSION}
+	 * @throws IOException
+	 */
+	public synchronized void checkpoint(long sequence, long indexVersion) throws IOException {
+		if (sequence <= checkpoint && indexVersion == this.indexVersion) {
+			return;
+		}
+		checkpoint = Math.max(checkpoint, sequence);
+		this.indexVersion = indexVersion;
+		writeCheckpoint();
+		dirty = true;
+		// A segment can go once the following one starts after the checkpoint
+		while (segments.size() > 1) {
+			Map.Entry<Long, File> oldest = segments.firstEntry();
+			if (segments.higherKey(oldest.getKey()) - 1 > checkpoint) {
+				break;
+			}
+			delete(oldest.getValue());
+			segments.remove(oldest.getKey());
+		}
+	}
+
+	private void writeCheckpoint() throws IOException {
+		checkpointFile.seek(0);
+		checkpointFile.writeLong(checkpoint);
+		checkpointFile.writeLong(~checkpoint);
+		checkpointFile.writeLong(indexVersion);
+		checkpointFile.writeLong(~indexVersion);
+		checkpointFile.writeLong(logId);
+		checkpointFile.writeLong(~logId);
+	}
+
+	/**
+	 * Syncs and closes the log
+	 */
+	public synchronized void close() {
+		try {
+			sync();
+			checkpointFile.close();
+		} catch (IOException e) {
+			log.warn("Error while closing log " + directory, e);
+		}
+		segment = null;
+	}
+
+	private void roll(int size) throws IOException {
+		if (segment != null) {
+			segment.force();
+		}
+		File f = new File(directory, String.format("%020d", nextSequence) + SEGMENT_SUFFIX);
+		segment = map(f, MapMode.READ_WRITE, Math.max(segmentSize, size));
+		segments.put(nextSequence, f);
+	}
+
+	private static MappedByteBuffer map(File f, MapMode mode, int size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, mode == MapMode.READ_ONLY ? "r" : "rw");
+		try {
+			if (mode != MapMode.READ_ONLY) {
+				// the file is zero-filled, so an unused record has length 0
+				raf.setLength(size);
+			}
+			FileChannel channel = raf.getChannel();
+			// the mapping stays valid after the file is closed
+			return channel.map(mode, 0, channel.size());
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void delete(File f) {
+		if (!f.delete()) {
+			log.warn("Could not delete log segment {}", f);
+		}
+	}
+}
@@ -0,0 +1,181 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.codec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the data written by a {@link CodecOutput} directly from a byte array
+ * region (such as the buffer of a JGroups message), without copying it first.
+ * 
+ * @author Tristan Tarrant
+ */
+public class CodecInput {
+	private final byte[] buf;
+	private final int limit;
+	private int pos;
+	private final List<String> symbols = new ArrayList<String>();
+	private final List<String> tokens = new ArrayList<String>();
+
+	public CodecInput(byte[] buf, int offset, int length) {
+		this.buf = buf;
+		this.pos = offset;
+		this.limit = offset + length;
+	}
+
+	private void require(int n) throws EOFException {
+		if (pos + n > limit) {
+			throw new EOFException("Unexpected end of encoded data");
+		}
+	}
+
+	public boolean hasRemaining() {
+		return pos < limit;
+	}
+
+	public byte readByte() throws IOException {
+		require(1);
+		return buf[pos++];
+	}
+
+	public int readInt() throws IOException {
+		require(4);
+		return ((buf[pos++] & 0xFF) << 24) | ((buf[pos++] & 0xFF) << 16) | ((buf[pos++] & 0xFF) << 8) | (buf[pos++] & 0xFF);
+	}
+
+	public long readLong() throws IOException {
+		return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+	}
+
+	public float readFloat() throws IOException {
+		return Float.intBitsToFloat(readInt());
+	}
+
+	public double readDouble() throws IOException {
+		return Double.longBitsToDouble(readLong());
+	}
+
+	public int readVInt() throws IOException {
+		int i = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = readByte();
+			i |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return i;
+			}
+		}
+		throw new IOException("Malformed variable-length integer");
+	}
+
+	public long readVLong() throws IOException {
+		long l = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = readByte();
+			l |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return l;
+			}
+		}
+		throw new IOException("Malformed variable-length long");
+	}
+
+	/**
+	 * Reads the number of elements which follow, checking that the remaining
+	 * data can hold them, so that a corrupted count cannot cause a huge
+	 * allocation
+	 * 
+	 * @param minElementSize
+	 *            the minimum number of bytes taken by each element
+	 */
+	public int readCount(int minElementSize) throws IOException {
+		int count = readVInt();
+		if (count < 0 || (long) count * minElementSize > limit - pos) {
+			throw new IOException("Invalid element count " + count);
+		}
+		return count;
+	}
+
+	/**
+	 * Reads a length-prefixed byte array into a new array
+	 */
+	public byte[] readByteArray() throws IOException {
+		int length = readVInt();
+		require(length);
+		byte[] b = new byte[length];
+		System.arraycopy(buf, pos, b, 0, length);
+		pos += length;
+		return b;
+	}
+
+	public String readString() throws IOException {
+		int length = readVInt();
+		require(length);
+		String s = new String(buf, pos, length, CodecOutput.UTF8);
+		pos += length;
+		return s;
+	}
+
+	/**
+	 * Reads a string written by {@link CodecOutput#writeSymbol(String)}.
+	 * Symbols are interned, as Lucene requires for field names.
+	 */
+	public String readSymbol() throws IOException {
+		int ref = readVInt();
+		if (ref == 0) {
+			String s = readString().intern();
+			symbols.add(s);
+			return s;
+		}
+		if (ref > symbols.size()) {
+			throw new IOException("Unknown symbol reference " + ref);
+		}
+		return symbols.get(ref - 1);
+	}
+
+	/**
+	 * Reads a string written by {@link CodecOutput#writeToken(String)}
+	 */
+	public String readToken() throws IOException {
+		int ref = readVInt();
+		if (ref == 0) {
+			String s = readString();
+			tokens.add(s);
+			return s;
+		}
+		if (ref > tokens.size()) {
+			throw new IOException("Unknown token reference " + ref);
+		}
+		return tokens.get(ref - 1);
+	}
+
+	/**
+	 * Reads length bytes into the array
+	 */
+	public void readBytes(byte[] b, int offset, int length) throws IOException {
+		require(length);
+		System.arraycopy(buf, pos, b, offset, length);
+		pos += length;
+	}
+}
@@ -0,0 +1,169 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.codec;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A growable byte buffer with the primitives used by
+ * {@link IndexOperationsCodec}: variable-length integers, length-prefixed UTF-8
+ * strings and dictionary-encoded symbols (field and index names), which are
+ * written in full the first time they are encountered and as a back-reference
+ * afterwards.
+ * 
+ * @author Tristan Tarrant
+ */
+public class CodecOutput {
+	static final Charset UTF8 = Charset.forName("UTF-8");
+	private byte[] buf;
+	private int count;
+	private final Map<String, Integer> symbols = new HashMap<String, Integer>();
+	private final Map<String, Integer> tokens = new HashMap<String, Integer>();
+
+	public CodecOutput() {
+		this(256);
+	}
+
+	public CodecOutput(int size) {
+		buf = new byte[size];
+	}
+
+	private void ensureCapacity(int extra) {
+		if (count + extra > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + extra));
+		}
+	}
+
+	public void writeByte(int b) {
+		ensureCapacity(1);
+		buf[count++] = (byte) b;
+	}
+
+	public void writeBytes(byte[] b, int offset, int length) {
+		ensureCapacity(length);
+		System.arraycopy(b, offset, buf, count, length);
+		count += length;
+	}
+
+	public void writeInt(int i) {
+		ensureCapacity(4);
+		buf[count++] = (byte) (i >>> 24);
+		buf[count++] = (byte) (i >>> 16);
+		buf[count++] = (byte) (i >>> 8);
+		buf[count++] = (byte) i;
+	}
+
+	public void writeLong(long l) {
+		writeInt((int) (l >>> 32));
+		writeInt((int) l);
+	}
+
+	public void writeFloat(float f) {
+		writeInt(Float.floatToIntBits(f));
+	}
+
+	public void writeDouble(double d) {
+		writeLong(Double.doubleToLongBits(d));
+	}
+
+	public void writeVInt(int i) {
+		ensureCapacity(5);
+		while ((i & ~0x7F) != 0) {
+			buf[count++] = (byte) ((i & 0x7F) | 0x80);
+			i >>>= 7;
+		}
+		buf[count++] = (byte) i;
+	}
+
+	public void writeVLong(long l) {
+		ensureCapacity(10);
+		while ((l & ~0x7FL) != 0) {
+			buf[count++] = (byte) ((l & 0x7F) | 0x80);
+			l >>>= 7;
+		}
+		buf[count++] = (byte) l;
+	}
+
+	/**
+	 * Writes a length-prefixed byte array
+	 */
+	public void writeByteArray(byte[] b, int offset, int length) {
+		writeVInt(length);
+		writeBytes(b, offset, length);
+	}
+
+	public void writeString(String s) {
+		byte[] b = s.getBytes(UTF8);
+		writeByteArray(b, 0, b.length);
+	}
+
+	/**
+	 * Writes a string which is likely to be repeated within the same stream
+	 */
+	public void writeSymbol(String s) {
+		Integer ref = symbols.get(s);
+		if (ref != null) {
+			writeVInt(ref);
+		} else {
+			writeVInt(0);
+			writeString(s);
+			symbols.put(s, symbols.size() + 1);
+		}
+	}
+
+	/**
+	 * Writes a string using a dictionary separate from the symbols, for values
+	 * such as the terms of a token stream which repeat within a stream but
+	 * should not be interned when read
+	 */
+	public void writeToken(String s) {
+		Integer ref = tokens.get(s);
+		if (ref != null) {
+			writeVInt(ref);
+		} else {
+			writeVInt(0);
+			writeString(s);
+			tokens.put(s, tokens.size() + 1);
+		}
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Discards the contents and the symbol dictionary, so that the buffer may
+	 * be reused for an independent stream
+	 */
+	public void reset() {
+		count = 0;
+		symbols.clear();
+		tokens.clear();
+	}
+
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buf, count);
+	}
+}
@@ -0,0 +1,741 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+
+import net.dataforte.infinispan.amanuensis.CommitNotification;
+import net.dataforte.infinispan.amanuensis.IndexOperation;
+import net.dataforte.infinispan.amanuensis.IndexOperations;
+import net.dataforte.infinispan.amanuensis.analysis.PreAnalyzedTokenStream;
+import net.dataforte.infinispan.amanuensis.OperationType;
+import net.dataforte.infinispan.amanuensis.ops.AddDocumentOperation;
+import net.dataforte.infinispan.amanuensis.ops.AddIndexesOperation;
+import net.dataforte.infinispan.amanuensis.ops.CommitOperation;
+import net.dataforte.infinispan.amanuensis.ops.DeleteDocumentsQueriesOperation;
+import net.dataforte.infinispan.amanuensis.ops.DeleteDocumentsTermsOperation;
+import net.dataforte.infinispan.amanuensis.ops.ExpungeDeletesOperation;
+import net.dataforte.infinispan.amanuensis.ops.OptimizeIndexOperation;
+import net.dataforte.infinispan.amanuensis.ops.SegmentChunkOperation;
+import net.dataforte.infinispan.amanuensis.ops.UpdateDocumentOperation;
+
+import org.apache.lucene.analysis.NumericTokenStream;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.document.NumericField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.NumericUtils;
+
+/**
+ * A compact binary encoding for {@link IndexOperations}, used in place of Java
+ * serialization when sending operations between nodes. Field and index names
+ * are dictionary-encoded, the stored/indexed/term vector flags of each field
+ * are packed into a single byte and numbers are written as variable-length
+ * integers. Queries other than {@link TermQuery} and fields which are neither
+ * {@link Field} nor {@link NumericField} fall back to Java serialization.
+ * 
+ * @author Tristan Tarrant
+ */
+public final class IndexOperationsCodec {
+	public static final byte MAGIC = (byte) 0xA5;
+	public static final byte VERSION = 3;
+	public static final byte KIND_OPERATIONS = 1;
+	public static final byte KIND_COMMIT = 2;
+
+	// Field flags
+	private static final int STORED = 0x01;
+	private static final int INDEXED = 0x02;
+	private static final int TOKENIZED = 0x04;
+	private static final int TERM_VECTOR = 0x08;
+	private static final int TERM_VECTOR_POSITIONS = 0x10;
+	private static final int TERM_VECTOR_OFFSETS = 0x20;
+	private static final int OMIT_NORMS = 0x40;
+	private static final int OMIT_TF = 0x80;
+
+	// Field kinds
+	private static final int FIELD_STRING = 0;
+	private static final int FIELD_BINARY = 1;
+	private static final int FIELD_NUMERIC = 2;
+	private static final int FIELD_SERIALIZED = 3;
+	private static final int FIELD_PRE_ANALYZED = 4;
+	private static final int FIELD_KIND_MASK = 0x0F;
+	private static final int HAS_BOOST = 0x10;
+
+	// Numeric types
+	private static final int NUMERIC_INT = 0;
+	private static final int NUMERIC_LONG = 1;
+	private static final int NUMERIC_FLOAT = 2;
+	private static final int NUMERIC_DOUBLE = 3;
+
+	// Query kinds
+	private static final int QUERY_TERM = 1;
+	private static final int QUERY_SERIALIZED = 2;
+
+	/**
+	 * NumericField does not expose its precision step, so it is read from its
+	 * token stream
+	 */
+	private static final java.lang.reflect.Field PRECISION_STEP;
+
+	static {
+		java.lang.reflect.Field f;
+		try {
+			f = NumericTokenStream.class.getDeclaredField("precisionStep");
+			f.setAccessible(true);
+		} catch (Exception e) {
+			f = null;
+		}
+		PRECISION_STEP = f;
+	}
+
+	private IndexOperationsCodec() {
+	}
+
+	/**
+	 * Encodes the operations into a self-contained message
+	 * 
+	 * @param ops
+	 * @return the encoded message
+	 * @throws IOException
+	 *             if one of the operations cannot be encoded
+	 */
+	public static byte[] encode(IndexOperations ops) throws IOException {
+		CodecOutput out = new CodecOutput();
+		writeHeader(out, KIND_OPERATIONS);
+		out.writeLong(ops.getSourceId());
+		out.writeVLong(ops.getSequence());
+		writeOperations(out, ops);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Checks whether the specified buffer region holds a message produced by
+	 * this codec
+	 */
+	public static boolean isEncoded(byte[] buf, int offset, int length) {
+		return buf != null && length >= 3 && buf[offset] == MAGIC;
+	}
+
+	/**
+	 * Decodes a message produced by {@link #encode(IndexOperations)} directly
+	 * from the specified buffer region
+	 * 
+	 * @throws IOException
+	 *             if the data is not a valid encoded message
+	 */
+	public static IndexOperations decode(byte[] buf, int offset, int length) throws IOException {
+		CodecInput in = new CodecInput(buf, offset, length);
+		byte version = readHeader(in, KIND_OPERATIONS);
+		long sourceId = 0;
+		long sequence = 0;
+		if (version >= 2) {
+			sourceId = in.readLong();
+			sequence = in.readVLong();
+		}
+		IndexOperations ops = readOperations(in, version);
+		ops.setId(sourceId, sequence);
+		return ops;
+	}
+
+	/**
+	 * Returns the kind of the encoded message held in the specified buffer
+	 * region, or 0 if it is not an encoded message
+	 */
+	public static byte getKind(byte[] buf, int offset, int length) {
+		return isEncoded(buf, offset, length) ? buf[offset + 2] : 0;
+	}
+
+	/**
+	 * Encodes a commit notification into a self-contained message
+	 */
+	public static byte[] encode(CommitNotification notification) {
+		CodecOutput out = new CodecOutput();
+		writeHeader(out, KIND_COMMIT);
+		out.writeString(notification.getIndexName());
+		out.writeLong(notification.getVersion());
+		out.writeLong(notification.getTimestamp());
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes a message produced by {@link #encode(CommitNotification)}
+	 * directly from the specified buffer region
+	 * 
+	 * @throws IOException
+	 *             if the data is not a valid encoded commit notification
+	 */
+	public static CommitNotification decodeCommit(byte[] buf, int offset, int length) throws IOException {
+		CodecInput in = new CodecInput(buf, offset, length);
+		readHeader(in, KIND_COMMIT);
+		String indexName = in.readString();
+		long version = in.readLong();
+		long timestamp = in.readLong();
+		return new CommitNotification(indexName, version, timestamp);
+	}
+
+	/**
+	 * Cheaply estimates the encoded size of the operations, without encoding
+	 * them
+	 */
+	public static int estimateSize(IndexOperations ops) {
+		int size = 8 + ops.getIndexName().length();
+		for (IndexOperation op : ops.getOperations()) {
+			size += estimateSize(op);
+		}
+		return size;
+	}
+
+	/**
+	 * Cheaply estimates the encoded size of an operation, without encoding it
+	 */
+	public static int estimateSize(IndexOperation op) {
+		int size = 1;
+		switch (op.getType()) {
+		case ADD_DOCUMENT:
+			size += estimateSize(((AddDocumentOperation) op).getDoc());
+			break;
+		case DELETE_DOCUMENTS_TERMS:
+			for (Term term : ((DeleteDocumentsTermsOperation) op).getTerms()) {
+				size += estimateSize(term);
+			}
+			break;
+		case DELETE_DOCUMENTS_QUERIES:
+			for (Query query : ((DeleteDocumentsQueriesOperation) op).getQueries()) {
+				size += query instanceof TermQuery ? 5 + estimateSize(((TermQuery) query).getTerm()) : 256;
+			}
+			break;
+		case UPDATE_DOCUMENT:
+			UpdateDocumentOperation update = (UpdateDocumentOperation) op;
+			size += estimateSize(update.getTerm()) + estimateSize(update.getDoc());
+			break;
+		case SEGMENT_CHUNK:
+			SegmentChunkOperation chunk = (SegmentChunkOperation) op;
+			size += 24 + chunk.getFileName().length() + chunk.getData().length;
+			break;
+		case ADD_INDEXES:
+			for (String fileName : ((AddIndexesOperation) op).getFileNames()) {
+				size += 10 + fileName.length();
+			}
+			break;
+		default:
+			break;
+		}
+		return size;
+	}
+
+	private static int estimateSize(Document doc) {
+		int size = 2;
+		for (Fieldable field : doc.getFields()) {
+			size += 4 + field.name().length();
+			if (field.tokenStreamValue() instanceof PreAnalyzedTokenStream) {
+				// Terms are dictionary-encoded, so each token costs a few bytes
+				size += 6 * ((PreAnalyzedTokenStream) field.tokenStreamValue()).getCount();
+				if (field.isStored() && field.stringValue() != null) {
+					size += field.stringValue().length();
+				}
+			} else if (field.isBinary()) {
+				size += field.getBinaryLength();
+			} else if (field.stringValue() != null) {
+				size += field.stringValue().length();
+			} else {
+				size += 16;
+			}
+		}
+		return size;
+	}
+
+	private static int estimateSize(Term term) {
+		return 2 + term.field().length() + term.text().length();
+	}
+
+	static void writeHeader(CodecOutput out, byte kind) {
+		out.writeByte(MAGIC);
+		out.writeByte(VERSION);
+		out.writeByte(kind);
+	}
+
+	/**
+	 * Reads and checks the message header
+	 * 
+	 * @return the encoding version of the message
+	 */
+	static byte readHeader(CodecInput in, byte kind) throws IOException {
+		if (in.readByte() != MAGIC) {
+			throw new IOException("Not an encoded message");
+		}
+		byte version = in.readByte();
+		if (version < 1 || version > VERSION) {
+			throw new IOException("Unsupported encoding version " + version);
+		}
+		byte actualKind = in.readByte();
+		if (actualKind != kind) {
+			throw new IOException("Unexpected message kind " + actualKind);
+		}
+		return version;
+	}
+
+	/**
+	 * Writes the operations (without a message header) to the stream. Symbols
+	 * are shared with anything else written to the same stream.
+	 */
+	public static void writeOperations(CodecOutput out, IndexOperations ops) throws IOException {
+		out.writeSymbol(ops.getIndexName());
+		List<IndexOperation> operations = ops.getOperations();
+		out.writeVInt(operations.size());
+		for (IndexOperation op : operations) {
+			writeOperation(out, op);
+		}
+	}
+
+	/**
+	 * Reads operations written by
+	 * {@link #writeOperations(CodecOutput, IndexOperations)}
+	 */
+	public static IndexOperations readOperations(CodecInput in) throws IOException {
+		return readOperations(in, VERSION);
+	}
+
+	/**
+	 * Reads operations written with the specified encoding version
+	 */
+	public static IndexOperations readOperations(CodecInput in, byte version) throws IOException {
+		String indexName = in.readSymbol();
+		int count = in.readVInt();
+		IndexOperations ops = new IndexOperations(indexName);
+		for (int i = 0; i < count; i++) {
+			ops.addOperations(readOperation(in, version));
+		}
+		return ops;
+	}
+
+	private static void writeOperation(CodecOutput out, IndexOperation op) throws IOException {
+		OperationType type = op.getType();
+		out.writeByte(type.getCode());
+		switch (type) {
+		case ADD_DOCUMENT:
+			writeDocument(out, ((AddDocumentOperation) op).getDoc());
+			break;
+		case DELETE_DOCUMENTS_TERMS:
+			Term[] terms = ((DeleteDocumentsTermsOperation) op).getTerms();
+			out.writeVInt(terms.length);
+			for (Term term : terms) {
+				writeTerm(out, term);
+			}
+			break;
+		case DELETE_DOCUMENTS_QUERIES:
+			Query[] queries = ((DeleteDocumentsQueriesOperation) op).getQueries();
+			out.writeVInt(queries.length);
+			for (Query query : queries) {
+				writeQuery(out, query);
+			}
+			break;
+		case OPTIMIZE_INDEX:
+			out.writeVInt(((OptimizeIndexOperation) op).getMaxSegments());
+			break;
+		case EXPUNGE_DELETES:
+		case COMMIT:
+			break;
+		case UPDATE_DOCUMENT:
+			UpdateDocumentOperation update = (UpdateDocumentOperation) op;
+			writeTerm(out, update.getTerm());
+			writeDocument(out, update.getDoc());
+			break;
+		case SEGMENT_CHUNK:
+			SegmentChunkOperation chunk = (SegmentChunkOperation) op;
+			out.writeLong(chunk.getTransferId());
+			out.writeString(chunk.getFileName());
+			out.writeVLong(chunk.getOffset());
+			out.writeByteArray(chunk.getData(), 0, chunk.getData().length);
+			break;
+		case ADD_INDEXES:
+			AddIndexesOperation addIndexes = (AddIndexesOperation) op;
+			String[] fileNames = addIndexes.getFileNames();
+			out.writeLong(addIndexes.getTransferId());
+			out.writeVInt(fileNames.length);
+			for (int i = 0; i < fileNames.length; i++) {
+				out.writeString(fileNames[i]);
+				out.writeVLong(addIndexes.getFileLengths()[i]);
+			}
+			break;
+		}
+	}
+
+	private static IndexOperation readOperation(CodecInput in, byte version) throws IOException {
+		OperationType type;
+		try {
+			type = OperationType.fromCode(in.readByte());
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage());
+		}
+		switch (type) {
+		case ADD_DOCUMENT:
+			return new AddDocumentOperation(readDocument(in));
+		case DELETE_DOCUMENTS_TERMS:
+			Term[] terms = new Term[in.readCount(2)];
+			for (int i = 0; i < terms.length; i++) {
+				terms[i] = readTerm(in);
+			}
+			return new DeleteDocumentsTermsOperation(terms);
+		case DELETE_DOCUMENTS_QUERIES:
+			Query[] queries = new Query[in.readCount(1)];
+			for (int i = 0; i < queries.length; i++) {
+				queries[i] = readQuery(in);
+			}
+			return new DeleteDocumentsQueriesOperation(queries);
+		case OPTIMIZE_INDEX:
+			return new OptimizeIndexOperation(version >= 3 ? in.readVInt() : 1);
+		case EXPUNGE_DELETES:
+			return new ExpungeDeletesOperation();
+		case COMMIT:
+			return new CommitOperation();
+		case UPDATE_DOCUMENT:
+			Term term = readTerm(in);
+			return new UpdateDocumentOperation(term, readDocument(in));
+		case SEGMENT_CHUNK:
+			long chunkTransferId = in.readLong();
+			String fileName = in.readString();
+			long offset = in.readVLong();
+			return new SegmentChunkOperation(chunkTransferId, fileName, offset, in.readByteArray());
+		case ADD_INDEXES:
+			long transferId = in.readLong();
+			String[] fileNames = new String[in.readCount(2)];
+			long[] fileLengths = new long[fileNames.length];
+			for (int i = 0; i < fileNames.length; i++) {
+				fileNames[i] = in.readString();
+				fileLengths[i] = in.readVLong();
+			}
+			return new AddIndexesOperation(transferId, fileNames, fileLengths);
+		default:
+			throw new IOException("Unsupported operation type " + type);
+		}
+	}
+
+	public static void writeDocument(CodecOutput out, Document doc) throws IOException {
+		float boost = doc.getBoost();
+		if (boost != 1.0f) {
+			out.writeByte(HAS_BOOST);
+			out.writeFloat(boost);
+		} else {
+			out.writeByte(0);
+		}
+		List<Fieldable> fields = doc.getFields();
+		out.writeVInt(fields.size());
+		for (Fieldable field : fields) {
+			writeField(out, field);
+		}
+	}
+
+	public static Document readDocument(CodecInput in) throws IOException {
+		Document doc = new Document();
+		if ((in.readByte() & HAS_BOOST) != 0) {
+			doc.setBoost(in.readFloat());
+		}
+		int count = in.readVInt();
+		for (int i = 0; i < count; i++) {
+			doc.add(readField(in));
+		}
+		return doc;
+	}
+
+	private static void writeField(CodecOutput out, Fieldable field) throws IOException {
+		int kind;
+		if (field instanceof NumericField && ((NumericField) field).getNumericValue() != null) {
+			kind = FIELD_NUMERIC;
+		} else if (field instanceof Field && field.tokenStreamValue() instanceof PreAnalyzedTokenStream) {
+			kind = FIELD_PRE_ANALYZED;
+		} else if (field instanceof Field && field.isBinary()) {
+			kind = FIELD_BINARY;
+		} else if (field instanceof Field && field.stringValue() != null) {
+			kind = FIELD_STRING;
+		} else {
+			kind = FIELD_SERIALIZED;
+		}
+		float boost = field.getBoost();
+		out.writeByte(boost != 1.0f ? kind | HAS_BOOST : kind);
+		if (kind == FIELD_SERIALIZED) {
+			writeSerialized(out, field);
+			return;
+		}
+		out.writeSymbol(field.name());
+		out.writeByte(flags(field));
+		if (boost != 1.0f) {
+			out.writeFloat(boost);
+		}
+		switch (kind) {
+		case FIELD_STRING:
+			out.writeString(field.stringValue());
+			break;
+		case FIELD_BINARY:
+			out.writeByteArray(field.getBinaryValue(), field.getBinaryOffset(), field.getBinaryLength());
+			break;
+		case FIELD_PRE_ANALYZED:
+			if (field.isStored()) {
+				out.writeString(field.stringValue());
+			}
+			writeTokenStream(out, (PreAnalyzedTokenStream) field.tokenStreamValue());
+			break;
+		case FIELD_NUMERIC:
+			NumericField numeric = (NumericField) field;
+			Number value = numeric.getNumericValue();
+			out.writeVInt(precisionStep(numeric));
+			if (value instanceof Integer) {
+				out.writeByte(NUMERIC_INT);
+				out.writeInt(value.intValue());
+			} else if (value instanceof Long) {
+				out.writeByte(NUMERIC_LONG);
+				out.writeLong(value.longValue());
+			} else if (value instanceof Float) {
+				out.writeByte(NUMERIC_FLOAT);
+				out.writeFloat(value.floatValue());
+			} else {
+				out.writeByte(NUMERIC_DOUBLE);
+				out.writeDouble(value.doubleValue());
+			}
+			break;
+		}
+	}
+
+	private static Fieldable readField(CodecInput in) throws IOException {
+		int kind = in.readByte() & 0xFF;
+		if ((kind & FIELD_KIND_MASK) == FIELD_SERIALIZED) {
+			return (Fieldable) readSerialized(in);
+		}
+		String name = in.readSymbol();
+		int flags = in.readByte() & 0xFF;
+		float boost = (kind & HAS_BOOST) != 0 ? in.readFloat() : 1.0f;
+		Field.Store store = (flags & STORED) != 0 ? Field.Store.YES : Field.Store.NO;
+		Fieldable field;
+		switch (kind & FIELD_KIND_MASK) {
+		case FIELD_STRING:
+			field = new Field(name, false, in.readString(), store, index(flags), termVector(flags));
+			break;
+		case FIELD_BINARY:
+			field = new Field(name, in.readByteArray(), store);
+			break;
+		case FIELD_PRE_ANALYZED:
+			if ((flags & STORED) != 0) {
+				Field stored = new Field(name, false, in.readString(), store, index(flags), termVector(flags));
+				stored.setTokenStream(readTokenStream(in));
+				field = stored;
+			} else {
+				field = new Field(name, readTokenStream(in), termVector(flags));
+			}
+			break;
+		case FIELD_NUMERIC:
+			NumericField numeric = new NumericField(name, in.readVInt(), store, (flags & INDEXED) != 0);
+			switch (in.readByte()) {
+			case NUMERIC_INT:
+				numeric.setIntValue(in.readInt());
+				break;
+			case NUMERIC_LONG:
+				numeric.setLongValue(in.readLong());
+				break;
+			case NUMERIC_FLOAT:
+				numeric.setFloatValue(in.readFloat());
+				break;
+			default:
+				numeric.setDoubleValue(in.readDouble());
+				break;
+			}
+			field = numeric;
+			break;
+		default:
+			throw new IOException("Unsupported field kind " + kind);
+		}
+		field.setOmitNorms((flags & OMIT_NORMS) != 0);
+		field.setOmitTermFreqAndPositions((flags & OMIT_TF) != 0);
+		field.setBoost(boost);
+		return field;
+	}
+
+	/**
+	 * Terms and types are written as tokens, since they repeat within a
+	 * message, offsets as deltas from the previous token's start offset
+	 */
+	private static void writeTokenStream(CodecOutput out, PreAnalyzedTokenStream ts) {
+		int count = ts.getCount();
+		out.writeVInt(count);
+		int lastStart = 0;
+		for (int i = 0; i < count; i++) {
+			out.writeToken(ts.getTerm(i));
+			out.writeVInt(ts.getPositionIncrement(i));
+			out.writeVInt(ts.getStartOffset(i) - lastStart);
+			out.writeVInt(ts.getEndOffset(i) - ts.getStartOffset(i));
+			lastStart = ts.getStartOffset(i);
+			out.writeToken(ts.getType(i));
+			byte[] payload = ts.getPayload(i);
+			if (payload == null) {
+				out.writeVInt(0);
+			} else {
+				out.writeVInt(payload.length + 1);
+				out.writeBytes(payload, 0, payload.length);
+			}
+		}
+		out.writeVInt(ts.getFinalOffset());
+	}
+
+	private static PreAnalyzedTokenStream readTokenStream(CodecInput in) throws IOException {
+		// term, position increment, offsets, type and payload length
+		int count = in.readCount(6);
+		PreAnalyzedTokenStream ts = new PreAnalyzedTokenStream(count);
+		int lastStart = 0;
+		for (int i = 0; i < count; i++) {
+			String term = in.readToken();
+			int positionIncrement = in.readVInt();
+			int start = lastStart + in.readVInt();
+			int end = start + in.readVInt();
+			lastStart = start;
+			String type = in.readToken();
+			// The length is followed by payloadLength - 1 bytes and at least the final offset
+			int payloadLength = in.readCount(1);
+			byte[] payload = null;
+			if (payloadLength > 0) {
+				payload = new byte[payloadLength - 1];
+				in.readBytes(payload, 0, payload.length);
+			}
+			ts.addToken(term, positionIncrement, start, end, type, payload);
+		}
+		ts.setFinalOffset(in.readVInt());
+		return ts;
+	}
+
+	private static int precisionStep(NumericField field) {
+		if (PRECISION_STEP != null) {
+			try {
+				return PRECISION_STEP.getInt(field.tokenStreamValue());
+			} catch (Exception e) {
+				// Fall through
+			}
+		}
+		return NumericUtils.PRECISION_STEP_DEFAULT;
+	}
+
+	private static int flags(Fieldable field) {
+		int flags = 0;
+		if (field.isStored())
+			flags |= STORED;
+		if (field.isIndexed())
+			flags |= INDEXED;
+		if (field.isTokenized())
+			flags |= TOKENIZED;
+		if (field.isTermVectorStored())
+			flags |= TERM_VECTOR;
+		if (field.isStorePositionWithTermVector())
+			flags |= TERM_VECTOR_POSITIONS;
+		if (field.isStoreOffsetWithTermVector())
+			flags |= TERM_VECTOR_OFFSETS;
+		if (field.getOmitNorms())
+			flags |= OMIT_NORMS;
+		if (field.getOmitTermFreqAndPositions())
+			flags |= OMIT_TF;
+		return flags;
+	}
+
+	private static Field.Index index(int flags) {
+		if ((flags & INDEXED) == 0) {
+			return Field.Index.NO;
+		}
+		boolean omitNorms = (flags & OMIT_NORMS) != 0;
+		if ((flags & TOKENIZED) != 0) {
+			return omitNorms ? Field.Index.ANALYZED_NO_NORMS : Field.Index.ANALYZED;
+		} else {
+			return omitNorms ? Field.Index.NOT_ANALYZED_NO_NORMS : Field.Index.NOT_ANALYZED;
+		}
+	}
+
+	private static Field.TermVector termVector(int flags) {
+		if ((flags & TERM_VECTOR) == 0) {
+			return Field.TermVector.NO;
+		}
+		boolean positions = (flags & TERM_VECTOR_POSITIONS) != 0;
+		boolean offsets = (flags & TERM_VECTOR_OFFSETS) != 0;
+		if (positions && offsets) {
+			return Field.TermVector.WITH_POSITIONS_OFFSETS;
+		} else if (positions) {
+			return Field.TermVector.WITH_POSITIONS;
+		} else if (offsets) {
+			return Field.TermVector.WITH_OFFSETS;
+		} else {
+			return Field.TermVector.YES;
+		}
+	}
+
+	public static void writeTerm(CodecOutput out, Term term) {
+		out.writeSymbol(term.field());
+		out.writeString(term.text());
+	}
+
+	public static Term readTerm(CodecInput in) throws IOException {
+		return new Term(in.readSymbol(), in.readString());
+	}
+
+	private static void writeQuery(CodecOutput out, Query query) throws IOException {
+		if (query instanceof TermQuery) {
+			out.writeByte(QUERY_TERM);
+			writeTerm(out, ((TermQuery) query).getTerm());
+			out.writeFloat(query.getBoost());
+		} else {
+			out.writeByte(QUERY_SERIALIZED);
+			writeSerialized(out, query);
+		}
+	}
+
+	private static Query readQuery(CodecInput in) throws IOException {
+		switch (in.readByte()) {
+		case QUERY_TERM:
+			Query query = new TermQuery(readTerm(in));
+			query.setBoost(in.readFloat());
+			return query;
+		case QUERY_SERIALIZED:
+			return (Query) readSerialized(in);
+		default:
+			throw new IOException("Unsupported query kind");
+		}
+	}
+
+	private static void writeSerialized(CodecOutput out, Object o) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bytes);
+		oos.writeObject(o);
+		oos.close();
+		out.writeByteArray(bytes.toByteArray(), 0, bytes.size());
+	}
+
+	private static Object readSerialized(CodecInput in) throws IOException {
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(in.readByteArray()));
+		try {
+			return ois.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Cannot deserialize: " + e.getMessage());
+		} finally {
+			ois.close();
+		}
+	}
+}
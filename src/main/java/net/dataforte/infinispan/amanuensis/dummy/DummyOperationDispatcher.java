@@ -23,6 +23,7 @@ package net.dataforte.infinispan.amanuensis.dummy;
 
 import net.dataforte.commons.slf4j.LoggerFactory;
 import net.dataforte.infinispan.amanuensis.AmanuensisManager;
+import net.dataforte.infinispan.amanuensis.DispatchFuture;
 import net.dataforte.infinispan.amanuensis.IndexOperations;
 import net.dataforte.infinispan.amanuensis.IndexerException;
 import net.dataforte.infinispan.amanuensis.OperationDispatcher;
@@ -49,9 +50,14 @@ public class DummyOperationDispatcher implements OperationDispatcher {
 
 
 	@Override
-	public void dispatch(final IndexOperations ops) throws IndexerException {
+	public DispatchFuture dispatch(final IndexOperations ops) throws IndexerException {
 		if(log.isDebugEnabled()) {
 			log.debug("Discarding operations {}", ops);
 		}
+		return DispatchFuture.completed();
+	}
+
+	@Override
+	public void close() {
 	}
 }
@@ -0,0 +1,106 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.jmx;
+
+import java.util.List;
+
+import net.dataforte.infinispan.amanuensis.IndexOperation;
+import net.dataforte.infinispan.amanuensis.OperationType;
+
+/**
+ * The counters of the work done by the master on a single index, updated by
+ * the {@link net.dataforte.infinispan.amanuensis.ExecutorContext} and read by
+ * {@link IndexStatistics}
+ * 
+ * @author Tristan Tarrant
+ */
+public class IndexMetrics {
+	private final Meter[] operations = new Meter[OperationType.values().length];
+	private final Meter commits = new Meter();
+	private final LatencyHistogram commitLatency = new LatencyHistogram();
+	private final LatencyHistogram applyLatency = new LatencyHistogram();
+	private final StripedCounter retries = new StripedCounter();
+	private final StripedCounter rollbacks = new StripedCounter();
+
+	public IndexMetrics() {
+		for (int i = 0; i < operations.length; i++) {
+			operations[i] = new Meter();
+		}
+	}
+
+	/**
+	 * Records operations which have been applied to the writer, together with
+	 * the time it took
+	 */
+	public void applied(List<IndexOperation> ops, long nanos) {
+		int size = ops.size();
+		int start = 0;
+		// Count runs of the same type with one update each
+		while (start < size) {
+			OperationType type = ops.get(start).getType();
+			int end = start + 1;
+			while (end < size && ops.get(end).getType() == type) {
+				++end;
+			}
+			operations[type.ordinal()].mark(end - start);
+			start = end;
+		}
+		applyLatency.record(nanos);
+	}
+
+	public void committed(long nanos) {
+		commits.mark();
+		commitLatency.record(nanos);
+	}
+
+	public void retried() {
+		retries.increment();
+	}
+
+	public void rolledBack() {
+		rollbacks.increment();
+	}
+
+	public Meter getOperations(OperationType type) {
+		return operations[type.ordinal()];
+	}
+
+	public Meter getCommits() {
+		return commits;
+	}
+
+	public LatencyHistogram getCommitLatency() {
+		return commitLatency;
+	}
+
+	public LatencyHistogram getApplyLatency() {
+		return applyLatency;
+	}
+
+	public long getRetries() {
+		return retries.sum();
+	}
+
+	public long getRollbacks() {
+		return rollbacks.sum();
+	}
+}
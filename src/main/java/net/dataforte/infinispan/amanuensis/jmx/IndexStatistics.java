@@ -0,0 +1,255 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.jmx;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.dataforte.infinispan.amanuensis.AmanuensisIndexReader;
+import net.dataforte.infinispan.amanuensis.AmanuensisManager;
+import net.dataforte.infinispan.amanuensis.ExecutorContext;
+import net.dataforte.infinispan.amanuensis.OperationType;
+
+/**
+ * Exposes the {@link IndexMetrics} of an index, together with the state of its
+ * queue and of its reader. The context and the reader are looked up on every
+ * read, since they are only created when first needed and the mastership of
+ * the index may move between nodes.
+ * 
+ * @author Tristan Tarrant
+ */
+public class IndexStatistics implements IndexStatisticsMXBean {
+	private final AmanuensisManager manager;
+	private final String indexName;
+
+	public IndexStatistics(AmanuensisManager manager, String indexName) {
+		this.manager = manager;
+		this.indexName = indexName;
+	}
+
+	private ExecutorContext context() {
+		return manager.getLocalOperationDispatcher().findExecutorContext(indexName);
+	}
+
+	private IndexMetrics metrics() {
+		ExecutorContext context = context();
+		return context != null ? context.getMetrics() : null;
+	}
+
+	private AmanuensisIndexReader reader() {
+		return manager.findIndexReader(indexName);
+	}
+
+	@Override
+	public String getIndexName() {
+		return indexName;
+	}
+
+	@Override
+	public boolean isMaster() {
+		return manager.isMaster(indexName);
+	}
+
+	@Override
+	public int getQueueSize() {
+		ExecutorContext context = context();
+		return context != null ? context.getQueueSize() : 0;
+	}
+
+	@Override
+	public long getQueuedBytes() {
+		ExecutorContext context = context();
+		return context != null ? context.getQueuedBytes() : 0;
+	}
+
+	@Override
+	public long getMaxQueuedBytes() {
+		ExecutorContext context = context();
+		return context != null ? context.getMaxQueuedBytes() : 0;
+	}
+
+	@Override
+	public int getUncommittedOperations() {
+		ExecutorContext context = context();
+		return context != null ? context.getUncommittedOperationCount() : 0;
+	}
+
+	@Override
+	public long getOperationCount() {
+		IndexMetrics metrics = metrics();
+		long count = 0;
+		if (metrics != null) {
+			for (OperationType type : OperationType.values()) {
+				count += metrics.getOperations(type).getCount();
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public double getOperationRate() {
+		IndexMetrics metrics = metrics();
+		double rate = 0;
+		if (metrics != null) {
+			for (OperationType type : OperationType.values()) {
+				rate += metrics.getOperations(type).getRate();
+			}
+		}
+		return rate;
+	}
+
+	@Override
+	public Map<String, Long> getOperationCounts() {
+		IndexMetrics metrics = metrics();
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		for (OperationType type : OperationType.values()) {
+			counts.put(type.name(), metrics != null ? metrics.getOperations(type).getCount() : 0L);
+		}
+		return counts;
+	}
+
+	@Override
+	public Map<String, Double> getOperationRates() {
+		IndexMetrics metrics = metrics();
+		Map<String, Double> rates = new LinkedHashMap<String, Double>();
+		for (OperationType type : OperationType.values()) {
+			rates.put(type.name(), metrics != null ? metrics.getOperations(type).getRate() : 0.0);
+		}
+		return rates;
+	}
+
+	@Override
+	public long getBatchCount() {
+		IndexMetrics metrics = metrics();
+		return metrics != null ? metrics.getApplyLatency().getCount() : 0;
+	}
+
+	@Override
+	public double getApplyLatencyMean() {
+		IndexMetrics metrics = metrics();
+		return metrics != null ? metrics.getApplyLatency().getMean() : 0;
+	}
+
+	@Override
+	public double getApplyLatencyP99() {
+		IndexMetrics metrics = metrics();
+		return metrics != null ? metrics.getApplyLatency().getPercentile(0.99) : 0;
+	}
+
+	@Override
+	public long getCommitCount() {
+		IndexMetrics metrics = metrics();
+		return metrics != null ? metrics.getCommits().getCount() : 0;
+	}
+
+	@Override
+	public double getCommitRate() {
+		IndexMetrics metrics = metrics();
+		return metrics != null ? metrics.getCommits().getRate() : 0;
+	}
+
+	@Override
+	public double getCommitLatencyMean() {
+		IndexMetrics metrics = metrics();
+		return metrics != null ? metrics.getCommitLatency().getMean() : 0;
+	}
+
+	@Override
+	public double getCommitLatencyP50() {
+		return getCommitLatencyPercentile(0.5);
+	}
+
+	@Override
+	public double getCommitLatencyP99() {
+		return getCommitLatencyPercentile(0.99);
+	}
+
+	@Override
+	public double getCommitLatencyP999() {
+		return getCommitLatencyPercentile(0.999);
+	}
+
+	private double getCommitLatencyPercentile(double p) {
+		IndexMetrics metrics = metrics();
+		return metrics != null ? metrics.getCommitLatency().getPercentile(p) : 0;
+	}
+
+	@Override
+	public long[] getCommitLatencyHistogram() {
+		IndexMetrics metrics = metrics();
+		return metrics != null ? metrics.getCommitLatency().getBuckets() : new long[0];
+	}
+
+	@Override
+	public long getLastCommitTime() {
+		ExecutorContext context = context();
+		return context != null ? context.getLastCommitTime() : 0;
+	}
+
+	@Override
+	public long getRetryCount() {
+		IndexMetrics metrics = metrics();
+		return metrics != null ? metrics.getRetries() : 0;
+	}
+
+	@Override
+	public long getRollbackCount() {
+		IndexMetrics metrics = metrics();
+		return metrics != null ? metrics.getRollbacks() : 0;
+	}
+
+	@Override
+	public long getReaderReopenCount() {
+		AmanuensisIndexReader reader = reader();
+		return reader != null ? reader.getReopens().getCount() : 0;
+	}
+
+	@Override
+	public double getReaderReopenRate() {
+		AmanuensisIndexReader reader = reader();
+		return reader != null ? reader.getReopens().getRate() : 0;
+	}
+
+	@Override
+	public int getOpenReaders() {
+		AmanuensisIndexReader reader = reader();
+		return reader != null ? reader.getOpenReaderCount() : 0;
+	}
+
+	@Override
+	public int getReaderReferences() {
+		AmanuensisIndexReader reader = reader();
+		return reader != null ? reader.getReferenceCount() : 0;
+	}
+
+	@Override
+	public long getLastCommitVersion() {
+		AmanuensisIndexReader reader = reader();
+		return reader != null ? reader.getLastCommitVersion() : -1;
+	}
+
+	@Override
+	public long getReplicationLag() {
+		AmanuensisIndexReader reader = reader();
+		return reader != null ? reader.getReplicationLag() : -1;
+	}
+}
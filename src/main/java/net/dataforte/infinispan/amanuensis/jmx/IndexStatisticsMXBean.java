@@ -0,0 +1,91 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.jmx;
+
+import java.util.Map;
+
+/**
+ * The statistics of a single index, as seen by the local node. The queue,
+ * operation and commit figures are only meaningful on the master of the
+ * index; the reader figures on every node. Durations are in milliseconds.
+ * 
+ * @author Tristan Tarrant
+ */
+public interface IndexStatisticsMXBean {
+	String getIndexName();
+
+	boolean isMaster();
+
+	int getQueueSize();
+
+	long getQueuedBytes();
+
+	long getMaxQueuedBytes();
+
+	int getUncommittedOperations();
+
+	long getOperationCount();
+
+	double getOperationRate();
+
+	Map<String, Long> getOperationCounts();
+
+	Map<String, Double> getOperationRates();
+
+	long getBatchCount();
+
+	double getApplyLatencyMean();
+
+	double getApplyLatencyP99();
+
+	long getCommitCount();
+
+	double getCommitRate();
+
+	double getCommitLatencyMean();
+
+	double getCommitLatencyP50();
+
+	double getCommitLatencyP99();
+
+	double getCommitLatencyP999();
+
+	long[] getCommitLatencyHistogram();
+
+	long getLastCommitTime();
+
+	long getRetryCount();
+
+	long getRollbackCount();
+
+	long getReaderReopenCount();
+
+	double getReaderReopenRate();
+
+	int getOpenReaders();
+
+	int getReaderReferences();
+
+	long getLastCommitVersion();
+
+	long getReplicationLag();
+}
@@ -0,0 +1,112 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.jmx;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations, with one bucket per power of two
+ * nanoseconds. Percentiles are therefore approximate: they are reported as the
+ * upper bound of the bucket which contains them, which is at most twice the
+ * actual value.
+ * 
+ * @author Tristan Tarrant
+ */
+public class LatencyHistogram {
+	private static final int BUCKETS = 64;
+	private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+	// Bucket i holds the values in [2^(i-1), 2^i)
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final StripedCounter total = new StripedCounter();
+
+	/**
+	 * Records a duration
+	 * 
+	 * @param nanos
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos)));
+		total.add(nanos);
+	}
+
+	/**
+	 * Returns a copy of the counts of each bucket
+	 */
+	public long[] getBuckets() {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+		}
+		return counts;
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += buckets.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the mean duration in milliseconds
+	 */
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : total.sum() / NANOS_PER_MILLI / count;
+	}
+
+	/**
+	 * Returns the duration, in milliseconds, below which the given fraction of
+	 * the recorded durations fall
+	 * 
+	 * @param p
+	 *            between 0 and 1
+	 */
+	public double getPercentile(double p) {
+		long[] counts = getBuckets();
+		long count = 0;
+		for (long c : counts) {
+			count += c;
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(p * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return upperBound(i) / NANOS_PER_MILLI;
+			}
+		}
+		return upperBound(BUCKETS - 1) / NANOS_PER_MILLI;
+	}
+
+	private static long upperBound(int bucket) {
+		return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+	}
+}
@@ -0,0 +1,95 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+package net.dataforte.infinispan.amanuensis.jmx;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.dataforte.commons.slf4j.LoggerFactory;
+
+import org.slf4j.Logger;
+
+/**
+ * Keeps track of the MBeans registered with an {@link MBeanServer}, so that
+ * they can all be unregistered together. Each name is only registered once,
+ * so that concurrent attempts to register the same MBean, e.g. while the
+ * server is being set and an index is being added, do not conflict.
+ * 
+ * @author Tristan Tarrant
+ */
+public class MBeanRegistry {
+	private static final Logger log = LoggerFactory.make();
+	// Guarded by this
+	private MBeanServer server;
+	private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+	public synchronized MBeanServer getServer() {
+		return server;
+	}
+
+	/**
+	 * Unregisters all the MBeans from the current server, if any, and makes
+	 * the specified server, which may be null, the current one
+	 * 
+	 * @param server
+	 */
+	public synchronized void setServer(MBeanServer server) {
+		unregisterAll();
+		this.server = server;
+	}
+
+	/**
+	 * Registers the MBean with the current server, unless there is none or an
+	 * MBean has already been registered under the same name
+	 * 
+	 * @param mbean
+	 * @param name
+	 * @return true if the MBean has been registered
+	 * @throws JMException
+	 */
+	public synchronized boolean register(Object mbean, ObjectName name) throws JMException {
+		if (server == null || registered.contains(name)) {
+			return false;
+		}
+		server.registerMBean(mbean, name);
+		registered.add(name);
+		return true;
+	}
+
+	public synchronized boolean isRegistered(ObjectName name) {
+		return registered.contains(name);
+	}
+
+	public synchronized void unregisterAll() {
+		for (ObjectName name : registered) {
+			try {
+				server.unregisterMBean(name);
+			} catch (JMException e) {
+				log.warn("Could not unregister MBean " + name, e);
+			}
+		}
+		registered.clear();
+	}
+}
@@ -0,0 +1,171 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.jmx;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.dataforte.infinispan.amanuensis.AmanuensisManager;
+import net.dataforte.infinispan.amanuensis.backend.jgroups.JGroupsOperationDispatcher;
+import net.dataforte.infinispan.amanuensis.backend.lucene.LuceneOperationDispatcher;
+
+import org.infinispan.remoting.transport.Address;
+
+/**
+ * Exposes the statistics of an {@link AmanuensisManager} and of its
+ * dispatchers. The delivery figures are zero unless the remote dispatcher is
+ * a {@link JGroupsOperationDispatcher}.
+ * 
+ * @author Tristan Tarrant
+ */
+public class ManagerStatistics implements ManagerStatisticsMXBean {
+	private final AmanuensisManager manager;
+
+	public ManagerStatistics(AmanuensisManager manager) {
+		this.manager = manager;
+	}
+
+	private JGroupsOperationDispatcher remote() {
+		return manager.getRemoteOperationDispatcher() instanceof JGroupsOperationDispatcher ? (JGroupsOperationDispatcher) manager.getRemoteOperationDispatcher() : null;
+	}
+
+	private LuceneOperationDispatcher local() {
+		return manager.getLocalOperationDispatcher();
+	}
+
+	@Override
+	public String getLocalAddress() {
+		Address address = manager.getLocalAddress();
+		return address != null ? address.toString() : null;
+	}
+
+	@Override
+	public boolean isCoordinator() {
+		return manager.isMaster();
+	}
+
+	@Override
+	public int getMembers() {
+		List<Address> members = manager.getCacheManager().getMembers();
+		return members != null ? members.size() : 0;
+	}
+
+	@Override
+	public String[] getIndexNames() {
+		return manager.getIndexNames().toArray(new String[0]);
+	}
+
+	@Override
+	public String[] getMasterIndexNames() {
+		List<String> names = new ArrayList<String>();
+		for (String indexName : manager.getIndexNames()) {
+			if (manager.isMaster(indexName)) {
+				names.add(indexName);
+			}
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
+	@Override
+	public long getQueuedBytes() {
+		return local().getQueuedBytes();
+	}
+
+	@Override
+	public long getMaxQueuedBytes() {
+		return local().getMaxQueuedBytes();
+	}
+
+	@Override
+	public int getActiveWorkerThreads() {
+		return local().getActiveWorkerThreads();
+	}
+
+	@Override
+	public int getWorkerThreads() {
+		return local().getWorkerThreads();
+	}
+
+	@Override
+	public long getRefusedMessages() {
+		return local().getRefusedMessages();
+	}
+
+	@Override
+	public long getDuplicateMessages() {
+		return local().getDuplicateMessages();
+	}
+
+	@Override
+	public int getInFlightMessages() {
+		JGroupsOperationDispatcher remote = remote();
+		return remote != null ? remote.getInFlight() : 0;
+	}
+
+	@Override
+	public int getMaxInFlightMessages() {
+		JGroupsOperationDispatcher remote = remote();
+		return remote != null ? remote.getMaxInFlight() : 0;
+	}
+
+	@Override
+	public long getDeliveredMessages() {
+		JGroupsOperationDispatcher remote = remote();
+		return remote != null ? remote.getDelivered().getCount() : 0;
+	}
+
+	@Override
+	public double getDeliveryRate() {
+		JGroupsOperationDispatcher remote = remote();
+		return remote != null ? remote.getDelivered().getRate() : 0;
+	}
+
+	@Override
+	public double getDeliveryLatencyMean() {
+		JGroupsOperationDispatcher remote = remote();
+		return remote != null ? remote.getDeliveryLatency().getMean() : 0;
+	}
+
+	@Override
+	public double getDeliveryLatencyP99() {
+		JGroupsOperationDispatcher remote = remote();
+		return remote != null ? remote.getDeliveryLatency().getPercentile(0.99) : 0;
+	}
+
+	@Override
+	public long getRetriedMessages() {
+		JGroupsOperationDispatcher remote = remote();
+		return remote != null ? remote.getRetries() : 0;
+	}
+
+	@Override
+	public long getBusyRetriedMessages() {
+		JGroupsOperationDispatcher remote = remote();
+		return remote != null ? remote.getBusyRetries() : 0;
+	}
+
+	@Override
+	public long getFailedMessages() {
+		JGroupsOperationDispatcher remote = remote();
+		return remote != null ? remote.getFailures() : 0;
+	}
+}
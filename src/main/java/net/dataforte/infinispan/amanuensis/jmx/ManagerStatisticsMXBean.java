@@ -0,0 +1,74 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.jmx;
+
+/**
+ * The statistics of an {@link net.dataforte.infinispan.amanuensis.AmanuensisManager}:
+ * the cluster membership, the memory used by the queues of all of its indexes
+ * and the messages it has exchanged with the other nodes. The delivery figures
+ * refer to the messages sent to the masters of the indexes, the refused and
+ * duplicate figures to those received as master. Durations are in
+ * milliseconds.
+ * 
+ * @author Tristan Tarrant
+ */
+public interface ManagerStatisticsMXBean {
+	String getLocalAddress();
+
+	boolean isCoordinator();
+
+	int getMembers();
+
+	String[] getIndexNames();
+
+	String[] getMasterIndexNames();
+
+	long getQueuedBytes();
+
+	long getMaxQueuedBytes();
+
+	int getActiveWorkerThreads();
+
+	int getWorkerThreads();
+
+	long getRefusedMessages();
+
+	long getDuplicateMessages();
+
+	int getInFlightMessages();
+
+	int getMaxInFlightMessages();
+
+	long getDeliveredMessages();
+
+	double getDeliveryRate();
+
+	double getDeliveryLatencyMean();
+
+	double getDeliveryLatencyP99();
+
+	long getRetriedMessages();
+
+	long getBusyRetriedMessages();
+
+	long getFailedMessages();
+}
@@ -0,0 +1,84 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.jmx;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts events and reports their rate per second over the last completed
+ * window. Marking is as cheap as a {@link StripedCounter} increment; the rate
+ * is only computed when it is read.
+ * 
+ * @author Tristan Tarrant
+ */
+public class Meter {
+	public static final long DEFAULT_WINDOW = TimeUnit.SECONDS.toNanos(10);
+	private final StripedCounter count = new StripedCounter();
+	private final long window;
+	// Guarded by this
+	private long windowStart = System.nanoTime();
+	private long windowCount;
+	private double rate;
+
+	public Meter() {
+		this(DEFAULT_WINDOW);
+	}
+
+	/**
+	 * @param window
+	 *            the length of the window over which the rate is computed, in
+	 *            nanoseconds
+	 */
+	public Meter(long window) {
+		this.window = window;
+	}
+
+	public void mark() {
+		count.increment();
+	}
+
+	public void mark(long n) {
+		count.add(n);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the events per second in the last window or, until the first
+	 * window has elapsed, since the meter was created
+	 */
+	public synchronized double getRate() {
+		long now = System.nanoTime();
+		long elapsed = now - windowStart;
+		long current = count.sum();
+		if (elapsed >= window) {
+			rate = (current - windowCount) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+			windowStart = now;
+			windowCount = current;
+		} else if (windowCount == 0 && elapsed > 0) {
+			return current * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+		}
+		return rate;
+	}
+}
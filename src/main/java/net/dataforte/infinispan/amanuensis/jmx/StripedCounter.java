@@ -0,0 +1,75 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.jmx;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which is cheap to update from many threads: increments are spread
+ * over several cells, each on its own cache line, chosen by the updating
+ * thread, and are only summed when the counter is read.
+ * 
+ * @author Tristan Tarrant
+ */
+public class StripedCounter {
+	// Longs per cache line, so that each cell has one to itself
+	private static final int PADDING = 8;
+	private static final int MAX_STRIPES = 64;
+	private final AtomicLongArray cells;
+	private final int mask;
+
+	public StripedCounter() {
+		int stripes = 1;
+		int processors = Runtime.getRuntime().availableProcessors();
+		while (stripes < processors && stripes < MAX_STRIPES) {
+			stripes <<= 1;
+		}
+		this.mask = stripes - 1;
+		this.cells = new AtomicLongArray(stripes * PADDING);
+	}
+
+	private int cell() {
+		// Mix the id, as threads are usually created in sequence
+		long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+		return ((int) (id >>> 32) & mask) * PADDING;
+	}
+
+	public void increment() {
+		cells.incrementAndGet(cell());
+	}
+
+	public void add(long x) {
+		cells.addAndGet(cell(), x);
+	}
+
+	/**
+	 * Returns the current value. Updates which happen concurrently may or may
+	 * not be included.
+	 */
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < cells.length(); i += PADDING) {
+			sum += cells.get(i);
+		}
+		return sum;
+	}
+}
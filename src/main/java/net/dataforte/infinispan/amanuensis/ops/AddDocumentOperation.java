@@ -22,6 +22,7 @@
 package net.dataforte.infinispan.amanuensis.ops;
 
 import net.dataforte.infinispan.amanuensis.IndexOperation;
+import net.dataforte.infinispan.amanuensis.OperationType;
 
 import org.apache.lucene.document.Document;
 
@@ -39,4 +40,9 @@ public class AddDocumentOperation extends IndexOperation {
 	public void setDoc(Document doc) {
 		this.doc = doc;
 	}
+
+	@Override
+	public OperationType getType() {
+		return OperationType.ADD_DOCUMENT;
+	}
 }
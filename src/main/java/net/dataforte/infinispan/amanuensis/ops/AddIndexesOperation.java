@@ -0,0 +1,63 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.ops;
+
+import net.dataforte.infinispan.amanuensis.IndexOperation;
+import net.dataforte.infinispan.amanuensis.OperationType;
+
+/**
+ * Adds the index whose files have been shipped by the
+ * {@link SegmentChunkOperation}s of a transfer to the master's index
+ * 
+ * @author Tristan Tarrant
+ */
+public class AddIndexesOperation extends IndexOperation {
+	long transferId;
+	String[] fileNames;
+	long[] fileLengths;
+
+	public AddIndexesOperation(long transferId, String[] fileNames, long[] fileLengths) {
+		if (fileNames.length != fileLengths.length) {
+			throw new IllegalArgumentException("File names and lengths do not match");
+		}
+		this.transferId = transferId;
+		this.fileNames = fileNames;
+		this.fileLengths = fileLengths;
+	}
+
+	public long getTransferId() {
+		return transferId;
+	}
+
+	public String[] getFileNames() {
+		return fileNames;
+	}
+
+	public long[] getFileLengths() {
+		return fileLengths;
+	}
+
+	@Override
+	public OperationType getType() {
+		return OperationType.ADD_INDEXES;
+	}
+}
@@ -22,6 +22,7 @@
 package net.dataforte.infinispan.amanuensis.ops;
 
 import net.dataforte.infinispan.amanuensis.IndexOperation;
+import net.dataforte.infinispan.amanuensis.OperationType;
 
 import org.apache.lucene.search.Query;
 
@@ -40,4 +41,8 @@ public class DeleteDocumentsQueriesOperation extends IndexOperation {
 		this.queries = queries;
 	}
 
+	@Override
+	public OperationType getType() {
+		return OperationType.DELETE_DOCUMENTS_QUERIES;
+	}
 }
@@ -22,6 +22,7 @@
 package net.dataforte.infinispan.amanuensis.ops;
 
 import net.dataforte.infinispan.amanuensis.IndexOperation;
+import net.dataforte.infinispan.amanuensis.OperationType;
 
 import org.apache.lucene.index.Term;
 
@@ -40,4 +41,8 @@ public class DeleteDocumentsTermsOperation extends IndexOperation {
 		this.terms = terms;
 	}
 
+	@Override
+	public OperationType getType() {
+		return OperationType.DELETE_DOCUMENTS_TERMS;
+	}
 }
@@ -22,10 +22,36 @@
 package net.dataforte.infinispan.amanuensis.ops;
 
 import net.dataforte.infinispan.amanuensis.IndexOperation;
+import net.dataforte.infinispan.amanuensis.OperationType;
 
-
+/**
+ * Requests the merge of the index down to at most
+ * {@link #getMaxSegments()} segments. The merges run in the background, so the
+ * operations which follow are not held up, and the index is committed once
+ * they have completed.
+ * 
+ * @author Tristan Tarrant
+ */
 public class OptimizeIndexOperation extends IndexOperation {
+	int maxSegments;
+
 	public OptimizeIndexOperation() {
-		
+		this(1);
+	}
+
+	public OptimizeIndexOperation(int maxSegments) {
+		if (maxSegments < 1) {
+			throw new IllegalArgumentException("maxSegments must be at least 1");
+		}
+		this.maxSegments = maxSegments;
+	}
+
+	public int getMaxSegments() {
+		return maxSegments;
+	}
+
+	@Override
+	public OperationType getType() {
+		return OperationType.OPTIMIZE_INDEX;
 	}
 }
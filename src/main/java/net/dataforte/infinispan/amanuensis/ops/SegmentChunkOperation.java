@@ -0,0 +1,66 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.ops;
+
+import net.dataforte.infinispan.amanuensis.IndexOperation;
+import net.dataforte.infinispan.amanuensis.OperationType;
+
+/**
+ * A slice of an index file built on a slave, which the master stages until the
+ * matching {@link AddIndexesOperation} arrives
+ * 
+ * @author Tristan Tarrant
+ */
+public class SegmentChunkOperation extends IndexOperation {
+	long transferId;
+	String fileName;
+	long offset;
+	byte[] data;
+
+	public SegmentChunkOperation(long transferId, String fileName, long offset, byte[] data) {
+		this.transferId = transferId;
+		this.fileName = fileName;
+		this.offset = offset;
+		this.data = data;
+	}
+
+	public long getTransferId() {
+		return transferId;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	@Override
+	public OperationType getType() {
+		return OperationType.SEGMENT_CHUNK;
+	}
+}
@@ -0,0 +1,192 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.List;
+
+import net.dataforte.infinispan.amanuensis.backend.lucene.DirectoryOperationQueueExecutor;
+import net.dataforte.infinispan.amanuensis.backend.lucene.WriteAheadLog;
+import net.dataforte.infinispan.amanuensis.ops.AddDocumentOperation;
+import net.dataforte.infinispan.amanuensis.ops.CommitOperation;
+
+import org.apache.lucene.analysis.SimpleAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ExecutorContextTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	private RAMDirectory directory;
+	private ExecutorContext context;
+
+	@Before
+	public void setUp() {
+		directory = new RAMDirectory();
+		context = new ExecutorContext(null, directory, new SimpleAnalyzer(), null);
+	}
+
+	@After
+	public void tearDown() {
+		context.close();
+	}
+
+	private IndexOperations add(String id) {
+		Document document = new Document();
+		document.add(new Field("id", id, Field.Store.YES, Field.Index.NOT_ANALYZED));
+		return new IndexOperations(context.getIndexName(), new AddDocumentOperation(document));
+	}
+
+	private void apply(IndexOperations ops) throws Exception {
+		new DirectoryOperationQueueExecutor(context, ops).call();
+	}
+
+	/**
+	 * Drains and applies one batch, as the drainer does
+	 */
+	private void drain() throws Exception {
+		List<IndexOperations> batch = context.drainQueue();
+		try {
+			new DirectoryOperationQueueExecutor(context, batch).call();
+		} finally {
+			context.batchCompleted(batch);
+		}
+	}
+
+	private int committedDocs() throws Exception {
+		if (!IndexReader.indexExists(directory)) {
+			return 0;
+		}
+		IndexReader reader = IndexReader.open(directory, true);
+		try {
+			return reader.numDocs();
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void testDefaultPolicyCommitsEveryBatch() throws Exception {
+		apply(add("a"));
+		assertFalse(context.hasUncommittedOperations());
+		assertEquals(1, committedDocs());
+	}
+
+	@Test
+	public void testBatchDelay() throws Exception {
+		context.setMaxBatchSize(3);
+		assertEquals(0, context.getBatchDelay());
+		context.setMaxCommitDelay(60000);
+		assertEquals(0, context.getBatchDelay());
+		context.enqueue(add("a"));
+		long delay = context.getBatchDelay();
+		assertTrue(delay > 0 && delay <= 60000);
+		context.enqueue(add("b"));
+		assertTrue(context.getBatchDelay() > 0);
+		// a full batch does not wait
+		context.enqueue(add("c"));
+		assertEquals(0, context.getBatchDelay());
+		drain();
+		assertEquals(3, committedDocs());
+		assertEquals(0, context.getBatchDelay());
+	}
+
+	@Test
+	public void testCommitPolicy() throws Exception {
+		DefaultCommitPolicy policy = new DefaultCommitPolicy(60000, 3, 0);
+		context.setCommitPolicy(policy);
+		apply(add("a"));
+		apply(add("b"));
+		assertEquals(2, context.getUncommittedOperationCount());
+		assertFalse(context.isCommitDue());
+		assertEquals(0, committedDocs());
+		// The interval has elapsed
+		assertTrue(policy.isCommitDue(context, context.getLastCommitTime() + 60000));
+		apply(add("c"));
+		assertFalse(context.hasUncommittedOperations());
+		assertEquals(3, committedDocs());
+		// A commit barrier does not wait for the policy
+		apply(add("d"));
+		apply(new IndexOperations(context.getIndexName(), new CommitOperation()));
+		assertEquals(4, committedDocs());
+	}
+
+	@Test
+	public void testRolledBackOperationsAreCarried() throws Exception {
+		context.setCommitPolicy(new DefaultCommitPolicy(0, 100, 0));
+		apply(add("a"));
+		apply(add("b"));
+		context.rollback();
+		assertEquals(0, committedDocs());
+		// The next batch applies them again before its own
+		apply(add("c"));
+		assertEquals(0, committedDocs());
+		apply(new IndexOperations(context.getIndexName(), new CommitOperation()));
+		assertEquals(3, committedDocs());
+	}
+
+	@Test
+	public void testLogIsCheckpointedAfterCommit() throws Exception {
+		context.setCommitPolicy(new DefaultCommitPolicy(0, 2, 0));
+		WriteAheadLog log = new WriteAheadLog(new File(folder.getRoot(), "log"), 4096);
+		context.setWriteAheadLog(log);
+		context.enqueue(add("a"));
+		context.enqueue(add("b"));
+		drain();
+		// Applied but not committed: still needed to recover
+		assertEquals(0, log.getCheckpoint());
+		drain();
+		assertEquals(2, log.getCheckpoint());
+		assertEquals(2, committedDocs());
+		log.close();
+	}
+
+	@Test
+	public void testSnapshot() throws Exception {
+		IndexCommit commit = context.snapshot();
+		assertNotNull(commit);
+		try {
+			context.snapshot();
+			fail("Only one snapshot may be taken at a time");
+		} catch (IndexerException e) {
+			assertTrue(e.getMessage().contains("already in progress"));
+		}
+		context.releaseSnapshot();
+		context.releaseSnapshot();
+		assertNotNull(context.snapshot());
+		context.releaseSnapshot();
+	}
+}
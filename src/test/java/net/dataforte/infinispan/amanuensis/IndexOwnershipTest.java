@@ -0,0 +1,111 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.infinispan.remoting.transport.Address;
+import org.infinispan.remoting.transport.jgroups.JGroupsAddress;
+import org.jgroups.util.UUID;
+import org.junit.Test;
+
+public class IndexOwnershipTest {
+
+	private static List<Address> members(int n) {
+		List<Address> members = new ArrayList<Address>();
+		for (int i = 0; i < n; i++) {
+			members.add(new JGroupsAddress(UUID.randomUUID()));
+		}
+		return members;
+	}
+
+	@Test
+	public void testCoordinatorOwnsEverything() {
+		IndexOwnership ownership = new IndexOwnership();
+		List<Address> members = members(3);
+		for (int i = 0; i < 10; i++) {
+			assertEquals(members.get(0), ownership.ownerOf("index" + i, members));
+		}
+		assertNull(ownership.ownerOf("index", new ArrayList<Address>()));
+	}
+
+	@Test
+	public void testDistributedOwnershipOnlyMovesLostIndexes() {
+		IndexOwnership ownership = new IndexOwnership();
+		ownership.setDistributed(true);
+		List<Address> members = members(4);
+		List<Address> reordered = new ArrayList<Address>(members);
+		Collections.reverse(reordered);
+		Address leaving = members.get(2);
+		List<Address> remaining = new ArrayList<Address>(members);
+		remaining.remove(leaving);
+		int owned = 0;
+		for (int i = 0; i < 100; i++) {
+			String indexName = "index" + i;
+			Address owner = ownership.ownerOf(indexName, members);
+			// every node agrees, whatever the order of the view
+			assertEquals(owner, ownership.ownerOf(indexName, reordered));
+			if (owner.equals(leaving)) {
+				++owned;
+				assertTrue(remaining.contains(ownership.ownerOf(indexName, remaining)));
+			} else {
+				assertEquals(owner, ownership.ownerOf(indexName, remaining));
+			}
+		}
+		assertTrue(owned > 0 && owned < 100);
+	}
+
+	@Test
+	public void testHandoffPendingWhilePreviousOwnerIsMember() {
+		IndexOwnership ownership = new IndexOwnership();
+		ownership.setDistributed(true);
+		List<Address> members = members(2);
+		Address previous = members.get(0);
+		assertFalse(ownership.isHandoffPending("index", members));
+		ownership.handedOver("index", previous);
+		assertTrue(ownership.isHandoffPending("index", members));
+		assertEquals(previous, ownership.getPreviousOwner("index"));
+		ownership.handoffCompleted("index");
+		assertFalse(ownership.isHandoffPending("index", members));
+	}
+
+	@Test
+	public void testHandoffCompletesWhenPreviousOwnerLeaves() {
+		IndexOwnership ownership = new IndexOwnership();
+		ownership.setDistributed(true);
+		List<Address> members = members(2);
+		Address previous = members.get(0);
+		ownership.handedOver("index", previous);
+		assertFalse(ownership.isHandoffPending("index", Arrays.asList(members.get(1))));
+		// a former owner which comes back no longer holds the lock
+		assertFalse(ownership.isHandoffPending("index", members));
+		assertNull(ownership.getPreviousOwner("index"));
+	}
+}
@@ -0,0 +1,109 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+package net.dataforte.infinispan.amanuensis.backend.lucene;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class DeduplicationWindowTest {
+
+	@Test
+	public void testDuplicates() {
+		DeduplicationWindow window = new DeduplicationWindow(100);
+		assertTrue(window.accept(1));
+		assertTrue(window.accept(3));
+		assertFalse(window.accept(1));
+		assertFalse(window.accept(3));
+		// out of order within the window
+		assertTrue(window.accept(2));
+		assertFalse(window.accept(2));
+	}
+
+	@Test
+	public void testSlidingWindow() {
+		DeduplicationWindow window = new DeduplicationWindow(128);
+		for (long i = 1; i <= 1000; i++) {
+			assertTrue(window.accept(i));
+		}
+		assertFalse(window.accept(999));
+		// older than the window
+		assertFalse(window.accept(1000 - window.getSize()));
+		// a gap clears the skipped slots
+		assertTrue(window.accept(1100));
+		assertTrue(window.accept(1050));
+		// a jump larger than the window clears everything
+		assertTrue(window.accept(5000));
+		assertTrue(window.accept(4999));
+	}
+
+	@Test
+	public void testForget() {
+		DeduplicationWindow window = new DeduplicationWindow(64);
+		assertTrue(window.accept(10));
+		window.forget(10);
+		assertTrue(window.accept(10));
+	}
+
+	@Test
+	public void testRefuse() {
+		DeduplicationWindow window = new DeduplicationWindow(64);
+		for (long i = 1; i <= 3; i++) {
+			assertTrue(window.accept(i));
+		}
+		window.queued("a", 1);
+		window.refuse("a", 2, 0);
+		assertTrue(window.isHeldBack("a", 3, 0));
+		window.refuse("a", 3, 0);
+		assertFalse(window.isHeldBack("a", 1, 0));
+		// the retry of 3 must wait for 2
+		assertTrue(window.accept(3));
+		assertTrue(window.isHeldBack("a", 3, 0));
+		window.refuse("a", 3, 0);
+		assertTrue(window.accept(2));
+		assertFalse(window.isHeldBack("a", 2, 0));
+		window.queued("a", 2);
+		assertTrue(window.accept(3));
+		assertFalse(window.isHeldBack("a", 3, 0));
+		window.queued("a", 3);
+		assertFalse(window.isHeldBack("a", 4, 0));
+	}
+
+	@Test
+	public void testRefusalOnlyHoldsBackSameIndex() {
+		DeduplicationWindow window = new DeduplicationWindow(64);
+		window.refuse("a", 1, 0);
+		assertTrue(window.isHeldBack("a", 2, 0));
+		assertFalse(window.isHeldBack("b", 2, 0));
+	}
+
+	@Test
+	public void testRefusalExpires() {
+		DeduplicationWindow window = new DeduplicationWindow(64);
+		window.setRefusalExpiry(1000);
+		window.refuse("a", 1, 0);
+		assertTrue(window.isHeldBack("a", 2, 999));
+		// the source has given up on 1, or sent it elsewhere
+		assertFalse(window.isHeldBack("a", 2, 1000));
+		assertFalse(window.isHeldBack("a", 3, 1000));
+	}
+}
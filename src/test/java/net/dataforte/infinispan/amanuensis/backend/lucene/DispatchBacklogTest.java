@@ -0,0 +1,129 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+package net.dataforte.infinispan.amanuensis.backend.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.dataforte.infinispan.amanuensis.DispatchFuture;
+import net.dataforte.infinispan.amanuensis.ExecutorContext;
+import net.dataforte.infinispan.amanuensis.IndexBusyException;
+import net.dataforte.infinispan.amanuensis.IndexOperations;
+import net.dataforte.infinispan.amanuensis.ops.AddDocumentOperation;
+
+import org.apache.lucene.analysis.SimpleAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DispatchBacklogTest {
+	private ExecutorService executor;
+	private ScheduledExecutorService scheduler;
+	private RAMDirectory directory;
+	private ExecutorContext context;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newSingleThreadExecutor();
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		directory = new RAMDirectory();
+		context = new ExecutorContext(null, directory, new SimpleAnalyzer(), executor);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+		scheduler.shutdownNow();
+		context.close();
+	}
+
+	private IndexOperations add(int id) {
+		Document document = new Document();
+		document.add(new Field("id", Integer.toString(id), Field.Store.YES, Field.Index.NOT_ANALYZED));
+		return new IndexOperations(context.getIndexName(), new AddDocumentOperation(document));
+	}
+
+	@Test
+	public void testBacklogIsBounded() throws Exception {
+		// Nothing is drained until the gate opens
+		final CountDownLatch gate = new CountDownLatch(1);
+		executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				gate.await();
+				return null;
+			}
+		});
+		context.setMaxQueuedBytes(2000);
+		DispatchBacklog backlog = new DispatchBacklog(new LuceneOperationDispatcher(null), context, scheduler);
+		List<DispatchFuture> futures = new ArrayList<DispatchFuture>();
+		int dispatched = 0;
+		try {
+			while (true) {
+				futures.add(backlog.dispatch(add(dispatched)));
+				dispatched++;
+				assertTrue("The backlog is not bounded", dispatched < 1000);
+			}
+		} catch (IndexBusyException e) {
+			// expected
+		}
+		assertTrue(backlog.size() > 0);
+		assertTrue(backlog.getBytes() <= context.getMaxQueuedBytes());
+
+		// Once the queue is drained, the backlog is queued in turn
+		gate.countDown();
+		for (DispatchFuture future : futures) {
+			future.get(10, TimeUnit.SECONDS);
+		}
+		assertEquals(0, backlog.size());
+		assertEquals(0, backlog.getBytes());
+		long deadline = System.currentTimeMillis() + 10000;
+		while (committedDocs() < dispatched && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(dispatched, committedDocs());
+	}
+
+	private int committedDocs() throws Exception {
+		if (!IndexReader.indexExists(directory)) {
+			return 0;
+		}
+		IndexReader reader = IndexReader.open(directory, true);
+		try {
+			return reader.numDocs();
+		} finally {
+			reader.close();
+		}
+	}
+}
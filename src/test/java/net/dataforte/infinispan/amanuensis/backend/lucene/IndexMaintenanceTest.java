@@ -0,0 +1,168 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.backend.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.dataforte.infinispan.amanuensis.ExecutorContext;
+import net.dataforte.infinispan.amanuensis.IndexOperation;
+import net.dataforte.infinispan.amanuensis.IndexOperations;
+import net.dataforte.infinispan.amanuensis.OperationType;
+import net.dataforte.infinispan.amanuensis.ops.AddDocumentOperation;
+import net.dataforte.infinispan.amanuensis.ops.CommitOperation;
+import net.dataforte.infinispan.amanuensis.ops.DeleteDocumentsTermsOperation;
+import net.dataforte.infinispan.amanuensis.ops.OptimizeIndexOperation;
+
+import org.apache.lucene.analysis.SimpleAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IndexMaintenanceTest {
+	private RAMDirectory directory;
+	private ExecutorContext context;
+	private ExecutorService mergeWaiters;
+
+	@Before
+	public void setUp() {
+		directory = new RAMDirectory();
+		context = new ExecutorContext(null, directory, new SimpleAnalyzer(), null);
+		mergeWaiters = Executors.newCachedThreadPool();
+		context.setMergeWaiterExecutor(mergeWaiters);
+	}
+
+	@After
+	public void tearDown() {
+		context.close();
+		mergeWaiters.shutdownNow();
+	}
+
+	private static AddDocumentOperation add(String id) {
+		Document document = new Document();
+		document.add(new Field("id", id, Field.Store.YES, Field.Index.NOT_ANALYZED));
+		return new AddDocumentOperation(document);
+	}
+
+	private void apply(IndexOperation... ops) throws Exception {
+		new DirectoryOperationQueueExecutor(context, new IndexOperations(context.getIndexName(), ops)).call();
+	}
+
+	/**
+	 * Commits one segment per document
+	 */
+	private void addSegments(int count) throws Exception {
+		for (int i = 0; i < count; i++) {
+			apply(add(Integer.toString(i)), new CommitOperation());
+		}
+	}
+
+	private int segmentCount() throws Exception {
+		SegmentInfos segments = new SegmentInfos();
+		segments.read(directory);
+		return segments.size();
+	}
+
+	@Test
+	public void testClosedWriterIsNotChecked() throws Exception {
+		addSegments(3);
+		context.close();
+		IndexMaintenance maintenance = new IndexMaintenance();
+		maintenance.setMaxSegmentCount(2);
+		assertNull(maintenance.check(context, System.currentTimeMillis()));
+	}
+
+	@Test
+	public void testExpungeDeletes() throws Exception {
+		addSegments(4);
+		apply(new DeleteDocumentsTermsOperation(new Term("id", "0")), new DeleteDocumentsTermsOperation(new Term("id", "1")), new CommitOperation());
+		IndexMaintenance maintenance = new IndexMaintenance();
+		maintenance.setMaxDeletedRatio(0.6);
+		assertNull(maintenance.check(context, System.currentTimeMillis()));
+		maintenance.setMaxDeletedRatio(0.5);
+		assertEquals(OperationType.EXPUNGE_DELETES, maintenance.check(context, System.currentTimeMillis()).getType());
+	}
+
+	@Test
+	public void testTooManySegments() throws Exception {
+		addSegments(4);
+		IndexMaintenance maintenance = new IndexMaintenance();
+		maintenance.setMaxSegmentCount(4);
+		assertNull(maintenance.check(context, System.currentTimeMillis()));
+		maintenance.setMaxSegmentCount(3);
+		maintenance.setTargetSegmentCount(2);
+		IndexOperation op = maintenance.check(context, System.currentTimeMillis());
+		assertEquals(OperationType.OPTIMIZE_INDEX, op.getType());
+		assertEquals(2, ((OptimizeIndexOperation) op).getMaxSegments());
+	}
+
+	@Test
+	public void testQuietPeriod() throws Exception {
+		addSegments(2);
+		IndexMaintenance maintenance = new IndexMaintenance();
+		maintenance.setQuietPeriod(60000);
+		long now = System.currentTimeMillis();
+		assertNull(maintenance.check(context, now));
+		IndexOperation op = maintenance.check(context, now + 60000);
+		assertEquals(OperationType.OPTIMIZE_INDEX, op.getType());
+		assertEquals(1, ((OptimizeIndexOperation) op).getMaxSegments());
+	}
+
+	@Test
+	public void testMinInterval() throws Exception {
+		addSegments(3);
+		IndexMaintenance maintenance = new IndexMaintenance();
+		maintenance.setMaxSegmentCount(2);
+		maintenance.setMinInterval(1000);
+		maintenance.requested(context.getIndexName(), 0);
+		assertNull(maintenance.check(context, 999));
+		assertEquals(OperationType.OPTIMIZE_INDEX, maintenance.check(context, 1000).getType());
+	}
+
+	@Test
+	public void testBackgroundMergesAreCommitted() throws Exception {
+		addSegments(3);
+		assertEquals(3, segmentCount());
+		apply(new OptimizeIndexOperation(1));
+		// The optimize itself was committed before its merges completed
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!context.hasCompletedMerges() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(context.hasCompletedMerges());
+		assertTrue(context.isCommitDue());
+		// What the drainer does when the commit check finds the commit due
+		apply();
+		assertFalse(context.isCommitDue());
+		assertEquals(1, segmentCount());
+	}
+}
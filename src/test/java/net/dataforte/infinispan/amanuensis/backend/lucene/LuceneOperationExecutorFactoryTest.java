@@ -0,0 +1,133 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.backend.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.dataforte.infinispan.amanuensis.IndexOperation;
+import net.dataforte.infinispan.amanuensis.MemoryDeadLetterStore;
+import net.dataforte.infinispan.amanuensis.ops.AddDocumentOperation;
+import net.dataforte.infinispan.amanuensis.ops.DeleteDocumentsTermsOperation;
+
+import org.apache.lucene.analysis.SimpleAnalyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.RAMDirectory;
+import org.infinispan.CacheException;
+import org.junit.Test;
+
+public class LuceneOperationExecutorFactoryTest {
+
+	private static AddDocumentOperation add(String id) {
+		Document document = new Document();
+		document.add(new Field("id", id, Field.Store.YES, Field.Index.NOT_ANALYZED));
+		return new AddDocumentOperation(document);
+	}
+
+	/**
+	 * A document whose analysis fails with the specified exception
+	 */
+	private static AddDocumentOperation failing(final RuntimeException e) {
+		Document document = new Document();
+		document.add(new Field("body", new TokenStream() {
+			@Override
+			public boolean incrementToken() {
+				throw e;
+			}
+		}));
+		return new AddDocumentOperation(document);
+	}
+
+	private static int count(RAMDirectory directory, String id) throws Exception {
+		IndexReader reader = IndexReader.open(directory, true);
+		try {
+			// unlike docFreq, skips the deleted documents
+			TermDocs docs = reader.termDocs(new Term("id", id));
+			int count = 0;
+			while (docs.next()) {
+				++count;
+			}
+			return count;
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void testPoisonDocumentIsDeadLettered() throws Exception {
+		RAMDirectory directory = new RAMDirectory();
+		IndexWriter writer = new IndexWriter(directory, new SimpleAnalyzer(), IndexWriter.MaxFieldLength.UNLIMITED);
+		MemoryDeadLetterStore deadLetters = new MemoryDeadLetterStore();
+		IndexOperation poison = failing(new IllegalArgumentException("bad document"));
+		List<IndexOperation> ops = new ArrayList<IndexOperation>();
+		ops.add(add("a"));
+		ops.add(poison);
+		ops.add(add("b"));
+		ops.add(new DeleteDocumentsTermsOperation(new Term("id", "a")));
+		ops.add(add("c"));
+		new LuceneOperationExecutorFactory().apply(writer, ops, "test", deadLetters);
+		writer.close();
+		// the rest of the run and the following runs are applied
+		assertEquals(1, deadLetters.getCount());
+		assertSame(poison, deadLetters.getEntries().get(0).getOperation());
+		assertEquals(0, count(directory, "a"));
+		assertEquals(1, count(directory, "b"));
+		assertEquals(1, count(directory, "c"));
+	}
+
+	@Test
+	public void testStorageFailuresPropagate() throws Exception {
+		assertPropagated(new CacheException("Replication timeout"));
+		assertPropagated(new RuntimeException(new java.io.IOException("Disk full")));
+		assertPropagated(new AlreadyClosedException("closed"));
+	}
+
+	private static void assertPropagated(RuntimeException failure) throws Exception {
+		RAMDirectory directory = new RAMDirectory();
+		IndexWriter writer = new IndexWriter(directory, new SimpleAnalyzer(), IndexWriter.MaxFieldLength.UNLIMITED);
+		MemoryDeadLetterStore deadLetters = new MemoryDeadLetterStore();
+		List<IndexOperation> ops = new ArrayList<IndexOperation>();
+		ops.add(add("a"));
+		ops.add(failing(failure));
+		ops.add(add("b"));
+		try {
+			new LuceneOperationExecutorFactory().apply(writer, ops, "test", deadLetters);
+			fail(failure + " should have been propagated");
+		} catch (RuntimeException e) {
+			assertSame(failure, e);
+		} finally {
+			writer.close();
+		}
+		assertEquals(0, deadLetters.getCount());
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.backend.lucene;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.dataforte.infinispan.amanuensis.IndexOperation;
+import net.dataforte.infinispan.amanuensis.MemoryDeadLetterStore;
+import net.dataforte.infinispan.amanuensis.ops.AddDocumentOperation;
+import net.dataforte.infinispan.amanuensis.ops.DeleteDocumentsQueriesOperation;
+import net.dataforte.infinispan.amanuensis.ops.DeleteDocumentsTermsOperation;
+import net.dataforte.infinispan.amanuensis.ops.UpdateDocumentOperation;
+
+import org.apache.lucene.analysis.SimpleAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PartitionedOperationApplierTest {
+	private static final int KEYS = 50;
+	private static final int GROUPS = 5;
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newFixedThreadPool(3);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	private static Document document(String id, int group, int version) {
+		Document document = new Document();
+		document.add(new Field("id", id, Field.Store.YES, Field.Index.NOT_ANALYZED));
+		document.add(new Field("group", Integer.toString(group), Field.Store.NO, Field.Index.NOT_ANALYZED));
+		document.add(new Field("version", Integer.toString(version), Field.Store.YES, Field.Index.NO));
+		return document;
+	}
+
+	/**
+	 * Mostly adds, updates and deletes by key, with the occasional operation
+	 * which spans several keys
+	 */
+	private static List<IndexOperation> randomOperations(Random random, int count) {
+		List<IndexOperation> ops = new ArrayList<IndexOperation>(count);
+		for (int i = 0; i < count; i++) {
+			String id = Integer.toString(random.nextInt(KEYS));
+			int group = random.nextInt(GROUPS);
+			int dice = random.nextInt(100);
+			if (dice < 40) {
+				ops.add(new AddDocumentOperation(document(id, group, i)));
+			} else if (dice < 75) {
+				ops.add(new UpdateDocumentOperation(new Term("id", id), document(id, group, i)));
+			} else if (dice < 95) {
+				ops.add(new DeleteDocumentsTermsOperation(new Term("id", id)));
+			} else if (dice < 98) {
+				ops.add(new DeleteDocumentsTermsOperation(new Term("group", Integer.toString(group))));
+			} else {
+				ops.add(new DeleteDocumentsQueriesOperation(new TermQuery(new Term("group", Integer.toString(group)))));
+			}
+		}
+		return ops;
+	}
+
+	/**
+	 * Returns the versions of the live documents of each key, which do not
+	 * depend on the order in which the documents were numbered
+	 */
+	private static Map<String, TreeSet<String>> contents(RAMDirectory directory) throws Exception {
+		Map<String, TreeSet<String>> contents = new TreeMap<String, TreeSet<String>>();
+		IndexReader reader = IndexReader.open(directory, true);
+		try {
+			for (int doc = 0; doc < reader.maxDoc(); doc++) {
+				if (reader.isDeleted(doc)) {
+					continue;
+				}
+				Document document = reader.document(doc);
+				TreeSet<String> versions = contents.get(document.get("id"));
+				if (versions == null) {
+					versions = new TreeSet<String>();
+					contents.put(document.get("id"), versions);
+				}
+				versions.add(document.get("version"));
+			}
+		} finally {
+			reader.close();
+		}
+		return contents;
+	}
+
+	private static RAMDirectory applySerially(List<IndexOperation> ops) throws Exception {
+		RAMDirectory directory = new RAMDirectory();
+		IndexWriter writer = new IndexWriter(directory, new SimpleAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+		new LuceneOperationExecutorFactory().apply(writer, ops, "test", new MemoryDeadLetterStore());
+		writer.close();
+		return directory;
+	}
+
+	private RAMDirectory applyPartitioned(List<IndexOperation> ops, int partitions) throws Exception {
+		RAMDirectory directory = new RAMDirectory();
+		IndexWriter writer = new IndexWriter(directory, new SimpleAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+		new PartitionedOperationApplier(new LuceneOperationExecutorFactory(), executor, "id", partitions).apply(writer, ops, "test", new MemoryDeadLetterStore());
+		writer.close();
+		return directory;
+	}
+
+	@Test
+	public void testEquivalentToSerialApplication() throws Exception {
+		long seed = System.nanoTime();
+		Random random = new Random(seed);
+		for (int round = 0; round < 20; round++) {
+			List<IndexOperation> ops = randomOperations(random, 100 + random.nextInt(400));
+			int partitions = 2 + random.nextInt(3);
+			Map<String, TreeSet<String>> expected = contents(applySerially(ops));
+			assertEquals("seed " + seed + ", round " + round, expected, contents(applyPartitioned(ops, partitions)));
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.backend.lucene;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.dataforte.infinispan.amanuensis.IndexOperation;
+import net.dataforte.infinispan.amanuensis.MemoryDeadLetterStore;
+import net.dataforte.infinispan.amanuensis.ops.AddIndexesOperation;
+import net.dataforte.infinispan.amanuensis.ops.SegmentChunkOperation;
+
+import org.apache.lucene.analysis.SimpleAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Test;
+
+public class SegmentStagingTest {
+	private static final int CHUNK_SIZE = 100;
+
+	private static byte[] bytes(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) i;
+		}
+		return data;
+	}
+
+	private static byte[] slice(byte[] data, int offset) {
+		byte[] chunk = new byte[Math.min(CHUNK_SIZE, data.length - offset)];
+		System.arraycopy(data, offset, chunk, 0, chunk.length);
+		return chunk;
+	}
+
+	private static byte[] read(Directory dir, String name) throws IOException {
+		IndexInput in = dir.openInput(name);
+		try {
+			byte[] data = new byte[(int) in.length()];
+			in.readBytes(data, 0, data.length);
+			return data;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Splits the files of the latest commit of the directory into chunks,
+	 * followed by the operation which adds them
+	 */
+	private static List<IndexOperation> ship(Directory dir, long transferId) throws IOException {
+		List<IndexOperation> ops = new ArrayList<IndexOperation>();
+		String[] names = IndexReader.listCommits(dir).iterator().next().getFileNames().toArray(new String[0]);
+		long[] lengths = new long[names.length];
+		for (int i = 0; i < names.length; i++) {
+			byte[] data = read(dir, names[i]);
+			lengths[i] = data.length;
+			for (int offset = 0; offset < data.length; offset += CHUNK_SIZE) {
+				ops.add(new SegmentChunkOperation(transferId, names[i], offset, slice(data, offset)));
+			}
+		}
+		ops.add(new AddIndexesOperation(transferId, names, lengths));
+		return ops;
+	}
+
+	@Test
+	public void testChunksInAnyOrder() throws Exception {
+		byte[] data = bytes(450);
+		List<SegmentChunkOperation> chunks = new ArrayList<SegmentChunkOperation>();
+		for (int offset = 0; offset < data.length; offset += CHUNK_SIZE) {
+			chunks.add(new SegmentChunkOperation(1, "_0.cfs", offset, slice(data, offset)));
+		}
+		Collections.reverse(chunks);
+		// and a chunk received twice
+		chunks.add(chunks.get(2));
+		SegmentStaging staging = new SegmentStaging();
+		for (SegmentChunkOperation chunk : chunks) {
+			staging.stage(chunk);
+		}
+		AddIndexesOperation add = new AddIndexesOperation(1, new String[] { "_0.cfs", "empty" }, new long[] { data.length, 0 });
+		Directory dir = staging.assemble(add);
+		assertArrayEquals(data, read(dir, "_0.cfs"));
+		assertEquals(0, dir.fileLength("empty"));
+		// Applied again after a rollback
+		staging.stage(chunks.get(0));
+		assertSame(dir, staging.assemble(add));
+		assertEquals(1, staging.size());
+		staging.committed();
+		assertEquals(1, staging.size());
+		staging.added(1);
+		staging.committed();
+		assertEquals(0, staging.size());
+	}
+
+	@Test
+	public void testMissingChunk() throws Exception {
+		SegmentStaging staging = new SegmentStaging();
+		byte[] data = bytes(250);
+		staging.stage(new SegmentChunkOperation(1, "_0.cfs", 0, slice(data, 0)));
+		staging.stage(new SegmentChunkOperation(1, "_0.cfs", 200, slice(data, 200)));
+		try {
+			staging.assemble(new AddIndexesOperation(1, new String[] { "_0.cfs" }, new long[] { data.length }));
+			fail("The chunk at offset 100 is missing");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("offset 100"));
+		}
+	}
+
+	@Test
+	public void testAddIndexes() throws Exception {
+		RAMDirectory local = new RAMDirectory();
+		IndexWriter w = new IndexWriter(local, new SimpleAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+		for (int i = 0; i < 10; i++) {
+			Document document = new Document();
+			document.add(new Field("id", Integer.toString(i), Field.Store.YES, Field.Index.NOT_ANALYZED));
+			w.addDocument(document);
+		}
+		w.close();
+		RAMDirectory directory = new RAMDirectory();
+		IndexWriter writer = new IndexWriter(directory, new SimpleAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+		LuceneOperationExecutorFactory factory = new LuceneOperationExecutorFactory();
+		factory.apply(writer, ship(local, 1), "test", new MemoryDeadLetterStore());
+		writer.commit();
+		factory.getSegmentStaging().committed();
+		assertEquals(0, factory.getSegmentStaging().size());
+		assertEquals(10, writer.numDocs());
+		writer.close();
+	}
+
+	@Test
+	public void testUnknownTransferIsNotDeadLettered() throws Exception {
+		RAMDirectory directory = new RAMDirectory();
+		IndexWriter writer = new IndexWriter(directory, new SimpleAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+		MemoryDeadLetterStore deadLetters = new MemoryDeadLetterStore();
+		List<IndexOperation> ops = new ArrayList<IndexOperation>();
+		ops.add(new AddIndexesOperation(42, new String[] { "segments_1" }, new long[] { 10 }));
+		try {
+			new LuceneOperationExecutorFactory().apply(writer, ops, "test", deadLetters);
+			fail("The chunks of the transfer never arrived");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("Unknown segment transfer"));
+		}
+		assertEquals(0, deadLetters.getCount());
+		writer.close();
+	}
+}
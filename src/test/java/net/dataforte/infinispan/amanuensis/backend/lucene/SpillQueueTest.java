@@ -0,0 +1,135 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.backend.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import net.dataforte.infinispan.amanuensis.ExecutorContext;
+import net.dataforte.infinispan.amanuensis.IndexOperations;
+import net.dataforte.infinispan.amanuensis.IndexerException;
+import net.dataforte.infinispan.amanuensis.ops.DeleteDocumentsTermsOperation;
+
+import org.apache.lucene.analysis.SimpleAnalyzer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpillQueueTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static IndexOperations delete(String id) {
+		return new IndexOperations("test", new DeleteDocumentsTermsOperation(new Term("id", id)));
+	}
+
+	private static String id(IndexOperations ops) {
+		return ((DeleteDocumentsTermsOperation) ops.getOperations().get(0)).getTerms()[0].text();
+	}
+
+	@Test
+	public void testFifo() throws Exception {
+		SpillQueue queue = new SpillQueue(new File(folder.getRoot(), "test.spill"));
+		assertTrue(queue.isEmpty());
+		assertNull(queue.poll());
+		for (int i = 0; i < 3; i++) {
+			queue.add(delete(Integer.toString(i)));
+		}
+		assertEquals(3, queue.size());
+		assertEquals("0", id(queue.poll()));
+		queue.add(delete("3"));
+		for (int i = 1; i <= 3; i++) {
+			assertEquals(Integer.toString(i), id(queue.poll()));
+		}
+		assertTrue(queue.isEmpty());
+		// The file is truncated once the queue is empty
+		assertEquals(0, queue.getFile().length());
+		queue.close();
+	}
+
+	@Test
+	public void testClearAndClose() throws Exception {
+		SpillQueue queue = new SpillQueue(new File(folder.getRoot(), "test.spill"));
+		queue.add(delete("a"));
+		queue.add(delete("b"));
+		assertEquals(2, queue.clear());
+		assertTrue(queue.isEmpty());
+		queue.add(delete("c"));
+		assertEquals("c", id(queue.poll()));
+		queue.close();
+		assertFalse(queue.getFile().exists());
+	}
+
+	@Test
+	public void testUnreadableSpillFailsContext() throws Exception {
+		RAMDirectory directory = new RAMDirectory();
+		File logDirectory = folder.newFolder("log");
+		ExecutorContext context = new ExecutorContext(null, directory, new SimpleAnalyzer(), null);
+		context.setWriteAheadLog(new WriteAheadLog(logDirectory, 4096));
+		context.setSpillQueue(new SpillQueue(new File(folder.getRoot(), "test.spill")));
+		// Only the first message fits in memory
+		context.setMaxQueuedBytes(1);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(context.offer(delete(Integer.toString(i))));
+		}
+		assertEquals(2, context.getSpillQueue().size());
+		// Corrupt the spill file
+		RandomAccessFile raf = new RandomAccessFile(context.getSpillQueue().getFile(), "rw");
+		raf.setLength(2);
+		raf.close();
+		List<IndexOperations> batch = context.drainQueue();
+		assertEquals(1, batch.size());
+		context.batchCompleted(batch);
+		assertFalse(context.isFailed());
+		batch = context.drainQueue();
+		assertEquals(0, batch.size());
+		context.batchCompleted(batch);
+		assertTrue(context.isFailed());
+		assertFalse(context.hasQueuedOperations());
+		try {
+			context.offer(delete("3"));
+			fail("A failed context must refuse operations");
+		} catch (IndexerException e) {
+			// expected
+		}
+		context.shutdown();
+		assertFalse(context.getSpillQueue().getFile().exists());
+		// Reopening the index replays what was lost from the log
+		ExecutorContext reopened = new ExecutorContext(null, directory, new SimpleAnalyzer(), null);
+		reopened.setWriteAheadLog(new WriteAheadLog(logDirectory, 4096));
+		reopened.setMaxBatchSize(10);
+		batch = reopened.drainQueue();
+		assertEquals(2, batch.size());
+		assertEquals("1", id(batch.get(0)));
+		assertEquals("2", id(batch.get(1)));
+		reopened.getWriteAheadLog().close();
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+
+package net.dataforte.infinispan.amanuensis.backend.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.dataforte.infinispan.amanuensis.ExecutorContext;
+import net.dataforte.infinispan.amanuensis.IndexOperations;
+import net.dataforte.infinispan.amanuensis.ops.DeleteDocumentsTermsOperation;
+
+import org.apache.lucene.analysis.SimpleAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WriteAheadLogTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static void commitDocument(Directory directory, String id) throws IOException {
+		IndexWriter writer = new IndexWriter(directory, new SimpleAnalyzer(), IndexWriter.MaxFieldLength.UNLIMITED);
+		Document document = new Document();
+		document.add(new Field("id", id, Field.Store.YES, Field.Index.NOT_ANALYZED));
+		writer.addDocument(document);
+		writer.close();
+	}
+
+	/**
+	 * Logs some messages and abandons the context and the log without
+	 * committing them, as a crash would
+	 */
+	private static void logMessages(Directory directory, File logDirectory, int count) throws Exception {
+		WriteAheadLog log = new WriteAheadLog(logDirectory, 4096);
+		ExecutorContext context = new ExecutorContext(null, directory, new SimpleAnalyzer(), null);
+		context.setWriteAheadLog(log);
+		for (int i = 0; i < count; i++) {
+			context.enqueue(new IndexOperations(context.getIndexName(), new DeleteDocumentsTermsOperation(new Term("id", Integer.toString(i)))));
+		}
+		log.close();
+	}
+
+	private static ExecutorContext recover(Directory directory, File logDirectory) throws IOException {
+		ExecutorContext context = new ExecutorContext(null, directory, new SimpleAnalyzer(), null);
+		context.setWriteAheadLog(new WriteAheadLog(logDirectory, 4096));
+		return context;
+	}
+
+	@Test
+	public void testRecoverAfterCrash() throws Exception {
+		Directory directory = new RAMDirectory();
+		commitDocument(directory, "a");
+		File logDirectory = folder.newFolder("log");
+		logMessages(directory, logDirectory, 3);
+		ExecutorContext context = recover(directory, logDirectory);
+		assertTrue(context.hasQueuedOperations());
+		assertEquals(3, context.drainQueue().size() + context.drainQueue().size() + context.drainQueue().size());
+	}
+
+	@Test
+	public void testDiscardMessagesOvertakenByAnotherMaster() throws Exception {
+		Directory directory = new RAMDirectory();
+		commitDocument(directory, "a");
+		File logDirectory = folder.newFolder("log");
+		logMessages(directory, logDirectory, 3);
+		// Another master commits the index in the meantime
+		commitDocument(directory, "b");
+		ExecutorContext context = recover(directory, logDirectory);
+		assertFalse(context.hasQueuedOperations());
+		context.getWriteAheadLog().close();
+		// and they are gone for good
+		assertFalse(recover(directory, logDirectory).hasQueuedOperations());
+	}
+
+	@Test
+	public void testReplayCommittedBeforeCheckpoint() throws Exception {
+		Directory directory = new RAMDirectory();
+		commitDocument(directory, "a");
+		File logDirectory = folder.newFolder("log");
+		WriteAheadLog log = new WriteAheadLog(logDirectory, 4096);
+		ExecutorContext context = new ExecutorContext(null, directory, new SimpleAnalyzer(), null);
+		context.setMaxBatchSize(3);
+		context.setWriteAheadLog(log);
+		for (int i = 0; i < 3; i++) {
+			context.enqueue(new IndexOperations(context.getIndexName(), new DeleteDocumentsTermsOperation(new Term("id", Integer.toString(i)))));
+		}
+		// Committed, but the crash happens before the log is checkpointed
+		new DirectoryOperationQueueExecutor(context, context.drainQueue()).call();
+		context.close();
+		log.close();
+		// The index version has moved on, but by a commit of this master
+		ExecutorContext recovered = recover(directory, logDirectory);
+		recovered.setMaxBatchSize(3);
+		assertEquals(3, recovered.drainQueue().size());
+	}
+
+	@Test
+	public void testLogIdIsKept() throws Exception {
+		File logDirectory = folder.newFolder("log");
+		WriteAheadLog log = new WriteAheadLog(logDirectory, 4096);
+		long logId = log.getLogId();
+		log.recover();
+		log.checkpoint(5, 42);
+		log.close();
+		log = new WriteAheadLog(logDirectory, 4096);
+		assertEquals(logId, log.getLogId());
+		assertEquals(5, log.getCheckpoint());
+		log.close();
+		assertFalse(logId == new WriteAheadLog(folder.newFolder("other"), 4096).getLogId());
+	}
+
+	@Test
+	public void testCheckpointKeepsIndexVersion() throws Exception {
+		File logDirectory = folder.newFolder("log");
+		WriteAheadLog log = new WriteAheadLog(logDirectory, 4096);
+		assertEquals(WriteAheadLog.UNKNOWN_VERSION, log.getIndexVersion());
+		log.recover();
+		log.checkpoint(0, 42);
+		log.close();
+		log = new WriteAheadLog(logDirectory, 4096);
+		assertEquals(42, log.getIndexVersion());
+		log.close();
+	}
+}
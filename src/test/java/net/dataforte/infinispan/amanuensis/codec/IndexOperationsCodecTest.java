@@ -0,0 +1,163 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+package net.dataforte.infinispan.amanuensis.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.List;
+
+import net.dataforte.infinispan.amanuensis.CommitNotification;
+import net.dataforte.infinispan.amanuensis.IndexOperation;
+import net.dataforte.infinispan.amanuensis.IndexOperations;
+import net.dataforte.infinispan.amanuensis.analysis.DocumentAnalyzer;
+import net.dataforte.infinispan.amanuensis.analysis.PreAnalyzedTokenStream;
+import net.dataforte.infinispan.amanuensis.ops.AddDocumentOperation;
+import net.dataforte.infinispan.amanuensis.ops.DeleteDocumentsQueriesOperation;
+import net.dataforte.infinispan.amanuensis.ops.DeleteDocumentsTermsOperation;
+import net.dataforte.infinispan.amanuensis.ops.OptimizeIndexOperation;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.document.NumericField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.junit.Test;
+
+public class IndexOperationsCodecTest {
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		Document doc = new Document();
+		doc.add(new Field("id", "1", Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS));
+		doc.add(new Field("body", "some text \u00e8", Field.Store.NO, Field.Index.ANALYZED, Field.TermVector.WITH_POSITIONS_OFFSETS));
+		doc.add(new Field("blob", new byte[] { 1, 2, 3 }, Field.Store.YES));
+		doc.add(new NumericField("price", 8, Field.Store.YES, true).setDoubleValue(9.5));
+		doc.getFieldable("body").setBoost(2.0f);
+		doc.setBoost(1.5f);
+		Query range = new TermRangeQuery("id", "a", "b", true, false);
+		IndexOperations ops = new IndexOperations("index", new AddDocumentOperation(doc), new DeleteDocumentsTermsOperation(new Term("id", "2"), new Term("id", "3")),
+				new DeleteDocumentsQueriesOperation(new TermQuery(new Term("id", "4")), range), new OptimizeIndexOperation(5));
+		ops.setId(-42L, 1000L);
+
+		byte[] buf = IndexOperationsCodec.encode(ops);
+		// Decode from the middle of a larger buffer, as found in a message
+		byte[] message = new byte[buf.length + 10];
+		System.arraycopy(buf, 0, message, 5, buf.length);
+		assertTrue(IndexOperationsCodec.isEncoded(message, 5, buf.length));
+		assertFalse(IndexOperationsCodec.isEncoded(message, 0, buf.length));
+		IndexOperations decoded = IndexOperationsCodec.decode(message, 5, buf.length);
+		assertEquals(-42L, decoded.getSourceId());
+		assertEquals(1000L, decoded.getSequence());
+
+		assertEquals("index", decoded.getIndexName());
+		List<IndexOperation> operations = decoded.getOperations();
+		assertEquals(4, operations.size());
+
+		Document decodedDoc = ((AddDocumentOperation) operations.get(0)).getDoc();
+		assertEquals(1.5f, decodedDoc.getBoost(), 0);
+		assertEquals(doc.getFields().size(), decodedDoc.getFields().size());
+		for (int i = 0; i < doc.getFields().size(); i++) {
+			Fieldable expected = doc.getFields().get(i);
+			Fieldable actual = decodedDoc.getFields().get(i);
+			assertEquals(expected.name(), actual.name());
+			assertEquals(expected.isStored(), actual.isStored());
+			assertEquals(expected.getBoost(), actual.getBoost(), 0);
+			if (!expected.isBinary()) {
+				assertEquals(expected.toString(), actual.toString());
+			}
+		}
+		assertArrayEquals(new byte[] { 1, 2, 3 }, decodedDoc.getBinaryValue("blob"));
+		assertEquals(9.5, ((NumericField) decodedDoc.getFieldable("price")).getNumericValue());
+
+		Term[] terms = ((DeleteDocumentsTermsOperation) operations.get(1)).getTerms();
+		assertEquals(new Term("id", "2"), terms[0]);
+		assertEquals(new Term("id", "3"), terms[1]);
+
+		Query[] queries = ((DeleteDocumentsQueriesOperation) operations.get(2)).getQueries();
+		assertEquals(new TermQuery(new Term("id", "4")), queries[0]);
+		assertEquals(range, queries[1]);
+
+		assertEquals(5, ((OptimizeIndexOperation) operations.get(3)).getMaxSegments());
+	}
+
+	@Test
+	public void testCommitNotification() throws Exception {
+		byte[] buf = IndexOperationsCodec.encode(new CommitNotification("index", 42L, 1234567890L));
+		assertEquals(IndexOperationsCodec.KIND_COMMIT, IndexOperationsCodec.getKind(buf, 0, buf.length));
+		CommitNotification decoded = IndexOperationsCodec.decodeCommit(buf, 0, buf.length);
+		assertEquals("index", decoded.getIndexName());
+		assertEquals(42L, decoded.getVersion());
+		assertEquals(1234567890L, decoded.getTimestamp());
+	}
+
+	@Test
+	public void testPreAnalyzedRoundTrip() throws Exception {
+		Document doc = new Document();
+		doc.add(new Field("title", "the title the end", Field.Store.YES, Field.Index.ANALYZED));
+		doc.add(new Field("body", "some more text", Field.Store.NO, Field.Index.ANALYZED));
+		Document analyzed = new DocumentAnalyzer(new WhitespaceAnalyzer()).analyze(doc);
+		// the caller's document is left untouched
+		assertNull(doc.getFieldable("title").tokenStreamValue());
+		assertNull(doc.getFieldable("body").tokenStreamValue());
+
+		byte[] buf = IndexOperationsCodec.encode(new IndexOperations("index", new AddDocumentOperation(analyzed)));
+		Document decoded = ((AddDocumentOperation) IndexOperationsCodec.decode(buf, 0, buf.length).getOperations().get(0)).getDoc();
+
+		Fieldable title = decoded.getFieldable("title");
+		assertTrue(title.isStored());
+		assertEquals("the title the end", title.stringValue());
+		PreAnalyzedTokenStream tokens = (PreAnalyzedTokenStream) title.tokenStreamValue();
+		assertEquals(4, tokens.getCount());
+		assertEquals("the", tokens.getTerm(2));
+		assertEquals(10, tokens.getStartOffset(2));
+		assertEquals(13, tokens.getEndOffset(2));
+		assertEquals(17, tokens.getFinalOffset());
+
+		Fieldable body = decoded.getFieldable("body");
+		assertFalse(body.isStored());
+		assertTrue(body.isIndexed());
+		assertEquals("text", ((PreAnalyzedTokenStream) body.tokenStreamValue()).getTerm(2));
+	}
+
+	@Test
+	public void testCorruptedCount() throws Exception {
+		// Integer.MAX_VALUE, followed by a single byte
+		byte[] buf = { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07, 0x00 };
+		try {
+			new CodecInput(buf, 0, buf.length).readCount(6);
+			fail("A count larger than the remaining data must be refused");
+		} catch (IOException e) {
+			// expected
+		}
+		buf = new byte[] { 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00 };
+		assertEquals(1, new CodecInput(buf, 0, buf.length).readCount(6));
+	}
+}
@@ -0,0 +1,92 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+package net.dataforte.infinispan.amanuensis.jmx;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MBeanRegistryTest {
+	private MBeanServer server;
+	private MBeanRegistry registry;
+	private ObjectName name;
+
+	@Before
+	public void setUp() throws Exception {
+		server = MBeanServerFactory.newMBeanServer();
+		registry = new MBeanRegistry();
+		name = new ObjectName("test:type=Index,name=index");
+	}
+
+	@After
+	public void tearDown() {
+		registry.setServer(null);
+	}
+
+	@Test
+	public void testRegisterWithoutServer() throws Exception {
+		assertFalse(registry.register(new IndexStatistics(null, "index"), name));
+		assertFalse(registry.isRegistered(name));
+		assertNull(registry.getServer());
+	}
+
+	@Test
+	public void testRegisterOnce() throws Exception {
+		registry.setServer(server);
+		assertTrue(registry.register(new IndexStatistics(null, "index"), name));
+		assertTrue(server.isRegistered(name));
+		// e.g. a directory added while the server was being set
+		assertFalse(registry.register(new IndexStatistics(null, "index"), name));
+		assertTrue(server.isRegistered(name));
+	}
+
+	@Test
+	public void testUnregister() throws Exception {
+		registry.setServer(server);
+		registry.register(new IndexStatistics(null, "index"), name);
+		registry.unregisterAll();
+		assertFalse(server.isRegistered(name));
+		assertFalse(registry.isRegistered(name));
+		// can be registered again
+		assertTrue(registry.register(new IndexStatistics(null, "index"), name));
+	}
+
+	@Test
+	public void testChangeServer() throws Exception {
+		registry.setServer(server);
+		registry.register(new IndexStatistics(null, "index"), name);
+		MBeanServer other = MBeanServerFactory.newMBeanServer();
+		registry.setServer(other);
+		assertFalse(server.isRegistered(name));
+		assertTrue(registry.register(new IndexStatistics(null, "index"), name));
+		assertTrue(other.isRegistered(name));
+		registry.setServer(null);
+		assertFalse(other.isRegistered(name));
+	}
+}
@@ -0,0 +1,69 @@
+/**
+ * Amanuensis, a distributed Lucene Index Writer for Infinispan
+ *
+ * Copyright (c) 2011, Tristan Tarrant
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA  02110-1301  USA
+ */
+package net.dataforte.infinispan.amanuensis.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class MeterTest {
+
+	@Test
+	public void testCount() {
+		Meter meter = new Meter();
+		meter.mark();
+		meter.mark(9);
+		assertEquals(10, meter.getCount());
+	}
+
+	@Test
+	public void testRateBeforeFirstWindow() throws InterruptedException {
+		Meter meter = new Meter(TimeUnit.HOURS.toNanos(1));
+		assertEquals(0, meter.getRate(), 0);
+		meter.mark(100);
+		Thread.sleep(10);
+		// computed since the meter was created
+		double rate = meter.getRate();
+		assertTrue(rate > 0 && rate <= 100 * 100);
+	}
+
+	@Test
+	public void testRateOverWindow() throws InterruptedException {
+		Meter meter = new Meter(TimeUnit.MILLISECONDS.toNanos(200));
+		meter.mark(10);
+		Thread.sleep(250);
+		double rate = meter.getRate();
+		// 10 events in at least 250ms
+		assertTrue(rate > 0 && rate <= 10 * 1000 / 250.0);
+		// the rate of a window is kept until the next one has elapsed
+		meter.mark(1000);
+		assertEquals(rate, meter.getRate(), 0);
+		Thread.sleep(250);
+		assertTrue(meter.getRate() > rate);
+		// nothing happened in the last window
+		Thread.sleep(250);
+		assertEquals(0, meter.getRate(), 0);
+		assertEquals(1010, meter.getCount());
+	}
+}